@@ -1,7 +1,11 @@
 import java.io.*;
-import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Assembler
 {
@@ -15,7 +19,33 @@ public class Assembler
 	private static final int REGISTER_A = 0x06;
 	private static final int REGISTER_F = 0x07;
 
-	private enum LogLevel
+	/* The instructions the CPU understands, and the operands they take. r is a register, i is a value and x is
+	 * either, setting the X bit of the opcode when it is a value.
+	 */
+	private static final HashMap<String, Integer> MACHINE_OPCODES = new HashMap<>();
+	private static final HashMap<String, String> MACHINE_FORMS = new HashMap<>();
+
+	static
+	{
+		addMachineInstruction("LW", 0x00, "r");
+		addMachineInstruction("SW", 0x01, "x");
+		addMachineInstruction("LDA", 0x02, "ii");
+		addMachineInstruction("LC", 0x03, "ri");
+		addMachineInstruction("ADD", 0x04, "rx");
+		addMachineInstruction("OR", 0x05, "rx");
+		addMachineInstruction("NOR", 0x06, "rx");
+		addMachineInstruction("AND", 0x07, "rx");
+		addMachineInstruction("JNZ", 0x08, "x");
+		addMachineInstruction("MW", 0x09, "rr");
+		addMachineInstruction("LDF", 0x0A, "rx");
+		addMachineInstruction("LWA", 0x0B, "rii");
+		addMachineInstruction("ADC", 0x0C, "rx");
+		addMachineInstruction("SWA", 0x0D, "rii");
+		addMachineInstruction("PUSH", 0x0E, "x");
+		addMachineInstruction("POP", 0x0F, "x");
+	}
+
+	enum LogLevel
 	{
 		DEFAULT,
 		VERBOSE
@@ -23,14 +53,23 @@ public class Assembler
 
 	private static LogLevel logLevel = LogLevel.DEFAULT;
 
-	/* Each of these corresponds to one of the passes that the assembler makes. If one of them is true, then the code
-	 * at that pass is written to a file chosen by the user
+	/* Each of these corresponds to one of the stages that the assembler goes through: the lexed statements, the
+	 * instructions with their addresses, the machine instructions with symbols, and the machine instructions with
+	 * every value resolved. If one of them is true, then that stage is written to a file chosen by the user
 	 */
 	private static boolean[] writePass = new boolean[4];
 	private static String[] writePassFiles = new String[4];
 	private static String outputFilename = null;
 	private static String inputFilename = null;
 
+	/* If this is set, each module's relocatable object is kept here, named by a hash of its source. Modules that have
+	 * not changed are linked from here instead of being assembled again.
+	 */
+	private static File cacheDirectory = null;
+
+	/* Objects in the cache that no build has used for this long are deleted */
+	private static final long CACHE_MAX_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+
 	/* If this is true, we print the time the assembler took a the end. It is automatically printed when the log
 	 * level is set to verbose
 	 */
@@ -72,6 +111,8 @@ public class Assembler
 					outputFilename = args[++i];
 				else if (arg.equalsIgnoreCase("-t"))
 					printTime = true;
+				else if (arg.equalsIgnoreCase("-c"))
+					cacheDirectory = new File(args[++i]);
 				else if (arg.equalsIgnoreCase("-v"))
 				{
 					logLevel = LogLevel.VERBOSE;
@@ -88,18 +129,11 @@ public class Assembler
 		if (!file.exists())
 			error("File " + file.getName() + " does not exist");
 
+		if (cacheDirectory != null && !cacheDirectory.isDirectory() && !cacheDirectory.mkdirs())
+			error("Could not create the object cache at " + cacheDirectory);
+
 		try
 		{
-			BufferedReader reader = new BufferedReader(new FileReader(file));
-
-			/* Read the file into a list of lines */
-			ArrayList<String> lines = new ArrayList<>();
-
-			String line;
-			while ((line = reader.readLine()) != null)
-					lines.add(line);
-			reader.close();
-
 			/* Assemble it and write it to the output file */
 			File outputFile;
 			if (outputFilename == null)
@@ -107,9 +141,11 @@ public class Assembler
 			else
 				outputFile = new File(outputFilename);
 
+			byte[] binary = assemble(file);
+
 			/* Write the raw bytes to a file */
 			FileOutputStream fos = new FileOutputStream(outputFile);
-			fos.write(assemble(lines));
+			fos.write(binary);
 			fos.close();
 		} catch (Exception e)
 		{
@@ -118,24 +154,30 @@ public class Assembler
 		}
 	}
 
-	private static void error(String err)
+	private static void addMachineInstruction(String mnemonic, int opcode, String form)
+	{
+		MACHINE_OPCODES.put(mnemonic, opcode);
+		MACHINE_FORMS.put(mnemonic, form);
+	}
+
+	static void error(String err)
 	{
 		System.err.println("ERROR: " + err);
 		System.exit(1);
 	}
 
-	private static void log(LogLevel level, String message)
+	static void log(LogLevel level, String message)
 	{
 		if (level == LogLevel.DEFAULT || (logLevel == LogLevel.VERBOSE && level == LogLevel.VERBOSE))
 			System.out.println(message);
 	}
 
-	private static byte getAsciiValue(char c)
+	static byte getAsciiValue(char c)
 	{
 		return (byte) c;
 	}
 
-	private static byte getAsciiEscapedValue(char c)
+	static byte getAsciiEscapedValue(char c)
 	{
 		char lowercase = Character.toLowerCase(c);
 		switch (lowercase)
@@ -170,988 +212,816 @@ public class Assembler
 		}
 	}
 
-	private static byte[] assemble(ArrayList<String> lines)
+	private static byte[] assemble(File file)
 	{
-		/* Basic things that every program needs to define, or have defaults set */
 		long startTimeMs = System.currentTimeMillis();
+		boolean dumping = writePass[0] || writePass[1] || writePass[2] || writePass[3];
 
-		/* TThe default origin is at the start of the RAM */
-		int org = 0x00008000;
-
-		/* Data stored with db and resb (In order!) */
-		ArrayList<StoredData> storedData = new ArrayList<>();
+		/* First pass: Follow the includes from the file given to find every module. Each one is read back from the
+		 * cache if it is there, and lexed if not.
+		 */
+		Build build = new Build();
+		loadModule(build, file, "the command line", dumping);
 
-		/* Constants defined with #define */
-		HashMap<String, String> constants = new HashMap<>();
+		log(LogLevel.VERBOSE, "First pass completed, " + build.modules.size() + " modules found.");
 
-		/* Procedures and their memory locations */
-		HashMap<String, Integer> procedures = new HashMap<>();
+		/* Second pass: Collect the constants and symbols of every module, as any module may use them */
+		for (Module module : build.modules)
+			collectDefinitions(build, module);
 
-		/* If this is true, that means that the next instruction we encounter is the start of a procedure. */
-		boolean tieProcedure = false;
-		String procedureSymbol = "null";
+		log(LogLevel.VERBOSE, "Second pass completed, " + build.constants.size() + " constants and "
+				+ (build.definitions.size() - build.constants.size()) + " procedures and pieces of data.");
 
-		/* First pass: Interpret some assembler commands  */
-		for (int i = 0; i < lines.size(); i++)
+		/* Third pass: Assemble every module without an object, or whose object used constants that have changed */
+		int assembled = 0;
+		for (Module module : build.modules)
 		{
-			/* Convert this line to be uppercase, but ignore characters in double and single quotes */
-			boolean inDQuotes = false;
-			boolean inSQuotes = false;
-
-			char[] chArray = lines.get(i).trim().toCharArray();
-			for (int j = 0; j < chArray.length; j++)
+			if (module.object != null && isUpToDate(build, module.object))
 			{
-				char c = chArray[j];
-				if (c == '\'')
-				{
-					if (!inDQuotes && (j - 1 == -1 || chArray[j - 1] != '\\'))
-						inSQuotes = !inSQuotes;
-				} else if (c == '\"')
-				{
-					if (!inSQuotes && (j - 1 == -1 || chArray[j - 1] != '\\'))
-						inDQuotes = !inDQuotes;
-				} else if (!inDQuotes && !inSQuotes)
-					chArray[j] = Character.toUpperCase(c);
+				log(LogLevel.VERBOSE, "Using the cached object for " + module.file.getPath());
+				continue;
 			}
 
-			/* Put the line back in its new uppercase-d form */
-			lines.set(i, new String(chArray));
+			if (module.statements == null)
+				module.statements = Lexer.lex(module.file);
 
-			if (lines.get(i).contains(";"))
-			{
-				/* Remove a (possible) comment on this line. Ignore semicolons inside of single or double quotes */
-				String s = lines.get(i).trim();
-				boolean inDoubleQuotes = false;
-				boolean inSingleQuotes = false;
-				int lastIndexOfSemicolon = -1;
-
-				char[] charArray = s.toCharArray();
-				for (int j = 0; j < charArray.length; j++)
-				{
-					char c = charArray[j];
-					if (c == '\'')
-					{
-						if (!inDoubleQuotes && (j - 1 == -1 || charArray[j - 1] != '\\'))
-							inSingleQuotes = !inSingleQuotes;
-					} else if (c == '\"')
-					{
-						if (!inSingleQuotes && (j - 1 == -1 || charArray[j - 1] != '\\'))
-							inDoubleQuotes = !inDoubleQuotes;
-					} else if (c == ';' && !inDoubleQuotes && !inSingleQuotes)
-						lastIndexOfSemicolon = j;
-				}
+			module.object = assembleModule(build, module);
+			assembled++;
 
-				/* If there was a comment, remove it */
-				if (lastIndexOfSemicolon != -1)
-					lines.set(i, s.substring(0, lastIndexOfSemicolon));
-			}
-
-			if (lines.get(i).trim().startsWith("#"))
+			if (cacheDirectory != null)
 			{
-				String str = lines.get(i);
-
-				String assemblerCommand = str.replace("#", "").split(" ")[0];
-
-				if (assemblerCommand.equalsIgnoreCase("db") || assemblerCommand.equalsIgnoreCase("dw"))
-				{
-					/* Get everything without the command */
-					String withoutCommand = str.replace("#", "").trim().split(" ", 2)[1].trim();
-
-					ArrayList<Byte> dataBytes = new ArrayList<>();
-					StoredData data = new StoredData();
-
-					/* Get the symbol used to refer to this data */
-					data.dataSymbol = withoutCommand.split(" ")[0];
-
-					/* Split the data up into individual strings, characters, bytes, etc. */
-
-					/* Each individual piece of the data, i.e. '0x55', 'Hello!', '0x00' */
-					ArrayList<String> dataPieces = new ArrayList<>();
-
-					StringBuilder currentValue = new StringBuilder();
-
-					/* Used to determine where we are in each data piece */
-					boolean readingValue = false;
-					boolean inSingleQuotes = false;
-					boolean inDoubleQuotes = false;
-
-					/* Iterate over each character to split the line up into individual data pieces */
-					char[] dataChars = withoutCommand.split(" ", 2)[1].trim().toCharArray();
-					for (int j = 0; j < dataChars.length; j++)
-					{
-						char c = dataChars[j];
-
-						/* We can skip this if there are just spaces in between values */
-						if ((c == ' ' || c == ',') && !readingValue)
-							continue;
-						if ((c == ' ' || c == ',') && !inSingleQuotes && !inDoubleQuotes)
-						{
-							/* We have just finished reading a value */
-							dataPieces.add(currentValue.toString());
-							currentValue.setLength(0);
-							readingValue = false;
-						} else
-						{
-							/* If we aren't reading a value and encounter a non-space character, we need to read it */
-							if (!readingValue)
-							{
-								/* We're reading a value now. Add the first character to start with */
-								currentValue.append(c);
-								readingValue = true;
-							} else
-								currentValue.append(c);
-
-							/* Check if we have just entered/left a string.
-							 * Start out by making sure that this quote is not part of an escaped character.
-							 */
-							if (j - 1 == -1 || dataChars[j - 1] != '\\')
-							{
-								if (c == '\'')
-									inSingleQuotes = !inSingleQuotes;
-								else if (c == '\"')
-									inDoubleQuotes = !inDoubleQuotes;
-							}
-						}
-					}
-
-					/* Add the last value in to the list of data pieces */
-					dataPieces.add(currentValue.toString());
-
-					/* Loop through each data piece and add it to the bytes for the stored data */
-					for (String dataPiece : dataPieces)
-					{
-						if (dataPiece.matches("\'(.*?)\'"))
-						{
-							/* This is a character sequence */
-							char[] charArray = dataPiece.toCharArray();
-							for (int j = 0; j < charArray.length; j++)
-							{
-								char c = charArray[j];
-								if (c == '\\')
-								{
-									/* This is an escape code. Start by making sure it is not at the end of the string. */
-									if (j + 1 == charArray.length)
-										error("Escape sequence at string end on line " + i);
-
-									/* If the backslash is not at the end of the string, that means that a character is following us */
-									char escapedChar = charArray[++j];
-
-									/* Add the escaped char to the data bytes */
-									dataBytes.add(getAsciiEscapedValue(escapedChar));
-								} else
-									/* This is a normal ASCII character, so just add it to the data */
-									dataBytes.add(getAsciiValue(c));
-							}
-						} else if (dataPiece.matches("\"(.*?)\""))
-						{
-							/* This is a string. Process it like a character sequence, but add a null byte to the end */
-							char[] charArray = dataPiece.toCharArray();
-							for (int j = 0; j < charArray.length; j++)
-							{
-								char c = charArray[j];
-								if (c == '\\')
-								{
-									/* This is an escape code. Start by making sure it is not at the end of the string. */
-									if (j + 1 == charArray.length)
-										error("Escape sequence at string end on line " + i);
-
-									/* If the backslash is not at the end of the string, that means that a character is following us */
-									char escapedChar = charArray[++j];
-
-									/* Add the escaped char to the data bytes */
-									dataBytes.add(getAsciiEscapedValue(escapedChar));
-								} else
-									/* This is a normal ASCII character, so just add it to the data */
-									dataBytes.add(getAsciiValue(c));
-							}
-
-							/* Add the null terminating byte. */
-							dataBytes.add((byte) 0x00);
-						} else if (dataPiece.startsWith("0X"))
-						{
-							/* This is a hexadecimal byte */
-							try
-							{
-								dataBytes.add((byte) Integer.parseInt(dataPiece.replace("0X", ""), 16));
-							} catch (Exception e)
-							{
-								error("Invalid hexadecimal db on line " + i);
-							}
-						} else
-						{
-							/* This SHOULD be a decimal number */
-							try
-							{
-								dataBytes.add((byte) Integer.parseInt(dataPiece));
-							} catch (Exception e)
-							{
-								error("Invalid decimal db on line " + i);
-							}
-						}
-					}
-
-					/* Convert the data list to a byte array and add it to the stored data */
-					byte[] storedBytes = new byte[dataBytes.size()];
-					for (int k = 0; k < dataBytes.size(); k++)
-						storedBytes[k] = dataBytes.get(k);
-					data.data = storedBytes;
-
-					/* Add this stored data to the ArrayList */
-					storedData.add(data);
-
-					log(LogLevel.VERBOSE, "Added stored data with name \"" + data.dataSymbol + "\" and size (bytes) "
-							+ data.data.length);
-				} else if (assemblerCommand.equalsIgnoreCase("resb"))
-				{
-					String withoutCommand = str.replace("#", "").trim().split(" ", 2)[1].trim();
-					StoredData data = new StoredData();
-
-					int numBytes = 0;
-					try
-					{
-						numBytes = Integer.parseInt(str.replace("#", "").trim().split(" ")[2].trim());
-					} catch (Exception e)
-					{
-						error("Invalid number of bytes to reserve on line " + i);
-					}
-
-					data.dataSymbol = withoutCommand.split(" ")[0];
-					data.data = new byte[numBytes];
-					storedData.add(data);
-				} else if (assemblerCommand.equalsIgnoreCase("org"))
+				try
 				{
-					try
-					{
-						String newOrg = str.replace("#", "").trim().split(" ", 2)[1].trim();
-						if(newOrg.contains("0X"))
-							org = Integer.parseInt(newOrg.replace("0X", ""), 16);
-						else
-							org = Integer.parseInt(newOrg);
-					} catch (Exception e)
-					{
-						error("Invalid origin on line " + i);
-					}
-				}else if (assemblerCommand.equalsIgnoreCase("include"))
+					module.object.write(new File(cacheDirectory, module.key + ".obj"));
+				} catch (IOException e)
 				{
-					/* First, verify that the file actually exists */
-					String path = str.replace("#", "").trim().split(" ", 2)[1].replace("\"", "").trim();
-
-					File includeFile = new File(path);
-					if(!includeFile.exists())
-						error("Included file at " + path + " does not exist! ");
-
-					/* Read each line of the included file into the current source file */
-					try
-					{
-						int currentLocation = i;
-
-						BufferedReader reader = new BufferedReader(new FileReader(includeFile));
-						String line;
-						while ((line = reader.readLine()) != null)
-							lines.add(++currentLocation, line);
-						reader.close();
-					} catch (IOException e)
-					{
-						e.printStackTrace();
-						error("Error reading included file at " + path);
-					}
-
-				}else if (assemblerCommand.equalsIgnoreCase("define"))
-				{
-					try
-					{
-						constants.put(str.replace("#", "").trim().split(" ")[1].trim(),
-								str.replace("#", "").trim().split(" ", 3)[2].trim());
-					} catch (Exception e)
-					{
-						error("Invalid constant definition on line " + i);
-					}
-				} else if (str.endsWith(":"))
-				{
-					/* This is a procedure. Tie it to the next instruction. */
-					tieProcedure = true;
-					procedureSymbol = str.replace("#", "").replace(":", "").trim();
-					if (procedureSymbol.contains(" "))
-						error("Illegal character in procedure symbol on line " + i);
-				} else
-					error("Unrecognized assembler command \"" + assemblerCommand + "\" on line " + i);
-			} else if (!lines.get(i).trim().equalsIgnoreCase(""))
-			{
-				/* This is an instruction. Append the ": PROC ????" to it to identify it as the start of a procedure. */
-				if (tieProcedure)
-				{
-					lines.set(i, lines.get(i).trim() + " : PROC " + procedureSymbol);
-					tieProcedure = false;
+					e.printStackTrace();
+					error("Error writing the object for " + module.file.getPath() + " to " + cacheDirectory);
 				}
 			}
 		}
 
-		if (writePass[0])
-			writeArrayListToFile(writePassFiles[0], lines);
+		log(LogLevel.VERBOSE, "Third pass completed, assembled " + assembled + " of " + build.modules.size()
+				+ " modules.");
 
-		log(LogLevel.VERBOSE, "First pass completed, assembler commands interpreted.");
+		if (cacheDirectory != null)
+			pruneCache();
 
-		/* Second pass: Count the number of bytes for all instructions,
-		 * compute procedure addresses, and replace '$' with the current location in memory.
-		 */
-		int numBytes = 0;
-		for (int i = 0; i < lines.size(); i++)
+		/* Fourth pass: Place the chunks of every module in include order and fill in the addresses */
+		Linker linker = new Linker();
+		for (int i = 0; i < build.placedModules.size(); i++)
+			linker.place(build.placedModules.get(i).object, build.placedChunks.get(i));
+		byte[] output = linker.link();
+
+		log(LogLevel.VERBOSE, "Fourth pass completed, total program size in bytes: " + output.length);
+
+		if (dumping)
+			writeDumps(build, linker);
+
+		if(logLevel == LogLevel.VERBOSE || printTime)
+			log(LogLevel.DEFAULT, "Assembly took " + (System.currentTimeMillis() - startTimeMs) + " milliseconds. (" +
+					((System.currentTimeMillis() - startTimeMs) / 1000.0f) + " seconds, " + assembled + " of "
+					+ build.modules.size() + " modules assembled)");
+
+		return output;
+	}
+
+	/* Add a file and everything it includes to the build. Each file is only loaded once; including it again does
+	 * nothing, and a file that ends up including itself is an error.
+	 */
+	private static void loadModule(Build build, File file, String where, boolean dumping)
+	{
+		File canonical = canonicalize(file);
+
+		if (build.includeStack.contains(canonical))
+			error("Include cycle: " + describeCycle(build, canonical) + " (" + where + ")");
+
+		String first = build.included.get(canonical.getPath());
+		if (first != null)
 		{
-			/* Convert to uppercase because startsWith() is case sensitive */
-			String line = lines.get(i).trim().toUpperCase().replace(",", "");
+			log(LogLevel.VERBOSE, "Skipping " + file.getPath() + " at " + where + ", it was already included at "
+					+ first);
+			return;
+		}
 
-			if (line.startsWith("#") || line.startsWith(";") || line.equalsIgnoreCase(""))
-				continue;
+		Module module = new Module(file);
+		build.included.put(canonical.getPath(), where);
+		build.modules.add(module);
 
-			/* If this line has a procedure on it, figure out where it is in memory */
-			if (line.contains(": PROC"))
+		ArrayList<String> includes = new ArrayList<>();
+		ArrayList<String> includeWheres = new ArrayList<>();
+
+		if (cacheDirectory != null)
+		{
+			module.key = hashSource(canonical);
+			if (!dumping)
 			{
-				log(LogLevel.VERBOSE, "Bound procedure \"" + line.substring(line.lastIndexOf(':') + 7) +
-						"\" to instruction \"" + line.substring(0, line.lastIndexOf(':') - 1)
-						+ "\" at memory location 0x" + String.format("%04x", org + numBytes).toUpperCase());
-				procedures.put(line.substring(line.lastIndexOf(':') + 7), org + numBytes);
+				File objectFile = new File(cacheDirectory, module.key + ".obj");
+				module.object = ObjectModule.read(objectFile);
 
-				/* Set the line back to the state it was in without the procedure */
-				lines.set(i, line.substring(0, line.lastIndexOf(':') - 1));
+				/* Keep the object from being pruned as long as it is in use */
+				if (module.object != null)
+					objectFile.setLastModified(System.currentTimeMillis());
 			}
+		}
 
-			if (line.contains("$"))
+		if (module.object != null)
+		{
+			for (ObjectModule.Chunk chunk : module.object.chunks)
 			{
-				lines.set(i, line.replace("$", "0X" + String.format("%04x", org + numBytes).substring(0, 2)
-						+ " 0X" + String.format("%04x", org + numBytes).substring(2, 4)));
-
-				log(LogLevel.VERBOSE, "Replaced \'$\' on line " + i + " with address 0x"
-						+ String.format("%04x", org + numBytes).toUpperCase());
+				if (chunk.include != null)
+				{
+					includes.add(chunk.include);
+					includeWheres.add(chunk.includeWhere);
+				}
 			}
-
-			if (line.startsWith("LW") || line.startsWith("SW") || line.startsWith("JNZ") || line.startsWith("PUSH") ||
-					line.startsWith("POP"))
-				numBytes += 2;
-			else if (line.startsWith("LDA") || line.startsWith("LC") || line.startsWith("ADD") || line.startsWith("ADC") ||
-					line.startsWith("NOR") || line.startsWith("MW") || line.startsWith("LDF") || line.startsWith("OR") ||
-					line.startsWith("LWA") || line.startsWith("SWA") || line.startsWith("AND"))
-				numBytes += 3;
-			else if (line.startsWith("JMP") && line.split(" ").length == 3)
-				numBytes += 8;
-			else if (line.startsWith("JMP"))
-				numBytes += 5;
-			else if (line.startsWith("JC") && (line.contains("0X") || line.split(" ").length == 2))
-				numBytes += 8;
-			else if (line.startsWith("JC"))
-				numBytes += 11;
-			else if (line.startsWith("JNC") && (line.contains("0X") || line.split(" ").length == 2))
-				numBytes += 11;
-			else if (line.startsWith("JNC"))
-				numBytes += 14;
-			else if (line.startsWith("NOT"))
-				numBytes += 3;
-			else if (line.startsWith("NAND"))
-				numBytes += 6;
-			else if (line.startsWith("XOR"))
-				numBytes += 12;
-			else if (line.startsWith("XNOR"))
-				numBytes += 18;
-			else if (line.startsWith("STC"))
-				numBytes += 3;
-			else if (line.startsWith("SUB"))
-				numBytes += 12;
-			else if (line.startsWith("GTN"))
-				numBytes += 9;
-			else if (line.startsWith("LTN"))
-				numBytes += 9;
-			else if (line.startsWith("EQU"))
-				numBytes += 9;
-			else if (line.startsWith("MOV"))
-				numBytes += 3;
-			else if (line.startsWith("MOVMR"))
-				numBytes += 8;
-			else if (line.startsWith("MOVRM"))
-				numBytes += 8;
-			else if (line.startsWith("CALL") && (line.contains("0X") || line.split(" ").length == 2))
+		} else
+		{
+			module.statements = Lexer.lex(file);
+			for (Statement statement : module.statements)
 			{
-				numBytes += 9;
+				if (statement.kind == Statement.Kind.INCLUDE)
+				{
+					includes.add(statement.path);
+					includeWheres.add(statement.where());
+				}
+			}
+		}
 
-				/* This line needs to be marked with the return address to push to the stack */
-				lines.set(i, lines.get(i) + " : 0X" + String.format("%04x", org + numBytes));
-			} else if (line.startsWith("CALL"))
-			{
-				numBytes += 12;
-
-				/* Do the same as above for register calls */
-				lines.set(i, lines.get(i) + " : 0X" + String.format("%04x", org + numBytes));
-			} else if (line.startsWith("RET"))
-				numBytes += 5;
-			else if (line.startsWith("NOP"))
-				numBytes += 3;
-			else if (line.startsWith("INC"))
-				numBytes += 3;
-			else if (line.startsWith("DEC"))
-				numBytes += 6;
-			else
-				error("Unrecognized instruction \"" + line + "\" on line " + i);
+		/* Each chunk of this module is placed before the file included after it */
+		build.includeStack.add(canonical);
+		for (int i = 0; i <= includes.size(); i++)
+		{
+			build.placedModules.add(module);
+			build.placedChunks.add(i);
+
+			if (i < includes.size())
+				loadModule(build, resolveInclude(file, includes.get(i), includeWheres.get(i)), includeWheres.get(i),
+						dumping);
 		}
+		build.includeStack.remove(build.includeStack.size() - 1);
+	}
 
-		if (writePass[1])
-			writeArrayListToFile(writePassFiles[1], lines);
+	/* Find an included file. Paths are relative to the file doing the including, falling back to the working
+	 * directory for sources written before that was the case.
+	 */
+	private static File resolveInclude(File source, String path, String where)
+	{
+		File includeFile = new File(path);
+		if (includeFile.isAbsolute())
+		{
+			if (!includeFile.exists())
+				error("Included file at " + path + " does not exist! (" + where + ")");
+			return includeFile;
+		}
+
+		File relative = new File(source.getParentFile(), path);
+		if (relative.exists())
+			return relative;
+		if (includeFile.exists())
+			return includeFile;
+
+		error("Included file at " + relative.getPath() + " does not exist! (" + where + ")");
+		return null;
+	}
+
+	/* The chain of includes that leads back to file, i.e. "a.asm -> b.asm -> a.asm" */
+	private static String describeCycle(Build build, File file)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = build.includeStack.indexOf(file); i < build.includeStack.size(); i++)
+			sb.append(build.includeStack.get(i).getName()).append(" -> ");
+		return sb.append(file.getName()).toString();
+	}
 
-		log(LogLevel.VERBOSE, "Second pass completed, total number of instruction bytes: " + numBytes);
+	private static File canonicalize(File file)
+	{
+		try
+		{
+			return file.getCanonicalFile();
+		} catch (IOException e)
+		{
+			return file.getAbsoluteFile();
+		}
+	}
 
-		/* Now generate constant addresses for data bytes */
-		int dataLocation = org + numBytes;
-		for (StoredData data : storedData)
+	/* The name of a file's cached object: a hash of the assembler version, where the file is and what is in it */
+	private static String hashSource(File file)
+	{
+		try
 		{
-			data.memoryLocation = dataLocation;
-			dataLocation += data.data.length;
-			numBytes += data.data.length;
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update((ObjectModule.VERSION + "\0" + file.getPath() + "\0").getBytes("UTF-8"));
+			digest.update(Files.readAllBytes(file.toPath()));
 
-			log(LogLevel.VERBOSE, "Mapped stored data \"" + data.dataSymbol + "\" to memory location 0x" +
-					String.format("%04x", data.memoryLocation).toUpperCase() + " with a size of "
-					+ data.data.length + " bytes.");
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest())
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (IOException | NoSuchAlgorithmException e)
+		{
+			e.printStackTrace();
+			error("Error reading file " + file.getPath());
+			return null;
 		}
+	}
 
-		log(LogLevel.VERBOSE, "Total program size in bytes: " + (dataLocation - org));
+	/* Delete objects, and temporary files left behind by builds that died while writing one, that have not been
+	 * touched for CACHE_MAX_AGE_MS. Objects are named by the hash of their source, so every edit leaves an old one.
+	 */
+	private static void pruneCache()
+	{
+		File[] files = cacheDirectory.listFiles();
+		if (files == null)
+			return;
 
-		/* Convert all stored data to a HashMap for faster lookup */
-		HashMap<String, StoredData> dataHashMap = new HashMap<>();
-		for (StoredData s : storedData)
-			dataHashMap.put(s.dataSymbol, s);
+		long oldest = System.currentTimeMillis() - CACHE_MAX_AGE_MS;
+		int pruned = 0;
 
-		/* Third pass: Replace procedure and constant symbols with their actual values */
-		for (int i = 0; i < lines.size(); i++)
+		for (File file : files)
 		{
-			String line = lines.get(i).trim().replace(",", "");
+			String name = file.getName();
+			if ((name.endsWith(".obj") || name.endsWith(".tmp")) && file.isFile() && file.lastModified() < oldest
+					&& file.delete())
+				pruned++;
+		}
 
-			/* Skip comments, assembler commands, and blank lines. */
-			if (line.startsWith("#") || line.startsWith(";") || line.equalsIgnoreCase(""))
-				continue;
+		if (pruned > 0)
+			log(LogLevel.VERBOSE, "Pruned " + pruned + " unused objects from " + cacheDirectory);
+	}
 
-			String[] splitLine = line.split(" ");
-			StringBuilder sb = new StringBuilder();
-			for (int j = 0; j < splitLine.length; j++)
+	/* Record the constants, procedures and data a module defines, from its source or its object */
+	private static void collectDefinitions(Build build, Module module)
+	{
+		if (module.statements != null)
+		{
+			for (Statement statement : module.statements)
 			{
-				String str = splitLine[j];
-				if (procedures.containsKey(str))
-					splitLine[j] = "0X" + String.format("%04x", procedures.get(str)).substring(0, 2) + " 0X" +
-							String.format("%04x", procedures.get(str)).substring(2, 4);
-				else if (str.contains(".H") && dataHashMap.containsKey(str.substring(0, str.lastIndexOf(".H"))))
-				{
-					/* This is the high byte of some stored data */
-					splitLine[j] = "0X" + String.format("%04x",
-							dataHashMap.get(str.substring(0, str.lastIndexOf(".H"))).memoryLocation).substring(0, 2);
-				} else if (str.contains(".L") && dataHashMap.containsKey(str.substring(0, str.lastIndexOf(".L"))))
-				{
-					/* This is the low byte of some stored data */
-					splitLine[j] = "0X" + String.format("%04x",
-							dataHashMap.get(str.substring(0, str.lastIndexOf(".L"))).memoryLocation).substring(2, 4);
-				} else if (constants.containsKey(str))
+				if (statement.kind == Statement.Kind.LABEL || statement.kind == Statement.Kind.DATA)
+					define(build, statement.symbol, statement.where());
+				else if (statement.kind == Statement.Kind.DEFINE)
 				{
-					splitLine[j] = constants.get(str);
-				} else if (j != 0 && (getRegisterCode(splitLine[j]) == 0xFF && !splitLine[j].contains("0X")))
-					error("Invalid symbol \"" + splitLine[j] + "\" on line " + i);
-
-				sb.append(splitLine[j]).append(" ");
+					define(build, statement.symbol, statement.where());
+					build.constants.put(statement.symbol, new Constant(statement.operands));
+				}
 			}
+		} else
+		{
+			for (ObjectModule.Symbol symbol : module.object.symbols)
+				define(build, symbol.name, symbol.where);
 
-			/* Write the modified line to the file */
-			lines.set(i, sb.toString().trim().toUpperCase());
+			for (ObjectModule.Define define : module.object.defines)
+			{
+				define(build, define.name, define.where);
+
+				ArrayList<Operand> operands = new ArrayList<>();
+				for (String token : define.value.split(" "))
+					operands.add(Operand.parse(token));
+				build.constants.put(define.name, new Constant(operands));
+			}
 		}
+	}
 
-		if (writePass[2])
-			writeArrayListToFile(writePassFiles[2], lines);
+	/* Remember where a symbol was defined, and make sure it is only defined once */
+	private static void define(Build build, String symbol, String where)
+	{
+		String previous = build.definitions.put(symbol, where);
+		if (previous != null)
+			error("Symbol \"" + symbol + "\" at " + where + " was already defined at " + previous);
+	}
 
-		log(LogLevel.VERBOSE, "Third pass completed, constants, procedures, and data addresses remapped.");
+	/* An object can be reused if every constant it used still has the same value, and nothing it left for the linker
+	 * has since become a constant
+	 */
+	private static boolean isUpToDate(Build build, ObjectModule object)
+	{
+		for (Map.Entry<String, String> used : object.constantsUsed.entrySet())
+		{
+			Constant constant = build.constants.get(used.getKey());
+			if (constant == null || !constant.value.equals(used.getValue()))
+				return false;
+		}
 
-		/* Fourth pass: Replace macros with basic instructions */
-		int lineNumber = 0;
-		for (int i = 0; i < lines.size(); i++)
+		for (ObjectModule.Relocation relocation : object.relocations)
 		{
-			String line = lines.get(i).trim();
+			if (relocation.symbol != null && build.constants.containsKey(relocation.symbol))
+				return false;
+		}
 
-			/* Use this for log messages instead of i because i changes throughout this loop */
-			lineNumber++;
+		return true;
+	}
 
-			/* Skip comments, assembler commands, and blank lines */
-			if (line.startsWith("#") || line.startsWith(";") || line.equalsIgnoreCase(""))
-				continue;
+	/* Assemble one module into a relocatable object */
+	private static ObjectModule assembleModule(Build build, Module module)
+	{
+		ObjectModule object = new ObjectModule(module.file.getPath());
+		ObjectModule.Chunk chunk = new ObjectModule.Chunk();
+		object.chunks.add(chunk);
+		ByteArrayOutputStream chunkData = new ByteArrayOutputStream();
 
-			String[] tokens = line.split(" ");
+		/* Instructions (In order!) */
+		ArrayList<Block> blocks = new ArrayList<>();
 
-			if (tokens[0].equals("JMP"))
-			{
-				if (line.contains("0X"))
-				{
-					/* This is a jump to a location in memory */
-					if (tokens.length == 2)
-					{
-						lines.set(i, "LDA 0X" + tokens[1].replace("0X", "").substring(0, 2) + " 0X"
-								+ tokens[1].replace("0X", "").substring(2, 4));
-						lines.add(++i, "JNZ 0X01");
-					} else if (tokens.length == 3)
-					{
-						lines.set(i, "LDA " + tokens[1] + " " + tokens[2]);
-						lines.add(++i, "JNZ 0X01");
-					} else
-						error("Invalid jump on line " + lineNumber);
-				} else
-				{
-					if (tokens.length != 2)
-						error("Invalid jump on line " + lineNumber);
+		/* Procedures and the instruction they are tied to. Null means the end of their chunk. */
+		HashMap<ObjectModule.Symbol, Block> procedures = new HashMap<>();
 
-					lines.set(i, "MW " + tokens[1] + " H");
-					lines.add(++i, "MW " + tokens[2] + " L");
-					lines.add(++i, "JNZ 0X01");
-				}
-			} else if (tokens[0].equals("JC"))
-			{
-				if (line.contains("0X"))
-				{
-					/* This is a jump to a location in memory */
-					if (tokens.length == 2)
-					{
-						lines.set(i, "AND F 0X01");
-						lines.add(++i, "LDA 0X" + tokens[1].replace("0X", "").substring(0, 2) + " 0X"
-								+ tokens[1].replace("0X", "").substring(2, 4));
-						lines.add(++i, "JNZ F");
-					} else if (tokens.length == 3)
-					{
-						lines.set(i, "AND F 0X01");
-						lines.add(++i, "LDA " + tokens[1] + " " + tokens[2]);
-						lines.add(++i, "JNZ F");
-					} else
-						error("Invalid JNC on line " + lineNumber);
-				} else
-				{
-					if (tokens.length != 2)
-						error("Invalid JNC on line " + lineNumber);
+		/* Procedures waiting for the next instruction */
+		ArrayList<ObjectModule.Symbol> untiedProcedures = new ArrayList<>();
 
-					lines.set(i, "MW " + tokens[1] + " H");
-					lines.add(++i, "MW " + tokens[2] + " L");
-					lines.add(++i, "AND F 0X01");
-					lines.add(++i, "JNZ F");
-				}
-			} else if (tokens[0].equals("JNC"))
+		/* First pass: Sort the statements into chunks of code and data, split wherever another file is included */
+		for (Statement statement : module.statements)
+		{
+			switch (statement.kind)
 			{
-				if (line.contains("0X"))
-				{
-					/* This is a jump to a location in memory */
-					if (tokens.length == 2)
-					{
-						lines.set(i, "LDA 0X" + tokens[1].replace("0X", "").substring(0, 2) + " 0X"
-								+ tokens[1].replace("0X", "").substring(2, 4));
-						lines.add(++i, "NOR F F");
-						lines.add(++i, "AND F 0X01");
-						lines.add(++i, "JNZ F");
-					} else if (tokens.length == 3)
-					{
-						lines.set(i, "LDA " + tokens[1] + " " + tokens[2]);
-						lines.add(++i, "NOR F F");
-						lines.add(++i, "AND F 0X01");
-						lines.add(++i, "JNZ F");
-					} else
-						error("Invalid JNC on line " + lineNumber);
-				} else
+				case INSTRUCTION:
 				{
-					if (tokens.length != 2)
-						error("Invalid JNC on line " + lineNumber);
-
-					lines.set(i, "MW " + tokens[1] + " H");
-					lines.add(++i, "MW " + tokens[2] + " L");
-					lines.add(++i, "NOR F F");
-					lines.add(++i, "AND F 0X01");
-					lines.add(++i, "JNZ F");
+					Block block = new Block(statement, object.chunks.size() - 1);
+					for (ObjectModule.Symbol procedure : untiedProcedures)
+						procedures.put(procedure, block);
+					untiedProcedures.clear();
+					blocks.add(block);
+					break;
 				}
-			} else if (tokens[0].equals("NOT"))
-			{
-				if (tokens.length != 2)
-					error("Invalid NOT on line " + lineNumber);
-
-				lines.set(i, "NOR " + tokens[1] + tokens[1]);
-			} else if (tokens[0].equals("NAND"))
-			{
-				if (tokens.length != 3)
-					error("Invalid NAND on line " + lineNumber);
-
-				lines.set(i, "AND " + tokens[1] + " " + tokens[2]);
-				lines.add(++i, "NOR " + tokens[1] + tokens[1]);
-			} else if (tokens[0].equals("XOR"))
-			{
-				if (tokens.length != 3)
-					error("Invalid XOR on line " + lineNumber);
-
-				if (tokens[2].contains("0X"))
-				{
-					lines.set(i, "AND " + tokens[1] + " " + tokens[2]);
-					lines.add(++i, "LC H " + tokens[2]);
-					lines.add(++i, "NOR H " + tokens[1]);
-					lines.add(++i, "NOR " + tokens[1] + " H");
-				} else
+				case LABEL:
 				{
-					lines.set(i, "MW " + tokens[2] + " H");
-					lines.add(++i, "AND " + tokens[1] + " " + tokens[2]);
-					lines.add(++i, "NOR H " + tokens[1]);
-					lines.add(++i, "NOR " + tokens[1] + " H");
+					ObjectModule.Symbol procedure = addSymbol(object, statement, false, 0);
+					untiedProcedures.add(procedure);
+					break;
 				}
-			} else if (tokens[0].equals("XNOR"))
-			{
-				if (tokens.length != 3)
-					error("Invalid XNOR on line " + lineNumber);
-
-				if (tokens[2].contains("0X"))
+				case DATA:
+					addSymbol(object, statement, true, chunkData.size());
+					chunkData.write(statement.data, 0, statement.data.length);
+					break;
+				case ORG:
+					chunk.origin = statement.origin;
+					break;
+				case DEFINE:
 				{
-					lines.set(i, "LC L " + tokens[2]);
-					lines.add(++i, "MW " + tokens[1] + " H");
-					lines.add(++i, "NOR H L");
-					lines.add(++i, "NOR " + tokens[1] + " H");
-					lines.add(++i, "NOR H " + tokens[2]);
-					lines.add(++i, "NOR " + tokens[1] + " H");
-				} else
-				{
-					lines.set(i, "MW " + tokens[2] + " L");
-					lines.add(++i, "MW " + tokens[1] + " H");
-					lines.add(++i, "NOR H L");
-					lines.add(++i, "NOR " + tokens[1] + " H");
-					lines.add(++i, "NOR H " + tokens[2]);
-					lines.add(++i, "NOR " + tokens[1] + " H");
+					ObjectModule.Define define = new ObjectModule.Define();
+					define.name = statement.symbol;
+					define.value = build.constants.get(statement.symbol).value;
+					define.where = statement.where();
+					object.defines.add(define);
+					break;
 				}
-			} else if (tokens[0].equals("STC"))
-			{
-				if (tokens.length != 1)
-					error("Invalid STC on line " + lineNumber);
+				case INCLUDE:
+					/* Procedures before an include point at whatever comes after this chunk */
+					for (ObjectModule.Symbol procedure : untiedProcedures)
+						procedures.put(procedure, null);
+					untiedProcedures.clear();
+
+					chunk.include = statement.path;
+					chunk.includeWhere = statement.where();
+					chunk.data = chunkData.toByteArray();
+
+					chunk = new ObjectModule.Chunk();
+					object.chunks.add(chunk);
+					chunkData.reset();
+					break;
+			}
+		}
 
-				lines.set(i, "OR F 0X01");
-			} else if (tokens[0].equals("SUB"))
-			{
-				if (tokens.length != 3)
-					error("Invalid SUB on line " + lineNumber);
+		for (ObjectModule.Symbol procedure : untiedProcedures)
+			procedures.put(procedure, null);
+		chunk.data = chunkData.toByteArray();
 
-				if (tokens[2].contains("0X"))
-				{
-					lines.set(i, "LC H " + tokens[2]);
-					lines.add(++i, "NOR H H");
-					lines.add(++i, "OR F 0X01");
-					lines.add(++i, "ADC " + tokens[1] + " H");
-				} else
-				{
-					lines.set(i, "MW " + tokens[2] + " H");
-					lines.add(++i, "NOR H H");
-					lines.add(++i, "OR F 0X01");
-					lines.add(++i, "ADC " + tokens[1] + " H");
-				}
-			} else if (tokens[0].equals("GTN"))
-			{
-				if (tokens.length != 3)
-					error("Invalid GTN on line " + lineNumber);
+		/* Second pass: Resolve symbols and expand every instruction into machine instructions. This decides the size
+		 * of each instruction, so laying the program out and encoding it can never disagree.
+		 */
+		for (Block block : blocks)
+		{
+			ArrayList<Argument> arguments = new ArrayList<>();
+			for (Operand operand : block.source.operands)
+				resolve(build, block, operand, arguments, object.constantsUsed, 0);
 
-				lines.set(i, "LDF " + tokens[1] + " " + tokens[2]);
-				lines.add(++i, "AND F 0X02");
-				lines.add(++i, "MW F " + tokens[1]);
-			} else if (tokens[0].equals("LTN"))
-			{
-				if (tokens.length != 3)
-					error("Invalid LTN on line " + lineNumber);
+			block.code = expand(block, arguments);
+			for (Instruction instruction : block.code)
+				block.size += instruction.getSize();
+		}
 
-				lines.set(i, "LDF " + tokens[1] + " " + tokens[2]);
-				lines.add(++i, "AND F 0X08");
-				lines.add(++i, "MW F " + tokens[1]);
-			} else if (tokens[0].equals("EQU"))
-			{
-				if (tokens.length != 3)
-					error("Invalid GTN on line " + lineNumber);
+		/* Third pass: Lay out the code of each chunk */
+		int[] codeSizes = new int[object.chunks.size()];
+		for (Block block : blocks)
+		{
+			block.offset = codeSizes[block.chunk];
+			codeSizes[block.chunk] += block.size;
+		}
 
-				lines.set(i, "LDF " + tokens[1] + " " + tokens[2]);
-				lines.add(++i, "AND F 0X04");
-				lines.add(++i, "MW F " + tokens[1]);
-			} else if (tokens[0].equals("MOV"))
-			{
-				if (tokens.length != 3 && tokens.length != 4)
-					error("Invalid MOV on line " + lineNumber);
+		for (Map.Entry<ObjectModule.Symbol, Block> procedure : procedures.entrySet())
+		{
+			Block block = procedure.getValue();
+			ObjectModule.Symbol symbol = procedure.getKey();
+			symbol.offset = block != null ? block.offset : codeSizes[symbol.chunk];
+		}
 
-				if (tokens.length == 3)
-				{
-					/* MOV from register to register */
-					lines.set(i, "MW " + tokens[1] + tokens[2]);
-				} else if (tokens[1].contains("0X"))
-				{
-					/* MOV from register to memory location */
-					lines.set(i, "SWA " + tokens[1] + " " + tokens[2] + " " + tokens[3]);
-				} else
-				{
-					/* MOV from memory location to register */
-					lines.set(i, "LWA " + tokens[3] + " " + tokens[1] + " " + tokens[2]);
-				}
-			} else if (tokens[0].equals("MOVMR"))
-			{
-				if (tokens.length != 4)
-					error("Invalid MOVMR on line " + lineNumber);
+		/* Fourth pass: Assemble the machine instructions, leaving addresses to the linker */
+		for (int i = 0; i < object.chunks.size(); i++)
+			object.chunks.get(i).code = new byte[codeSizes[i]];
 
-				lines.set(i, "MW " + tokens[2] + " H");
-				lines.add(++i, "MW " + tokens[3] + " L");
-				lines.add(++i, "LW " + tokens[1]);
-			} else if (tokens[0].equals("MOVRM"))
-			{
-				if (tokens.length != 4)
-					error("Invalid MOVRM on line " + lineNumber);
+		for (Block block : blocks)
+		{
+			int position = block.offset;
+			for (Instruction instruction : block.code)
+				position = instruction.encode(object.chunks.get(block.chunk).code, position, block, object.relocations);
+		}
 
-				lines.set(i, "MW " + tokens[1] + " H");
-				lines.add(++i, "MW " + tokens[2] + " L");
-				lines.add(++i, "SW " + tokens[3]);
-			} else if (tokens[0].equals("CALL"))
-			{
-				if (line.substring(0, line.lastIndexOf(":")).trim().split(" ").length != 3)
-					error("Invalid CALL on line " + lineNumber);
+		module.blocks = blocks;
 
-				if (tokens[1].contains("0X") && line.substring(0, line.lastIndexOf(":")).trim().split(" ").length == 3)
-				{
-					String returnAddressHex = line.substring(line.lastIndexOf(":") + 1, line.length()).replace("0X", "").trim();
-					lines.set(i, "PUSH 0X" + returnAddressHex.substring(0, 2));
-					lines.add(++i, "PUSH 0X" + returnAddressHex.substring(2, 4));
-					lines.add(++i, "LDA " + tokens[1] + " " + tokens[2]);
-					lines.add(++i, "JNZ 0X01");
-				} else if (tokens[1].contains("0X"))
-				{
-					String returnAddressHex = line.substring(line.lastIndexOf(":") + 1, line.length()).replace("0X", "").trim();
-					lines.set(i, "PUSH 0X" + returnAddressHex.substring(0, 2));
-					lines.add(++i, "PUSH 0X" + returnAddressHex.substring(2, 4));
-					lines.add(++i, "LDA 0X" + tokens[1].replace("0X", "").substring(0, 2)
-							+ " 0X" + tokens[1].replace("0X", "").substring(2, 4));
-					lines.add(++i, "JNZ 0X01");
-				} else
-				{
-					String returnAddressHex = line.substring(line.lastIndexOf(":") + 1, line.length()).replace("0X", "").trim();
-					lines.set(i, "PUSH 0X" + returnAddressHex.substring(0, 2));
-					lines.add(++i, "PUSH 0X" + returnAddressHex.substring(2, 4));
-					lines.add(++i, "MW " + tokens[1] + " H");
-					lines.add(++i, "MW " + tokens[2] + " L");
-					lines.add(++i, "JNZ 0X01");
-				}
-			} else if (tokens[0].equals("RET"))
-			{
-				if (tokens.length != 1)
-					error("Invalid RET on line " + lineNumber);
+		log(LogLevel.VERBOSE, "Assembled " + module.file.getPath() + ": " + blocks.size() + " instructions in "
+				+ object.chunks.size() + " chunk(s), " + object.relocations.size() + " relocations.");
 
-				lines.set(i, "POP L");
-				lines.add(++i, "POP H");
-				lines.add(++i, "JNZ 0X01");
-			} else if (tokens[0].equals("NOP"))
-			{
-				if (tokens.length != 1)
-					error("Invalid NOP on line " + lineNumber);
+		return object;
+	}
 
-				lines.set(i, "MW F F");
-			} else if (tokens[0].equals("INC"))
-			{
-				if (tokens.length != 2)
-					error("Invalid INC on line " + lineNumber);
+	private static ObjectModule.Symbol addSymbol(ObjectModule object, Statement statement, boolean isData, int offset)
+	{
+		ObjectModule.Symbol symbol = new ObjectModule.Symbol();
+		symbol.name = statement.symbol;
+		symbol.isData = isData;
+		symbol.chunk = object.chunks.size() - 1;
+		symbol.offset = offset;
+		symbol.where = statement.where();
+		object.symbols.add(symbol);
+		return symbol;
+	}
+
+	/* Write out each of the stages that were asked for. Every module has been assembled from source for these. */
+	private static void writeDumps(Build build, Linker linker)
+	{
+		HashMap<String, Integer> addresses = linker.getSymbolAddresses();
+		for (Module module : build.modules)
+		{
+			for (Block block : module.blocks)
+				block.address = linker.getCodeAddress(module.object, block.chunk) + block.offset;
+		}
 
-				lines.set(i, "ADD " + tokens[1] + "0X01");
-			} else if (tokens[0].equals("DEC"))
+		ArrayList<String> statements = new ArrayList<>();
+		for (Module module : build.modules)
+		{
+			for (Statement statement : module.statements)
+				statements.add(statement.where() + "\t" + statement);
+		}
+
+		ArrayList<String> instructions = new ArrayList<>();
+		ArrayList<String> symbolic = new ArrayList<>();
+		ArrayList<String> resolved = new ArrayList<>();
+		for (int i = 0; i < build.placedModules.size(); i++)
+		{
+			for (Block block : build.placedModules.get(i).blocks)
 			{
-				if (tokens.length != 2)
-					error("Invalid DEC on line " + lineNumber);
+				if (block.chunk != build.placedChunks.get(i))
+					continue;
 
-				lines.set(i, "OR F 0X01");
-				lines.add(++i, "ADC " + tokens[1] + " 0XFE");
+				instructions.add(String.format("0X%04X\t", block.address) + block.source);
+				for (Instruction instruction : block.code)
+				{
+					symbolic.add(instruction.toString());
+					resolved.add(instruction.toString(addresses));
+				}
 			}
-
-			/* No error checking needs to be done at the end here as any invalid instructions should have already been
-			 * caught when counting bytes.
-			 */
 		}
 
+		if (writePass[0])
+			writeArrayListToFile(writePassFiles[0], statements);
+		if (writePass[1])
+			writeArrayListToFile(writePassFiles[1], instructions);
+		if (writePass[2])
+			writeArrayListToFile(writePassFiles[2], symbolic);
 		if (writePass[3])
-			writeArrayListToFile(writePassFiles[3], lines);
+			writeArrayListToFile(writePassFiles[3], resolved);
+	}
 
-		log(LogLevel.VERBOSE, "Fourth pass completed, instructions expanded into subroutines.");
+	/* Turn an operand into the register codes and bytes that it stands for. Procedures, data and $ are two bytes
+	 * (high, low), .H and .L are one, and constants are whatever they were defined as.
+	 */
+	private static void resolve(Build build, Block block, Operand operand, ArrayList<Argument> arguments,
+								HashMap<String, String> constantsUsed, int depth)
+	{
+		switch (operand.kind)
+		{
+			case REGISTER:
+				arguments.add(new Argument(operand.value));
+				return;
+			case NUMBER:
+				arguments.add(new Argument(new Value(Value.BYTE, Value.CONSTANT, operand.value, null, block)));
+				return;
+			case HERE:
+				arguments.add(new Argument(new Value(Value.HIGH, Value.HERE, 0, null, block)));
+				arguments.add(new Argument(new Value(Value.LOW, Value.HERE, 0, null, block)));
+				return;
+		}
 
-		/* Allocate the number of bytes that we counted, plus a few extra */
-		ByteBuffer outputBuffer = ByteBuffer.allocate(numBytes + 4);
+		String symbol = operand.symbol;
+		Constant constant = build.constants.get(symbol);
+		if (!build.definitions.containsKey(symbol) || (constant != null && operand.kind != Operand.Kind.SYMBOL))
+			error("Invalid symbol \"" + operand + "\" at " + block.source.where());
 
-		/* Fifth pass: Assemble basic instructions */
-		for (int i = 0; i < lines.size(); i++)
+		if (operand.kind == Operand.Kind.SYMBOL_HIGH || operand.kind == Operand.Kind.SYMBOL_LOW)
+		{
+			int part = operand.kind == Operand.Kind.SYMBOL_HIGH ? Value.HIGH : Value.LOW;
+			arguments.add(new Argument(new Value(part, Value.SYMBOL, 0, symbol, block)));
+		} else if (constant == null)
 		{
-			String line = lines.get(i).trim();
+			/* A procedure or data, in this module or another */
+			arguments.add(new Argument(new Value(Value.HIGH, Value.SYMBOL, 0, symbol, block)));
+			arguments.add(new Argument(new Value(Value.LOW, Value.SYMBOL, 0, symbol, block)));
+		} else
+		{
+			if (depth > 16)
+				error("Constant \"" + symbol + "\" refers to itself at " + block.source.where());
 
-			/* Skip comments, assembler commands, and blank lines */
-			if (line.startsWith("#") || line.startsWith(";") || line.equalsIgnoreCase(""))
-				continue;
+			constantsUsed.put(symbol, constant.value);
+			for (Operand value : constant.operands)
+				resolve(build, block, value, arguments, constantsUsed, depth + 1);
+		}
+	}
 
-			String[] tokens = line.split(" ");
+	/* Replace an instruction or macro with the machine instructions it is made of */
+	private static ArrayList<Instruction> expand(Block block, ArrayList<Argument> args)
+	{
+		ArrayList<Instruction> code = new ArrayList<>();
+		String mnemonic = block.source.mnemonic;
 
-			if (tokens[0].equals("LW"))
-			{
-				outputBuffer.put((byte) 0x00);
-				outputBuffer.put(getRegisterCode(tokens[1]));
-			} else if (tokens[0].equals("SW"))
-			{
-				if (tokens[1].contains("0X"))
-				{
-					outputBuffer.put((byte) 0x81);
-					outputBuffer.put((byte) Integer.parseInt(tokens[1].replace("0X", ""), 16));
-				} else
-				{
-					outputBuffer.put((byte) 0x01);
-					outputBuffer.put(getRegisterCode(tokens[1]));
-				}
-			} else if (tokens[0].equals("LDA"))
-			{
-				outputBuffer.put((byte) 0x02);
-				outputBuffer.put((byte) Integer.parseInt(tokens[1].replace("0X", ""), 16));
-				outputBuffer.put((byte) Integer.parseInt(tokens[2].replace("0X", ""), 16));
-			} else if (tokens[0].equals("LC"))
-			{
-				outputBuffer.put((byte) 0x03);
-				outputBuffer.put(getRegisterCode(tokens[1]));
-				outputBuffer.put((byte) Integer.parseInt(tokens[2].replace("0X", ""), 16));
-			} else if (tokens[0].equals("ADD"))
-			{
-				if (tokens[2].contains("0X"))
-				{
-					outputBuffer.put((byte) 0x84);
-					outputBuffer.put(getRegisterCode(tokens[1]));
-					outputBuffer.put((byte) Integer.parseInt(tokens[2].replace("0X", ""), 16));
-				} else
-				{
-					outputBuffer.put((byte) 0x04);
-					outputBuffer.put(getRegisterCode(tokens[1]));
-					outputBuffer.put(getRegisterCode(tokens[2]));
-				}
-			} else if (tokens[0].equals("OR"))
-			{
-				if (tokens[2].contains("0X"))
-				{
-					outputBuffer.put((byte) 0x85);
-					outputBuffer.put(getRegisterCode(tokens[1]));
-					outputBuffer.put((byte) Integer.parseInt(tokens[2].replace("0X", ""), 16));
-				} else
-				{
-					outputBuffer.put((byte) 0x05);
-					outputBuffer.put(getRegisterCode(tokens[1]));
-					outputBuffer.put(getRegisterCode(tokens[2]));
-				}
-			} else if (tokens[0].equals("NOR"))
+		Argument h = new Argument(REGISTER_H);
+		Argument l = new Argument(REGISTER_L);
+		Argument f = new Argument(REGISTER_F);
+
+		switch (mnemonic)
+		{
+			case "LW":
+			case "SW":
+			case "LC":
+			case "ADD":
+			case "ADC":
+			case "OR":
+			case "NOR":
+			case "AND":
+			case "LDF":
+			case "MW":
+			case "PUSH":
+			case "POP":
+				emit(code, block, mnemonic, args.toArray(new Argument[args.size()]));
+				break;
+			case "LDA":
 			{
-				if (tokens[2].contains("0X"))
-				{
-					outputBuffer.put((byte) 0x86);
-					outputBuffer.put(getRegisterCode(tokens[1]));
-					outputBuffer.put((byte) Integer.parseInt(tokens[2].replace("0X", ""), 16));
-				} else
-				{
-					outputBuffer.put((byte) 0x06);
-					outputBuffer.put(getRegisterCode(tokens[1]));
-					outputBuffer.put(getRegisterCode(tokens[2]));
-				}
-			} else if (tokens[0].equals("AND"))
+				Argument[] target = target(block, args, 0);
+				emit(code, block, "LDA", target[0], target[1]);
+				break;
+			}
+			case "LWA":
+			case "SWA":
 			{
-				if (tokens[2].contains("0X"))
-				{
-					outputBuffer.put((byte) 0x87);
-					outputBuffer.put(getRegisterCode(tokens[1]));
-					outputBuffer.put((byte) Integer.parseInt(tokens[2].replace("0X", ""), 16));
-				} else
-				{
-					outputBuffer.put((byte) 0x07);
-					outputBuffer.put(getRegisterCode(tokens[1]));
-					outputBuffer.put(getRegisterCode(tokens[2]));
-				}
-			} else if (tokens[0].equals("JNZ"))
+				expectRegister(block, args, 0);
+				Argument[] target = target(block, args, 1);
+				emit(code, block, mnemonic, args.get(0), target[0], target[1]);
+				break;
+			}
+			case "JNZ":
+			case "JZ":
 			{
-				if (tokens[1].contains("0X"))
-				{
-					outputBuffer.put((byte) 0x88);
-					outputBuffer.put((byte) Integer.parseInt(tokens[1].replace("0X", ""), 16));
-				} else
+				if (mnemonic.equals("JNZ") && args.size() == 1)
 				{
-					outputBuffer.put((byte) 0x08);
-					outputBuffer.put(getRegisterCode(tokens[1]));
+					emit(code, block, "JNZ", args.get(0));
+					break;
 				}
-			} else if (tokens[0].equals("MW"))
-			{
-				outputBuffer.put((byte) 0x09);
-				outputBuffer.put(getRegisterCode(tokens[1]));
-				outputBuffer.put(getRegisterCode(tokens[2]));
-			} else if (tokens[0].equals("LDF"))
-			{
-				if (tokens[2].contains("0X"))
+
+				expectRegister(block, args, 0);
+				Argument[] target = target(block, args, 1);
+				loadTarget(code, block, target, h, l);
+
+				if (mnemonic.equals("JZ"))
 				{
-					outputBuffer.put((byte) 0x87);
-					outputBuffer.put(getRegisterCode(tokens[1]));
-					outputBuffer.put((byte) Integer.parseInt(tokens[2].replace("0X", ""), 16));
+					emit(code, block, "LDF", args.get(0), constant(block, 0x00));
+					emit(code, block, "AND", f, constant(block, 0x04));
+					emit(code, block, "JNZ", f);
 				} else
-				{
-					outputBuffer.put((byte) 0x07);
-					outputBuffer.put(getRegisterCode(tokens[1]));
-					outputBuffer.put(getRegisterCode(tokens[2]));
-				}
-			} else if (tokens[0].equals("LWA"))
-			{
-				outputBuffer.put((byte) (0x0B | (getRegisterCode(tokens[1]) << 4)));
-				outputBuffer.put((byte) Integer.parseInt(tokens[2].replace("0X", ""), 16));
-				outputBuffer.put((byte) Integer.parseInt(tokens[3].replace("0X", ""), 16));
-			} else if (tokens[0].equals("SWA"))
-			{
-				outputBuffer.put((byte) (0x0D | (getRegisterCode(tokens[1]) << 4)));
-				outputBuffer.put((byte) Integer.parseInt(tokens[2].replace("0X", ""), 16));
-				outputBuffer.put((byte) Integer.parseInt(tokens[3].replace("0X", ""), 16));
-			} else if (tokens[0].equals("ADC"))
+					emit(code, block, "JNZ", args.get(0));
+				break;
+			}
+			case "JMP":
+				loadTarget(code, block, target(block, args, 0), h, l);
+				emit(code, block, "JNZ", constant(block, 0x01));
+				break;
+			case "JC":
 			{
-				if (tokens[2].contains("0X"))
+				Argument[] target = target(block, args, 0);
+				if (target[0].isRegister())
 				{
-					outputBuffer.put((byte) 0x8C);
-					outputBuffer.put(getRegisterCode(tokens[1]));
-					outputBuffer.put((byte) Integer.parseInt(tokens[2].replace("0X", ""), 16));
+					loadTarget(code, block, target, h, l);
+					emit(code, block, "AND", f, constant(block, 0x01));
 				} else
 				{
-					outputBuffer.put((byte) 0x0C);
-					outputBuffer.put(getRegisterCode(tokens[1]));
-					outputBuffer.put(getRegisterCode(tokens[2]));
+					emit(code, block, "AND", f, constant(block, 0x01));
+					loadTarget(code, block, target, h, l);
 				}
-			} else if (tokens[0].equals("PUSH"))
+				emit(code, block, "JNZ", f);
+				break;
+			}
+			case "JNC":
+				loadTarget(code, block, target(block, args, 0), h, l);
+				emit(code, block, "NOR", f, f);
+				emit(code, block, "AND", f, constant(block, 0x01));
+				emit(code, block, "JNZ", f);
+				break;
+			case "NOT":
+				expectCount(block, args, 1);
+				emit(code, block, "NOR", args.get(0), args.get(0));
+				break;
+			case "NAND":
+				expectCount(block, args, 2);
+				emit(code, block, "AND", args.get(0), args.get(1));
+				emit(code, block, "NOR", args.get(0), args.get(0));
+				break;
+			case "XOR":
+				/* (reg0 OR reg1) AND NOT (reg0 AND reg1), with H holding the AND */
+				expectCount(block, args, 2);
+				emit(code, block, "MW", args.get(0), h);
+				emit(code, block, "AND", h, args.get(1));
+				emit(code, block, "OR", args.get(0), args.get(1));
+				emit(code, block, "NOR", h, h);
+				emit(code, block, "AND", args.get(0), h);
+				break;
+			case "XNOR":
+				expectCount(block, args, 2);
+				if (args.get(1).isRegister())
+					emit(code, block, "MW", args.get(1), l);
+				else
+					emit(code, block, "LC", l, args.get(1));
+				emit(code, block, "MW", args.get(0), h);
+				emit(code, block, "NOR", h, l);
+				emit(code, block, "NOR", args.get(0), h);
+				emit(code, block, "NOR", h, args.get(1));
+				emit(code, block, "NOR", args.get(0), h);
+				break;
+			case "STC":
+				expectCount(block, args, 0);
+				emit(code, block, "OR", f, constant(block, 0x01));
+				break;
+			case "SUB":
+				expectCount(block, args, 2);
+				if (args.get(1).isRegister())
+					emit(code, block, "MW", args.get(1), h);
+				else
+					emit(code, block, "LC", h, args.get(1));
+				emit(code, block, "NOR", h, h);
+				emit(code, block, "OR", f, constant(block, 0x01));
+				emit(code, block, "ADC", args.get(0), h);
+				break;
+			case "GTN":
+			case "LTN":
+			case "EQU":
 			{
-				if (tokens[1].contains("0X"))
+				expectCount(block, args, 2);
+				int flag = mnemonic.equals("GTN") ? 0x02 : mnemonic.equals("LTN") ? 0x08 : 0x04;
+				emit(code, block, "LDF", args.get(0), args.get(1));
+				emit(code, block, "AND", f, constant(block, flag));
+				emit(code, block, "MW", f, args.get(0));
+				break;
+			}
+			case "MOV":
+				if (args.size() == 2 && args.get(0).isRegister() && args.get(1).isRegister())
 				{
-					outputBuffer.put((byte) 0x8E);
-					outputBuffer.put((byte) Integer.parseInt(tokens[1].replace("0X", ""), 16));
-				} else
+					/* MOV from register to register */
+					emit(code, block, "MW", args.get(0), args.get(1));
+				} else if (!args.isEmpty() && args.get(0).isRegister())
 				{
-					outputBuffer.put((byte) 0x0E);
-					outputBuffer.put(getRegisterCode(tokens[1]));
-				}
-			} else if (tokens[0].equals("POP"))
-			{
-				if (tokens[1].contains("0X"))
+					/* MOV from memory location to register */
+					Argument[] target = target(block, args, 1);
+					emit(code, block, "LWA", args.get(0), target[0], target[1]);
+				} else if (!args.isEmpty() && args.get(args.size() - 1).isRegister())
 				{
-					outputBuffer.put((byte) 0x8F);
-					outputBuffer.put((byte) Integer.parseInt(tokens[1].replace("0X", ""), 16));
+					/* MOV from register to memory location */
+					Argument[] target = target(block, new ArrayList<>(args.subList(0, args.size() - 1)), 0);
+					emit(code, block, "SWA", args.get(args.size() - 1), target[0], target[1]);
 				} else
-				{
-					outputBuffer.put((byte) 0x0F);
-					outputBuffer.put(getRegisterCode(tokens[1]));
-				}
-			} else
+					error("Invalid MOV at " + block.source.where());
+				break;
+			case "MOVMR":
+				expectCount(block, args, 3);
+				emit(code, block, "MW", args.get(1), h);
+				emit(code, block, "MW", args.get(2), l);
+				emit(code, block, "LW", args.get(0));
+				break;
+			case "MOVRM":
+				expectCount(block, args, 3);
+				emit(code, block, "MW", args.get(0), h);
+				emit(code, block, "MW", args.get(1), l);
+				emit(code, block, "SW", args.get(2));
+				break;
+			case "CALL":
 			{
-				log(LogLevel.DEFAULT, "Invalid instruction encountered on pass 5: \"" + line + "\"");
+				/* Push the address of the instruction after this one to return to */
+				Argument[] target = target(block, args, 0);
+				emit(code, block, "PUSH", new Argument(new Value(Value.HIGH, Value.NEXT, 0, null, block)));
+				emit(code, block, "PUSH", new Argument(new Value(Value.LOW, Value.NEXT, 0, null, block)));
+				loadTarget(code, block, target, h, l);
+				emit(code, block, "JNZ", constant(block, 0x01));
+				break;
 			}
+			case "RET":
+				expectCount(block, args, 0);
+				emit(code, block, "POP", l);
+				emit(code, block, "POP", h);
+				emit(code, block, "JNZ", constant(block, 0x01));
+				break;
+			case "NOP":
+				expectCount(block, args, 0);
+				emit(code, block, "MW", f, f);
+				break;
+			case "INC":
+				expectCount(block, args, 1);
+				emit(code, block, "ADD", args.get(0), constant(block, 0x01));
+				break;
+			case "DEC":
+				expectCount(block, args, 1);
+				emit(code, block, "OR", f, constant(block, 0x01));
+				emit(code, block, "ADC", args.get(0), constant(block, 0xFE));
+				break;
+			default:
+				error("Unrecognized instruction \"" + block.source + "\" at " + block.source.where());
 		}
 
-		for (StoredData data : storedData)
-		{
-			log(LogLevel.VERBOSE, "Allocating " + data.data.length + " bytes for data \"" + data.dataSymbol + "\"");
+		return code;
+	}
+
+	/* Add a machine instruction, checking its operands against what the CPU accepts */
+	private static void emit(ArrayList<Instruction> code, Block block, String mnemonic, Argument... args)
+	{
+		String form = MACHINE_FORMS.get(mnemonic);
+		int opcode = MACHINE_OPCODES.get(mnemonic);
+
+		if (args.length != form.length())
+			error(mnemonic + " takes " + form.length() + " operand(s), not " + args.length + ", at "
+					+ block.source.where());
 
-			for (Byte b : data.data)
-				outputBuffer.put(b);
+		for (int i = 0; i < args.length; i++)
+		{
+			char kind = form.charAt(i);
+			if (kind == 'r' && !args[i].isRegister())
+			{
+				/* Not fatal, as older programs depend on this assembling. The CPU will see register 0xFF. */
+				log(LogLevel.DEFAULT, "WARNING: " + mnemonic + " expects a register, not \"" + args[i] + "\", at "
+						+ block.source.where());
+				args[i] = new Argument(0xFF);
+			} else if (kind == 'i' && args[i].isRegister())
+				error(mnemonic + " expects a value, not register " + args[i] + ", at " + block.source.where());
+			else if (kind == 'x' && !args[i].isRegister())
+				opcode |= 0x80;
 		}
 
-		log(LogLevel.VERBOSE, "Fifth pass completed, flat binary generated.");
+		code.add(new Instruction(mnemonic, opcode, args));
+	}
 
-		if(logLevel == LogLevel.VERBOSE || printTime)
-			log(LogLevel.DEFAULT, "Assembly took " + (System.currentTimeMillis() - startTimeMs) + " milliseconds. (" +
-					((System.currentTimeMillis() - startTimeMs) / 1000.0f) + " seconds)");
+	/* Load a jump target into H and L */
+	private static void loadTarget(ArrayList<Instruction> code, Block block, Argument[] target, Argument h, Argument l)
+	{
+		if (target[0].isRegister())
+		{
+			emit(code, block, "MW", target[0], h);
+			emit(code, block, "MW", target[1], l);
+		} else
+			emit(code, block, "LDA", target[0], target[1]);
+	}
+
+	/* The address at the end of an instruction's arguments: two registers, two bytes, or one 16 bit number */
+	private static Argument[] target(Block block, ArrayList<Argument> args, int start)
+	{
+		int count = args.size() - start;
+		if (count == 1 && !args.get(start).isRegister())
+		{
+			Value value = args.get(start).value;
+			if (value.kind != Value.CONSTANT)
+				error("Expected an address at " + block.source.where());
+
+			return new Argument[] {
+					new Argument(new Value(Value.HIGH, Value.CONSTANT, value.constant, null, block)),
+					new Argument(new Value(Value.LOW, Value.CONSTANT, value.constant, null, block)) };
+		} else if (count == 2 && args.get(start).isRegister() == args.get(start + 1).isRegister())
+			return new Argument[] { args.get(start), args.get(start + 1) };
+
+		error("Expected an address at " + block.source.where());
+		return null;
+	}
+
+	private static void expectCount(Block block, ArrayList<Argument> args, int count)
+	{
+		if (args.size() != count)
+			error(block.source.mnemonic + " takes " + count + " operand(s), not " + args.size() + ", at "
+					+ block.source.where());
+	}
+
+	private static void expectRegister(Block block, ArrayList<Argument> args, int index)
+	{
+		if (args.size() <= index || !args.get(index).isRegister())
+			error(block.source.mnemonic + " expects a register at " + block.source.where());
+	}
 
-		return outputBuffer.array();
+	private static Argument constant(Block block, int value)
+	{
+		return new Argument(new Value(Value.BYTE, Value.CONSTANT, value, null, block));
 	}
 
-	private static byte getRegisterCode(String reg)
+	static byte getRegisterCode(String reg)
 	{
 		if (reg.equalsIgnoreCase("A"))
 			return (byte) REGISTER_A;
@@ -1188,11 +1058,289 @@ public class Assembler
 		}
 	}
 
-	/* Data stored with db, dw, and resb */
-	private static class StoredData
+	static String getRegisterName(int code)
 	{
-		public String dataSymbol;
-		public int memoryLocation;
-		public byte[] data;
+		switch (code)
+		{
+			case REGISTER_A:
+				return "A";
+			case REGISTER_B:
+				return "B";
+			case REGISTER_C:
+				return "C";
+			case REGISTER_D:
+				return "D";
+			case REGISTER_E:
+				return "E";
+			case REGISTER_F:
+				return "F";
+			case REGISTER_H:
+				return "H";
+			case REGISTER_L:
+				return "L";
+			default:
+				return "0X" + Integer.toHexString(code).toUpperCase();
+		}
+	}
+
+	/* An instruction from the source, the machine instructions it expands to, and where they end up */
+	private static class Block
+	{
+		public final Statement source;
+		public final int chunk;
+		public ArrayList<Instruction> code;
+		public int offset;
+		public int size;
+
+		/* Only set once the program has been linked, for the dumps */
+		public int address;
+
+		public Block(Statement source, int chunk)
+		{
+			this.source = source;
+			this.chunk = chunk;
+		}
+	}
+
+	/* One source file, and its object once it has been read back from the cache or assembled */
+	private static class Module
+	{
+		public final File file;
+		public String key;
+		public List<Statement> statements;
+		public ObjectModule object;
+
+		/* The instructions, if it was assembled this time */
+		public ArrayList<Block> blocks;
+
+		public Module(File file)
+		{
+			this.file = file;
+		}
+	}
+
+	/* Everything known about the program being built */
+	private static class Build
+	{
+		/* Modules in the order they were first included, and where that was */
+		public final ArrayList<Module> modules = new ArrayList<>();
+		public final HashMap<String, String> included = new HashMap<>();
+
+		/* The files being loaded right now, outermost first */
+		public final ArrayList<File> includeStack = new ArrayList<>();
+
+		/* Every chunk in the order it goes into the binary, as module and chunk index */
+		public final ArrayList<Module> placedModules = new ArrayList<>();
+		public final ArrayList<Integer> placedChunks = new ArrayList<>();
+
+		/* Constants defined with #define, and where every symbol was defined */
+		public final HashMap<String, Constant> constants = new HashMap<>();
+		public final HashMap<String, String> definitions = new HashMap<>();
+	}
+
+	/* The value of a #define, and the same as text to tell when it has changed */
+	private static class Constant
+	{
+		public final List<Operand> operands;
+		public final String value;
+
+		public Constant(List<Operand> operands)
+		{
+			this.operands = operands;
+
+			StringBuilder sb = new StringBuilder();
+			for (Operand operand : operands)
+				sb.append(sb.length() == 0 ? "" : " ").append(operand);
+			this.value = sb.toString();
+		}
+	}
+
+	/* One operand of a machine instruction: a register code or a byte */
+	private static class Argument
+	{
+		public final int register;
+		public final Value value;
+
+		public Argument(int register)
+		{
+			this.register = register;
+			this.value = null;
+		}
+
+		public Argument(Value value)
+		{
+			this.register = 0xFF;
+			this.value = value;
+		}
+
+		public boolean isRegister()
+		{
+			return value == null;
+		}
+
+		public int resolve(HashMap<String, Integer> addresses)
+		{
+			return isRegister() ? register : value.resolve(addresses);
+		}
+
+		@Override
+		public String toString()
+		{
+			return isRegister() ? getRegisterName(register) : value.toString();
+		}
+	}
+
+	/* A byte that may not be known until the program has been laid out */
+	private static class Value
+	{
+		/* Which part of the number is used */
+		public static final int BYTE = 0;
+		public static final int HIGH = 1;
+		public static final int LOW = 2;
+
+		/* What the number is */
+		public static final int CONSTANT = 0;
+		public static final int SYMBOL = 1;
+		public static final int HERE = 2;
+		public static final int NEXT = 3;
+
+		public final int part;
+		public final int kind;
+		public final int constant;
+		public final String symbol;
+
+		/* The instruction this byte belongs to, for $ and return addresses */
+		public final Block block;
+
+		public Value(int part, int kind, int constant, String symbol, Block block)
+		{
+			this.part = part;
+			this.kind = kind;
+			this.constant = constant;
+			this.symbol = symbol;
+			this.block = block;
+		}
+
+		public int resolve(HashMap<String, Integer> addresses)
+		{
+			int number;
+			switch (kind)
+			{
+				case SYMBOL:
+					number = addresses.get(symbol);
+					break;
+				case HERE:
+					number = block.address;
+					break;
+				case NEXT:
+					number = block.address + block.size;
+					break;
+				default:
+					number = constant;
+			}
+
+			return part == HIGH ? (number >> 8) & 0xFF : number & 0xFF;
+		}
+
+		@Override
+		public String toString()
+		{
+			String number;
+			switch (kind)
+			{
+				case SYMBOL:
+					number = symbol;
+					break;
+				case HERE:
+					number = "$";
+					break;
+				case NEXT:
+					number = "$NEXT";
+					break;
+				default:
+					number = String.format("0X%02X", constant);
+			}
+
+			return part == HIGH ? number + ".H" : part == LOW ? number + ".L" : number;
+		}
+	}
+
+	/* A single instruction that the CPU understands */
+	private static class Instruction
+	{
+		public final String mnemonic;
+		public final int opcode;
+		public final Argument[] args;
+
+		public Instruction(String mnemonic, int opcode, Argument[] args)
+		{
+			this.mnemonic = mnemonic;
+			this.opcode = opcode;
+			this.args = args;
+		}
+
+		/* LWA and SWA keep their register in the opcode */
+		private boolean hasRegisterInOpcode()
+		{
+			return mnemonic.equals("LWA") || mnemonic.equals("SWA");
+		}
+
+		public int getSize()
+		{
+			return hasRegisterInOpcode() ? args.length : args.length + 1;
+		}
+
+		/* Write the instruction into output at position, and return the position after it. Bytes that depend on
+		 * addresses are left as zero, with a relocation for the linker.
+		 */
+		public int encode(byte[] output, int position, Block block, List<ObjectModule.Relocation> relocations)
+		{
+			int first = 0;
+			if (hasRegisterInOpcode())
+			{
+				output[position++] = (byte) (opcode | ((args[0].register & 0x07) << 4));
+				first = 1;
+			} else
+				output[position++] = (byte) opcode;
+
+			for (int i = first; i < args.length; i++)
+			{
+				Value value = args[i].value;
+				if (value == null || value.kind == Value.CONSTANT)
+				{
+					output[position++] = (byte) args[i].resolve(null);
+					continue;
+				}
+
+				ObjectModule.Relocation relocation = new ObjectModule.Relocation();
+				relocation.chunk = block.chunk;
+				relocation.offset = position++;
+				relocation.part = value.part == Value.HIGH ? ObjectModule.HIGH : ObjectModule.LOW;
+				relocation.symbol = value.symbol;
+				relocation.targetChunk = block.chunk;
+				relocation.targetOffset = value.kind == Value.NEXT ? block.offset + block.size : block.offset;
+				relocation.where = block.source.where();
+				relocations.add(relocation);
+			}
+
+			return position;
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder(mnemonic);
+			for (Argument arg : args)
+				sb.append(' ').append(arg);
+			return sb.toString();
+		}
+
+		public String toString(HashMap<String, Integer> addresses)
+		{
+			StringBuilder sb = new StringBuilder(mnemonic);
+			for (Argument arg : args)
+				sb.append(arg.isRegister() ? " " + arg : String.format(" 0X%02X", arg.resolve(addresses)));
+			return sb.toString();
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,255 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/* Turns a source file into a list of statements. Every line is scanned exactly once: comments are dropped, everything
+ * outside of quotes is made upper case, and the tokens are sorted into instructions and assembler commands. Includes
+ * become statements of their own; following them is up to the assembler.
+ */
+public class Lexer
+{
+	private final List<Statement> statements = new ArrayList<>();
+
+	/* Lex a single file */
+	public static List<Statement> lex(File file)
+	{
+		Lexer lexer = new Lexer();
+
+		try
+		{
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null)
+				lexer.lexLine(file, ++lineNumber, line);
+			reader.close();
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			Assembler.error("Error reading file " + file.getPath());
+		}
+
+		return lexer.statements;
+	}
+
+	private void lexLine(File source, int lineNumber, String line)
+	{
+		String file = source.getPath();
+		List<String> tokens = tokenize(line, file + ":" + lineNumber);
+		if (tokens.isEmpty())
+			return;
+
+		String first = tokens.get(0);
+		if (!first.startsWith("#"))
+		{
+			/* This is an instruction */
+			Statement statement = new Statement(Statement.Kind.INSTRUCTION, file, lineNumber);
+			statement.mnemonic = first;
+			statement.operands = parseOperands(statement, tokens, 1);
+			statements.add(statement);
+			return;
+		}
+
+		String command = first.substring(1);
+		String where = file + ":" + lineNumber;
+
+		if (command.endsWith(":"))
+		{
+			/* This is a procedure. Tie it to the next instruction. */
+			if (tokens.size() != 1 || command.length() == 1)
+				Assembler.error("Invalid procedure symbol at " + where);
+
+			Statement statement = new Statement(Statement.Kind.LABEL, file, lineNumber);
+			statement.symbol = command.substring(0, command.length() - 1);
+			statements.add(statement);
+		} else if (command.equals("DB") || command.equals("DW"))
+		{
+			if (tokens.size() < 3)
+				Assembler.error("Expected a symbol and data after " + command + " at " + where);
+
+			Statement statement = new Statement(Statement.Kind.DATA, file, lineNumber);
+			statement.symbol = tokens.get(1);
+			statement.data = parseData(tokens, 2, where);
+			statements.add(statement);
+		} else if (command.equals("RESB"))
+		{
+			if (tokens.size() != 3)
+				Assembler.error("Expected a symbol and a number of bytes after RESB at " + where);
+
+			Statement statement = new Statement(Statement.Kind.DATA, file, lineNumber);
+			statement.symbol = tokens.get(1);
+			statement.data = new byte[parseNumber(tokens.get(2), "Invalid number of bytes to reserve at " + where)];
+			statements.add(statement);
+		} else if (command.equals("ORG"))
+		{
+			if (tokens.size() != 2)
+				Assembler.error("Expected an address after ORG at " + where);
+
+			Statement statement = new Statement(Statement.Kind.ORG, file, lineNumber);
+			statement.origin = parseNumber(tokens.get(1), "Invalid origin at " + where);
+			statements.add(statement);
+		} else if (command.equals("INCLUDE"))
+		{
+			if (tokens.size() != 2)
+				Assembler.error("Expected a path after INCLUDE at " + where);
+
+			Statement statement = new Statement(Statement.Kind.INCLUDE, file, lineNumber);
+			statement.path = stripQuotes(tokens.get(1));
+			statements.add(statement);
+		} else if (command.equals("DEFINE"))
+		{
+			if (tokens.size() < 3)
+				Assembler.error("Invalid constant definition at " + where);
+
+			Statement statement = new Statement(Statement.Kind.DEFINE, file, lineNumber);
+			statement.symbol = tokens.get(1);
+			statement.operands = parseOperands(statement, tokens, 2);
+			statements.add(statement);
+		} else
+			Assembler.error("Unrecognized assembler command \"" + command + "\" at " + where);
+	}
+
+	/* Split a line up into tokens. Spaces, tabs and commas separate tokens, a semicolon starts a comment, and quoted
+	 * strings are kept whole with their quotes so the data parser knows what they are. Everything else is upper case.
+	 */
+	static List<String> tokenize(String line, String where)
+	{
+		List<String> tokens = new ArrayList<>();
+		StringBuilder token = new StringBuilder();
+
+		int i = 0;
+		int length = line.length();
+		while (i < length)
+		{
+			char c = line.charAt(i);
+
+			if (c == ';')
+				break;
+
+			if (c == ' ' || c == '\t' || c == ',')
+			{
+				i++;
+				continue;
+			}
+
+			token.setLength(0);
+			if (c == '\'' || c == '\"')
+			{
+				/* A quoted string, ending at the first matching quote that is not escaped */
+				token.append(c);
+				i++;
+				boolean closed = false;
+				while (i < length)
+				{
+					char s = line.charAt(i++);
+					token.append(s);
+					if (s == '\\' && i < length)
+						token.append(line.charAt(i++));
+					else if (s == c)
+					{
+						closed = true;
+						break;
+					}
+				}
+
+				if (!closed)
+					Assembler.error("Unterminated string at " + where);
+			} else
+			{
+				while (i < length)
+				{
+					char s = line.charAt(i);
+					if (s == ' ' || s == '\t' || s == ',' || s == ';')
+						break;
+					token.append(Character.toUpperCase(s));
+					i++;
+				}
+			}
+
+			tokens.add(token.toString());
+		}
+
+		return tokens;
+	}
+
+	private static List<Operand> parseOperands(Statement statement, List<String> tokens, int start)
+	{
+		List<Operand> operands = new ArrayList<>(tokens.size() - start);
+		for (int i = start; i < tokens.size(); i++)
+		{
+			Operand operand = Operand.parse(tokens.get(i));
+			if (operand == null)
+				Assembler.error("Invalid number \"" + tokens.get(i) + "\" at " + statement.where());
+			operands.add(operand);
+		}
+
+		return operands;
+	}
+
+	/* Convert the pieces of a db into bytes. 'Characters' are copied as they are, "strings" get a null byte on the end,
+	 * and anything else is a single hexadecimal (0x prefixed) or decimal byte.
+	 */
+	private static byte[] parseData(List<String> tokens, int start, String where)
+	{
+		ArrayList<Byte> dataBytes = new ArrayList<>();
+
+		for (int i = start; i < tokens.size(); i++)
+		{
+			String piece = tokens.get(i);
+			char first = piece.charAt(0);
+
+			if (first == '\'' || first == '\"')
+			{
+				for (int j = 1; j < piece.length() - 1; j++)
+				{
+					char c = piece.charAt(j);
+					if (c == '\\')
+					{
+						/* This is an escape code. Start by making sure it is not at the end of the string. */
+						if (j + 2 == piece.length())
+							Assembler.error("Escape sequence at string end at " + where);
+
+						dataBytes.add(Assembler.getAsciiEscapedValue(piece.charAt(++j)));
+					} else
+						dataBytes.add(Assembler.getAsciiValue(c));
+				}
+
+				/* Add the null terminating byte to strings */
+				if (first == '\"')
+					dataBytes.add((byte) 0x00);
+			} else
+				dataBytes.add((byte) parseNumber(piece, "Invalid db \"" + piece + "\" at " + where));
+		}
+
+		byte[] data = new byte[dataBytes.size()];
+		for (int i = 0; i < data.length; i++)
+			data[i] = dataBytes.get(i);
+		return data;
+	}
+
+	/* A hexadecimal (0x prefixed) or decimal number */
+	private static int parseNumber(String token, String err)
+	{
+		try
+		{
+			if (token.startsWith("0X"))
+				return Integer.parseInt(token.substring(2), 16);
+			return Integer.parseInt(token);
+		} catch (NumberFormatException e)
+		{
+			Assembler.error(err);
+			return 0;
+		}
+	}
+
+	private static String stripQuotes(String token)
+	{
+		if (token.length() >= 2 && (token.charAt(0) == '\"' || token.charAt(0) == '\''))
+			return token.substring(1, token.length() - 1);
+		return token;
+	}
+}
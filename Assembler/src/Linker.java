@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/* Joins relocatable objects into one flat binary. Chunks are placed in the order they are given, all of the code
+ * first and then all of the data, starting at the last #org seen. Then every relocation is filled in.
+ */
+public class Linker
+{
+	/* The chunks in the order they are placed, as object and chunk index */
+	private final List<ObjectModule> placedObjects = new ArrayList<>();
+	private final List<Integer> placedChunks = new ArrayList<>();
+
+	/* Every object placed, and where each of its chunks' code and data ended up */
+	private final List<ObjectModule> objects = new ArrayList<>();
+	private final HashMap<ObjectModule, int[]> codeAddresses = new HashMap<>();
+	private final HashMap<ObjectModule, int[]> dataAddresses = new HashMap<>();
+
+	/* Procedures and data by name, and where they were defined */
+	private final HashMap<String, Integer> symbolAddresses = new HashMap<>();
+	private final HashMap<String, String> symbolDefinitions = new HashMap<>();
+
+	/* The default origin is at the start of the RAM */
+	private int org = 0x00008000;
+
+	public void place(ObjectModule object, int chunk)
+	{
+		if (!codeAddresses.containsKey(object))
+		{
+			objects.add(object);
+			codeAddresses.put(object, new int[object.chunks.size()]);
+			dataAddresses.put(object, new int[object.chunks.size()]);
+		}
+
+		placedObjects.add(object);
+		placedChunks.add(chunk);
+	}
+
+	public byte[] link()
+	{
+		for (int i = 0; i < placedObjects.size(); i++)
+		{
+			int origin = getChunk(i).origin;
+			if (origin != -1)
+				org = origin;
+		}
+
+		/* Lay out the code, then the data after it */
+		int address = org;
+		for (int i = 0; i < placedObjects.size(); i++)
+		{
+			codeAddresses.get(placedObjects.get(i))[placedChunks.get(i)] = address;
+			address += getChunk(i).code.length;
+		}
+
+		for (int i = 0; i < placedObjects.size(); i++)
+		{
+			dataAddresses.get(placedObjects.get(i))[placedChunks.get(i)] = address;
+			address += getChunk(i).data.length;
+		}
+
+		for (ObjectModule object : objects)
+		{
+			for (ObjectModule.Symbol symbol : object.symbols)
+			{
+				String previous = symbolDefinitions.put(symbol.name, symbol.where);
+				if (previous != null)
+					Assembler.error("Symbol \"" + symbol.name + "\" at " + symbol.where + " was already defined at "
+							+ previous);
+
+				int[] bases = symbol.isData ? dataAddresses.get(object) : codeAddresses.get(object);
+				symbolAddresses.put(symbol.name, bases[symbol.chunk] + symbol.offset);
+			}
+		}
+
+		byte[] output = new byte[address - org];
+		for (int i = 0; i < placedObjects.size(); i++)
+		{
+			ObjectModule.Chunk chunk = getChunk(i);
+			int chunkIndex = placedChunks.get(i);
+			System.arraycopy(chunk.code, 0, output, codeAddresses.get(placedObjects.get(i))[chunkIndex] - org,
+					chunk.code.length);
+			System.arraycopy(chunk.data, 0, output, dataAddresses.get(placedObjects.get(i))[chunkIndex] - org,
+					chunk.data.length);
+		}
+
+		for (ObjectModule object : objects)
+		{
+			int[] bases = codeAddresses.get(object);
+			for (ObjectModule.Relocation relocation : object.relocations)
+			{
+				int target;
+				if (relocation.symbol == null)
+					target = bases[relocation.targetChunk] + relocation.targetOffset;
+				else
+				{
+					Integer symbolAddress = symbolAddresses.get(relocation.symbol);
+					if (symbolAddress == null)
+						Assembler.error("Invalid symbol \"" + relocation.symbol + "\" at " + relocation.where);
+					target = symbolAddress;
+				}
+
+				int position = bases[relocation.chunk] + relocation.offset - org;
+				output[position] = (byte) (relocation.part == ObjectModule.HIGH ? target >> 8 : target);
+			}
+		}
+
+		return output;
+	}
+
+	/* Where a chunk's code was placed. Only valid after link. */
+	public int getCodeAddress(ObjectModule object, int chunk)
+	{
+		return codeAddresses.get(object)[chunk];
+	}
+
+	public HashMap<String, Integer> getSymbolAddresses()
+	{
+		return symbolAddresses;
+	}
+
+	private ObjectModule.Chunk getChunk(int placement)
+	{
+		return placedObjects.get(placement).chunks.get(placedChunks.get(placement));
+	}
+}
@@ -0,0 +1,242 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/* A relocatable object: one source file assembled on its own. The code and data are split into chunks wherever the
+ * file includes another, so the linker can place everything in the same order as if the includes had been pasted in.
+ * Anything that depends on where the chunks end up - procedures, data, $ and return addresses - is left as a
+ * relocation for the linker to fill in.
+ */
+public class ObjectModule
+{
+	private static final int MAGIC = 0x4A4F424A; /* "JOBJ" */
+	public static final int VERSION = 1;
+
+	/* Which byte of an address a relocation writes */
+	public static final int HIGH = 1;
+	public static final int LOW = 2;
+
+	/* The code and data from one stretch of the source, and the file included after it (if any) */
+	public static class Chunk
+	{
+		public byte[] code = new byte[0];
+		public byte[] data = new byte[0];
+
+		/* The last #org in this chunk, or -1 */
+		public int origin = -1;
+
+		public String include;
+		public String includeWhere;
+	}
+
+	/* A procedure or piece of data, at an offset into a chunk's code or data */
+	public static class Symbol
+	{
+		public String name;
+		public boolean isData;
+		public int chunk;
+		public int offset;
+		public String where;
+	}
+
+	/* A byte of code to fill in once the chunks have been placed: part of a symbol's address, or of an address in
+	 * this object when symbol is null.
+	 */
+	public static class Relocation
+	{
+		public int chunk;
+		public int offset;
+		public int part;
+		public String symbol;
+		public int targetChunk;
+		public int targetOffset;
+		public String where;
+	}
+
+	/* A #define, kept so that other modules can be assembled without reading this one's source */
+	public static class Define
+	{
+		public String name;
+		public String value;
+		public String where;
+	}
+
+	public String file;
+	public final List<Chunk> chunks = new ArrayList<>();
+	public final List<Symbol> symbols = new ArrayList<>();
+	public final List<Relocation> relocations = new ArrayList<>();
+	public final List<Define> defines = new ArrayList<>();
+
+	/* The value of every constant this object used. If any of them change, it has to be assembled again. */
+	public final HashMap<String, String> constantsUsed = new HashMap<>();
+
+	public ObjectModule(String file)
+	{
+		this.file = file;
+	}
+
+	/* Written to a temporary file next to the output and then renamed over it, so a build running at the same time
+	 * never reads a half-written object
+	 */
+	public void write(File output) throws IOException
+	{
+		File temp = File.createTempFile(output.getName(), ".tmp", output.getAbsoluteFile().getParentFile());
+
+		try
+		{
+			writeTo(temp);
+			Files.move(temp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally
+		{
+			temp.delete();
+		}
+	}
+
+	private void writeTo(File output) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(file);
+
+		out.writeInt(chunks.size());
+		for (Chunk chunk : chunks)
+		{
+			out.writeInt(chunk.code.length);
+			out.write(chunk.code);
+			out.writeInt(chunk.data.length);
+			out.write(chunk.data);
+			out.writeInt(chunk.origin);
+			out.writeBoolean(chunk.include != null);
+			if (chunk.include != null)
+			{
+				out.writeUTF(chunk.include);
+				out.writeUTF(chunk.includeWhere);
+			}
+		}
+
+		out.writeInt(symbols.size());
+		for (Symbol symbol : symbols)
+		{
+			out.writeUTF(symbol.name);
+			out.writeBoolean(symbol.isData);
+			out.writeInt(symbol.chunk);
+			out.writeInt(symbol.offset);
+			out.writeUTF(symbol.where);
+		}
+
+		out.writeInt(relocations.size());
+		for (Relocation relocation : relocations)
+		{
+			out.writeInt(relocation.chunk);
+			out.writeInt(relocation.offset);
+			out.writeByte(relocation.part);
+			out.writeBoolean(relocation.symbol != null);
+			if (relocation.symbol != null)
+				out.writeUTF(relocation.symbol);
+			out.writeInt(relocation.targetChunk);
+			out.writeInt(relocation.targetOffset);
+			out.writeUTF(relocation.where);
+		}
+
+		out.writeInt(defines.size());
+		for (Define define : defines)
+		{
+			out.writeUTF(define.name);
+			out.writeUTF(define.value);
+			out.writeUTF(define.where);
+		}
+
+		out.writeInt(constantsUsed.size());
+		for (String name : constantsUsed.keySet())
+		{
+			out.writeUTF(name);
+			out.writeUTF(constantsUsed.get(name));
+		}
+
+		out.close();
+	}
+
+	/* Read an object back, or return null if it is missing, damaged or from another version of the assembler */
+	public static ObjectModule read(File input)
+	{
+		if (!input.exists())
+			return null;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(input))))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+
+			ObjectModule object = new ObjectModule(in.readUTF());
+
+			int chunkCount = in.readInt();
+			for (int i = 0; i < chunkCount; i++)
+			{
+				Chunk chunk = new Chunk();
+				chunk.code = new byte[in.readInt()];
+				in.readFully(chunk.code);
+				chunk.data = new byte[in.readInt()];
+				in.readFully(chunk.data);
+				chunk.origin = in.readInt();
+				if (in.readBoolean())
+				{
+					chunk.include = in.readUTF();
+					chunk.includeWhere = in.readUTF();
+				}
+				object.chunks.add(chunk);
+			}
+
+			int symbolCount = in.readInt();
+			for (int i = 0; i < symbolCount; i++)
+			{
+				Symbol symbol = new Symbol();
+				symbol.name = in.readUTF();
+				symbol.isData = in.readBoolean();
+				symbol.chunk = in.readInt();
+				symbol.offset = in.readInt();
+				symbol.where = in.readUTF();
+				object.symbols.add(symbol);
+			}
+
+			int relocationCount = in.readInt();
+			for (int i = 0; i < relocationCount; i++)
+			{
+				Relocation relocation = new Relocation();
+				relocation.chunk = in.readInt();
+				relocation.offset = in.readInt();
+				relocation.part = in.readByte();
+				if (in.readBoolean())
+					relocation.symbol = in.readUTF();
+				relocation.targetChunk = in.readInt();
+				relocation.targetOffset = in.readInt();
+				relocation.where = in.readUTF();
+				object.relocations.add(relocation);
+			}
+
+			int defineCount = in.readInt();
+			for (int i = 0; i < defineCount; i++)
+			{
+				Define define = new Define();
+				define.name = in.readUTF();
+				define.value = in.readUTF();
+				define.where = in.readUTF();
+				object.defines.add(define);
+			}
+
+			int usedCount = in.readInt();
+			for (int i = 0; i < usedCount; i++)
+				object.constantsUsed.put(in.readUTF(), in.readUTF());
+
+			return object;
+		} catch (IOException e)
+		{
+			return null;
+		}
+	}
+}
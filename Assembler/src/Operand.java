@@ -0,0 +1,85 @@
+/* One operand of an instruction or #define, as it was written. Symbols are only looked up once the whole program has
+ * been read, as procedures and data may be used before they are defined.
+ */
+public class Operand
+{
+	public enum Kind
+	{
+		/* A, B, C, D, E, F, H or L */
+		REGISTER,
+		/* A hexadecimal number, 0x prefixed */
+		NUMBER,
+		/* A procedure, stored data or constant */
+		SYMBOL,
+		/* SYMBOL.H, the high byte of an address */
+		SYMBOL_HIGH,
+		/* SYMBOL.L, the low byte of an address */
+		SYMBOL_LOW,
+		/* $, the address of the current instruction */
+		HERE
+	}
+
+	public final Kind kind;
+
+	/* The register code or number, for REGISTER and NUMBER */
+	public final int value;
+
+	/* The symbol name without any .H or .L, for the SYMBOL kinds */
+	public final String symbol;
+
+	private Operand(Kind kind, int value, String symbol)
+	{
+		this.kind = kind;
+		this.value = value;
+		this.symbol = symbol;
+	}
+
+	/* Make an operand out of an upper case token, or return null if it is not a valid number */
+	public static Operand parse(String token)
+	{
+		if (token.equals("$"))
+			return new Operand(Kind.HERE, 0, null);
+
+		int register = Assembler.getRegisterCode(token) & 0xFF;
+		if (register != 0xFF)
+			return new Operand(Kind.REGISTER, register, null);
+
+		if (token.startsWith("0X"))
+		{
+			try
+			{
+				return new Operand(Kind.NUMBER, Integer.parseInt(token.substring(2), 16), null);
+			} catch (NumberFormatException e)
+			{
+				return null;
+			}
+		}
+
+		if (token.endsWith(".H"))
+			return new Operand(Kind.SYMBOL_HIGH, 0, token.substring(0, token.length() - 2));
+		if (token.endsWith(".L"))
+			return new Operand(Kind.SYMBOL_LOW, 0, token.substring(0, token.length() - 2));
+
+		return new Operand(Kind.SYMBOL, 0, token);
+	}
+
+	@Override
+	public String toString()
+	{
+		switch (kind)
+		{
+			case REGISTER:
+				return Assembler.getRegisterName(value);
+			case NUMBER:
+				return "0X" + Integer.toHexString(value).toUpperCase();
+			case SYMBOL_HIGH:
+				return symbol + ".H";
+			case SYMBOL_LOW:
+				return symbol + ".L";
+			case HERE:
+				return "$";
+			default:
+				return symbol;
+		}
+	}
+}
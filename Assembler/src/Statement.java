@@ -0,0 +1,94 @@
+import java.util.List;
+
+/* One line of source that does something: an instruction, a procedure label or an assembler command. Comments and
+ * blank lines are gone.
+ */
+public class Statement
+{
+	public enum Kind
+	{
+		/* mnemonic operands... */
+		INSTRUCTION,
+		/* #symbol: - ties symbol to the next instruction */
+		LABEL,
+		/* #db, #dw and #resb - data placed after the code, named symbol */
+		DATA,
+		/* #org value */
+		ORG,
+		/* #define symbol operands... */
+		DEFINE,
+		/* #include "path" */
+		INCLUDE
+	}
+
+	public final Kind kind;
+
+	/* Where the statement came from, for error messages */
+	public final String file;
+	public final int line;
+
+	/* The upper case mnemonic, for INSTRUCTION */
+	public String mnemonic;
+
+	/* Operands of an INSTRUCTION, or the value of a DEFINE */
+	public List<Operand> operands;
+
+	/* The name defined by a LABEL, DATA or DEFINE */
+	public String symbol;
+
+	/* The bytes of DATA */
+	public byte[] data;
+
+	/* The origin set by ORG */
+	public int origin;
+
+	/* The path given to INCLUDE, as it was written */
+	public String path;
+
+	public Statement(Kind kind, String file, int line)
+	{
+		this.kind = kind;
+		this.file = file;
+		this.line = line;
+	}
+
+	/* file:line, for error messages */
+	public String where()
+	{
+		return file + ":" + line;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+
+		switch (kind)
+		{
+			case INSTRUCTION:
+				sb.append(mnemonic);
+				for (Operand operand : operands)
+					sb.append(' ').append(operand);
+				break;
+			case LABEL:
+				sb.append('#').append(symbol).append(':');
+				break;
+			case DATA:
+				sb.append("#DB ").append(symbol).append(" (").append(data.length).append(" bytes)");
+				break;
+			case ORG:
+				sb.append("#ORG 0X").append(String.format("%04X", origin));
+				break;
+			case DEFINE:
+				sb.append("#DEFINE ").append(symbol);
+				for (Operand operand : operands)
+					sb.append(' ').append(operand);
+				break;
+			case INCLUDE:
+				sb.append("#INCLUDE \"").append(path).append('\"');
+				break;
+		}
+
+		return sb.toString();
+	}
+}
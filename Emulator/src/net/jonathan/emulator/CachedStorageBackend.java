@@ -0,0 +1,165 @@
+package net.jonathan.emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Fallback storage for images that cannot be memory-mapped. Reads and writes go through a write-back LRU cache of
+ * block-aligned pieces of the image, so the channel only sees one positional read or write per block. Access is
+ * synchronized because a read-only image may be shared by several machines.
+ */
+public class CachedStorageBackend implements StorageBackend
+{
+
+	public static final int DEFAULT_CACHE_BLOCKS = 1024;
+
+	private static class Block
+	{
+		private final byte[] data = new byte[StorageController.BLOCK_SIZE];
+		private boolean dirty;
+	}
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long size;
+	private final boolean readOnly;
+	private final int cacheBlocks;
+
+	/* Access-ordered, so iteration starts at the least recently used block */
+	private final LinkedHashMap<Long, Block> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+	public CachedStorageBackend(File storageFile, boolean readOnly) throws IOException
+	{
+		this(storageFile, readOnly, DEFAULT_CACHE_BLOCKS);
+	}
+
+	public CachedStorageBackend(File storageFile, boolean readOnly, int cacheBlocks) throws IOException
+	{
+		this.readOnly = readOnly;
+		this.cacheBlocks = Math.max(1, cacheBlocks);
+
+		file = new RandomAccessFile(storageFile, readOnly ? "r" : "rw");
+		channel = file.getChannel();
+		size = file.length();
+	}
+
+	@Override
+	public long getSize()
+	{
+		return size;
+	}
+
+	@Override
+	public synchronized void read(long address, byte[] buffer, int offset, int length) throws IOException
+	{
+		while(length > 0)
+		{
+			int blockOffset = (int) (address % StorageController.BLOCK_SIZE);
+			int count = Math.min(length, StorageController.BLOCK_SIZE - blockOffset);
+
+			if(address >= size)
+				for(int i = 0; i < count; i++)
+					buffer[offset + i] = 0;
+			else
+				System.arraycopy(getBlock(address / StorageController.BLOCK_SIZE).data, blockOffset, buffer, offset, count);
+
+			address += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	@Override
+	public synchronized void write(long address, byte[] buffer, int offset, int length) throws IOException
+	{
+		if(readOnly)
+			throw new IOException("Storage is read-only");
+
+		length = (int) Math.max(0, Math.min(length, size - address));
+
+		while(length > 0)
+		{
+			int blockOffset = (int) (address % StorageController.BLOCK_SIZE);
+			int count = Math.min(length, StorageController.BLOCK_SIZE - blockOffset);
+
+			Block block = getBlock(address / StorageController.BLOCK_SIZE);
+			System.arraycopy(buffer, offset, block.data, blockOffset, count);
+			block.dirty = true;
+
+			address += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	private Block getBlock(long index) throws IOException
+	{
+		Block block = cache.get(index);
+		if(block != null)
+			return block;
+
+		block = new Block();
+		ByteBuffer view = ByteBuffer.wrap(block.data);
+		long position = index * StorageController.BLOCK_SIZE;
+
+		/* The last block of an image may be partial; the rest of it stays zeroed */
+		while(view.hasRemaining() && position + view.position() < size)
+			if(channel.read(view, position + view.position()) < 0)
+				break;
+
+		cache.put(index, block);
+
+		if(cache.size() > cacheBlocks)
+		{
+			Iterator<Map.Entry<Long, Block>> eldest = cache.entrySet().iterator();
+			Map.Entry<Long, Block> entry = eldest.next();
+			writeBack(entry.getKey(), entry.getValue());
+			eldest.remove();
+		}
+
+		return block;
+	}
+
+	private void writeBack(long index, Block block) throws IOException
+	{
+		if(!block.dirty)
+			return;
+
+		long position = index * StorageController.BLOCK_SIZE;
+		ByteBuffer view = ByteBuffer.wrap(block.data, 0, (int) Math.min(StorageController.BLOCK_SIZE, size - position));
+
+		while(view.hasRemaining())
+			channel.write(view, position + view.position());
+
+		block.dirty = false;
+	}
+
+	@Override
+	public synchronized void flush() throws IOException
+	{
+		boolean wroteAny = false;
+
+		for(Map.Entry<Long, Block> entry : cache.entrySet())
+			if(entry.getValue().dirty)
+			{
+				writeBack(entry.getKey(), entry.getValue());
+				wroteAny = true;
+			}
+
+		if(wroteAny)
+			channel.force(false);
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		flush();
+		file.close();
+	}
+
+}
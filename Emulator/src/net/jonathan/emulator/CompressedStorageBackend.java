@@ -0,0 +1,516 @@
+package net.jonathan.emulator;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* Storage image kept as a container of individually deflated, fixed-size chunks. A chunk index gives random access,
+ * recently used chunks are kept decompressed, and chunks that were written are recompressed and appended to the file
+ * when they leave the cache or when storage is flushed. Chunks that are entirely zero are not stored at all.
+ *
+ * File layout:
+ * 4 bytes - magic "JCZ1"
+ * 8 bytes - size of the uncompressed image
+ * 4 bytes - chunk size
+ * 8 bytes - offset of the chunk index
+ * The index holds, for every chunk, 8 bytes of file offset and 4 bytes of compressed length (0 = all zeroes).
+ *
+ * Rewritten chunks leave their old data behind in the file; the header is updated last, so a crash during a flush
+ * leaves the previous version of the image intact. Call compact() to reclaim the space.
+ */
+public class CompressedStorageBackend implements StorageBackend
+{
+
+	public static final int MAGIC = 0x4A435A31;
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	public static final int DEFAULT_CACHE_CHUNKS = 64;
+
+	private static final int HEADER_SIZE = 24;
+	private static final int INDEX_ENTRY_SIZE = 12;
+
+	private static class Chunk
+	{
+		private final byte[] data;
+		private boolean dirty;
+
+		private Chunk(int size)
+		{
+			data = new byte[size];
+		}
+	}
+
+	private final File file;
+	private RandomAccessFile container;
+	private final boolean readOnly;
+	private final int cacheChunks;
+
+	private final long size;
+	private final int chunkSize;
+	private final long[] chunkOffsets;
+	private final int[] chunkLengths;
+
+	/* Where appended chunk data goes next */
+	private long dataEnd;
+	private boolean indexDirty = false;
+
+	/* Access-ordered, so iteration starts at the least recently used chunk */
+	private final LinkedHashMap<Integer, Chunk> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final Inflater inflater = new Inflater();
+	private byte[] compressBuffer;
+
+	public CompressedStorageBackend(File file, boolean readOnly) throws IOException
+	{
+		this(file, readOnly, DEFAULT_CACHE_CHUNKS);
+	}
+
+	public CompressedStorageBackend(File file, boolean readOnly, int cacheChunks) throws IOException
+	{
+		this.file = file;
+		this.readOnly = readOnly;
+		this.cacheChunks = Math.max(1, cacheChunks);
+
+		container = new RandomAccessFile(file, readOnly ? "r" : "rw");
+
+		try
+		{
+			if(container.length() < HEADER_SIZE || container.readInt() != MAGIC)
+				throw new IOException("Not a compressed storage image");
+
+			size = container.readLong();
+			chunkSize = container.readInt();
+			long indexOffset = container.readLong();
+
+			if(chunkSize <= 0 || size < 0)
+				throw new IOException("Corrupt compressed storage header");
+
+			int chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+			chunkOffsets = new long[chunkCount];
+			chunkLengths = new int[chunkCount];
+
+			ByteBuffer index = ByteBuffer.allocate(chunkCount * INDEX_ENTRY_SIZE);
+			while(index.hasRemaining())
+				if(container.getChannel().read(index, indexOffset + index.position()) < 0)
+					throw new IOException("Compressed storage index is truncated");
+			index.flip();
+
+			for(int i = 0; i < chunkCount; i++)
+			{
+				chunkOffsets[i] = index.getLong();
+				chunkLengths[i] = index.getInt();
+			}
+
+			dataEnd = Math.max(HEADER_SIZE, indexOffset + chunkCount * INDEX_ENTRY_SIZE);
+		} catch (IOException e)
+		{
+			container.close();
+			throw e;
+		}
+
+		compressBuffer = new byte[chunkSize + chunkSize / 8 + 64];
+	}
+
+	public static boolean isCompressed(File file)
+	{
+		if(file.length() < HEADER_SIZE)
+			return false;
+
+		try
+		{
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try
+			{
+				return in.readInt() == MAGIC;
+			} finally
+			{
+				in.close();
+			}
+		} catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/* Write an empty compressed image of the given size */
+	public static void create(File file, long size, int chunkSize) throws IOException
+	{
+		int chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try
+		{
+			out.setLength(0);
+			out.writeInt(MAGIC);
+			out.writeLong(size);
+			out.writeInt(chunkSize);
+			out.writeLong(HEADER_SIZE);
+
+			/* An index of all-zero chunks */
+			out.write(new byte[chunkCount * INDEX_ENTRY_SIZE]);
+		} finally
+		{
+			out.close();
+		}
+	}
+
+	/* Compress a raw image into a new container */
+	public static void compress(File raw, File compressed, int chunkSize) throws IOException
+	{
+		create(compressed, raw.length(), chunkSize);
+
+		CompressedStorageBackend backend = new CompressedStorageBackend(compressed, false, 1);
+		InputStream in = new FileInputStream(raw);
+		try
+		{
+			byte[] buffer = new byte[chunkSize];
+			long address = 0;
+			int read;
+
+			while((read = in.read(buffer)) > 0)
+			{
+				backend.write(address, buffer, 0, read);
+				address += read;
+			}
+		} finally
+		{
+			in.close();
+			backend.close();
+		}
+	}
+
+	/* Expand a container back into a raw image */
+	public static void decompress(File compressed, File raw) throws IOException
+	{
+		CompressedStorageBackend backend = new CompressedStorageBackend(compressed, true, 1);
+		OutputStream out = new FileOutputStream(raw);
+		try
+		{
+			byte[] buffer = new byte[backend.chunkSize];
+
+			for(long address = 0; address < backend.size; address += buffer.length)
+			{
+				int length = (int) Math.min(buffer.length, backend.size - address);
+				backend.read(address, buffer, 0, length);
+				out.write(buffer, 0, length);
+			}
+		} finally
+		{
+			out.close();
+			backend.close();
+		}
+	}
+
+	@Override
+	public long getSize()
+	{
+		return size;
+	}
+
+	@Override
+	public synchronized void read(long address, byte[] buffer, int offset, int length) throws IOException
+	{
+		while(length > 0)
+		{
+			int chunkOffset = (int) (address % chunkSize);
+			int count = Math.min(length, chunkSize - chunkOffset);
+
+			if(address >= size)
+				for(int i = 0; i < count; i++)
+					buffer[offset + i] = 0;
+			else
+				System.arraycopy(getChunk((int) (address / chunkSize)).data, chunkOffset, buffer, offset, count);
+
+			address += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	@Override
+	public synchronized void write(long address, byte[] buffer, int offset, int length) throws IOException
+	{
+		if(readOnly)
+			throw new IOException("Storage is read-only");
+
+		length = (int) Math.max(0, Math.min(length, size - address));
+
+		while(length > 0)
+		{
+			int chunkOffset = (int) (address % chunkSize);
+			int count = Math.min(length, chunkSize - chunkOffset);
+
+			Chunk chunk = getChunk((int) (address / chunkSize));
+			System.arraycopy(buffer, offset, chunk.data, chunkOffset, count);
+			chunk.dirty = true;
+
+			address += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	private Chunk getChunk(int index) throws IOException
+	{
+		Chunk chunk = cache.get(index);
+		if(chunk != null)
+			return chunk;
+
+		chunk = new Chunk(chunkSize);
+
+		if(chunkLengths[index] != 0)
+		{
+			byte[] compressed = new byte[chunkLengths[index]];
+			ByteBuffer view = ByteBuffer.wrap(compressed);
+			while(view.hasRemaining())
+				if(container.getChannel().read(view, chunkOffsets[index] + view.position()) < 0)
+					throw new IOException("Compressed storage chunk " + index + " is truncated");
+
+			inflater.reset();
+			inflater.setInput(compressed);
+			try
+			{
+				inflater.inflate(chunk.data);
+			} catch (DataFormatException e)
+			{
+				throw new IOException("Compressed storage chunk " + index + " is corrupt", e);
+			}
+		}
+
+		cache.put(index, chunk);
+
+		if(cache.size() > cacheChunks)
+		{
+			Iterator<Map.Entry<Integer, Chunk>> eldest = cache.entrySet().iterator();
+			Map.Entry<Integer, Chunk> entry = eldest.next();
+			storeChunk(entry.getKey(), entry.getValue());
+			eldest.remove();
+		}
+
+		return chunk;
+	}
+
+	/* Recompress a dirty chunk and append it to the container. The on-disk index is not touched until flush. */
+	private void storeChunk(int index, Chunk chunk) throws IOException
+	{
+		if(!chunk.dirty)
+			return;
+
+		chunk.dirty = false;
+		indexDirty = true;
+
+		if(isZero(chunk.data))
+		{
+			chunkOffsets[index] = 0;
+			chunkLengths[index] = 0;
+			return;
+		}
+
+		deflater.reset();
+		deflater.setInput(chunk.data);
+		deflater.finish();
+
+		int length = 0;
+		while(!deflater.finished())
+		{
+			if(length == compressBuffer.length)
+				compressBuffer = Arrays.copyOf(compressBuffer, compressBuffer.length * 2);
+
+			length += deflater.deflate(compressBuffer, length, compressBuffer.length - length);
+		}
+
+		ByteBuffer view = ByteBuffer.wrap(compressBuffer, 0, length);
+		while(view.hasRemaining())
+			container.getChannel().write(view, dataEnd + view.position());
+
+		chunkOffsets[index] = dataEnd;
+		chunkLengths[index] = length;
+		dataEnd += length;
+	}
+
+	private static boolean isZero(byte[] data)
+	{
+		for(byte b : data)
+			if(b != 0)
+				return false;
+
+		return true;
+	}
+
+	@Override
+	public synchronized void flush() throws IOException
+	{
+		if(readOnly)
+			return;
+
+		for(Map.Entry<Integer, Chunk> entry : cache.entrySet())
+			storeChunk(entry.getKey(), entry.getValue());
+
+		if(!indexDirty)
+			return;
+
+		/* New index after all the data, then make it durable before the header points at it */
+		ByteBuffer index = ByteBuffer.allocate(chunkOffsets.length * INDEX_ENTRY_SIZE);
+		for(int i = 0; i < chunkOffsets.length; i++)
+		{
+			index.putLong(chunkOffsets[i]);
+			index.putInt(chunkLengths[i]);
+		}
+		index.flip();
+
+		long indexOffset = dataEnd;
+		while(index.hasRemaining())
+			container.getChannel().write(index, indexOffset + index.position());
+		container.getChannel().force(false);
+
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.putLong(indexOffset);
+		header.flip();
+		while(header.hasRemaining())
+			container.getChannel().write(header, 16 + header.position());
+		container.getChannel().force(false);
+
+		/* Chunks stored from now on go after this index, so it stays valid until the header moves on */
+		dataEnd = indexOffset + chunkOffsets.length * INDEX_ENTRY_SIZE;
+		indexDirty = false;
+	}
+
+	/* Bytes of chunk data that are no longer referenced by the index */
+	public synchronized long getWastedBytes() throws IOException
+	{
+		long live = HEADER_SIZE + (long) chunkOffsets.length * INDEX_ENTRY_SIZE;
+		for(int length : chunkLengths)
+			live += length;
+
+		return Math.max(0, container.length() - live);
+	}
+
+	/* Rewrite the container without any unreferenced chunk data */
+	public synchronized void compact() throws IOException
+	{
+		if(readOnly)
+			throw new IOException("Storage is read-only");
+
+		flush();
+
+		File temp = new File(file.getPath() + ".compact");
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		long[] newOffsets = new long[chunkOffsets.length];
+		long newDataEnd;
+
+		try
+		{
+			out.setLength(0);
+			long position = HEADER_SIZE;
+
+			for(int i = 0; i < chunkOffsets.length; i++)
+			{
+				if(chunkLengths[i] == 0)
+					continue;
+
+				byte[] compressed = new byte[chunkLengths[i]];
+				container.seek(chunkOffsets[i]);
+				container.readFully(compressed);
+
+				out.seek(position);
+				out.write(compressed);
+				newOffsets[i] = position;
+				position += compressed.length;
+			}
+
+			out.seek(0);
+			out.writeInt(MAGIC);
+			out.writeLong(size);
+			out.writeInt(chunkSize);
+			out.writeLong(position);
+
+			out.seek(position);
+			for(int i = 0; i < chunkOffsets.length; i++)
+			{
+				out.writeLong(newOffsets[i]);
+				out.writeInt(chunkLengths[i]);
+			}
+
+			out.getChannel().force(false);
+			newDataEnd = out.getFilePointer();
+		} finally
+		{
+			out.close();
+		}
+
+		/* Swap the copy in with a single atomic rename, so there is always one complete image on disk. If that
+		 * fails, the original is left as it was and stays open.
+		 */
+		container.close();
+		try
+		{
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e)
+		{
+			container = new RandomAccessFile(file, "rw");
+			temp.delete();
+			throw new IOException("Could not replace " + file + " with its compacted copy", e);
+		}
+
+		container = new RandomAccessFile(file, "rw");
+		System.arraycopy(newOffsets, 0, chunkOffsets, 0, newOffsets.length);
+		dataEnd = newDataEnd;
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		flush();
+		container.close();
+		deflater.end();
+		inflater.end();
+	}
+
+	/* Usage: CompressedStorageBackend [-d] <input image> <output image> */
+	public static void main(String[] args)
+	{
+		boolean decompress = args.length == 3 && args[0].equalsIgnoreCase("-d");
+
+		if(args.length != 2 && !decompress)
+		{
+			System.err.println("Usage: CompressedStorageBackend [-d] <input image> <output image>");
+			System.exit(1);
+		}
+
+		File input = new File(args[decompress ? 1 : 0]);
+		File output = new File(args[decompress ? 2 : 1]);
+
+		try
+		{
+			if(decompress)
+				decompress(input, output);
+			else
+				compress(input, output, DEFAULT_CHUNK_SIZE);
+
+			System.out.println(input.getName() + " (" + input.length() + " bytes) -> " + output.getName() + " ("
+					+ output.length() + " bytes)");
+		} catch (IOException e)
+		{
+			System.err.println("Error converting storage image");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+}
@@ -0,0 +1,135 @@
+package net.jonathan.emulator;
+
+/* Runs a list of drawing operations straight out of guest memory, so a whole frame can be drawn with a single Pi
+ * command instead of one command per sprite or shape.
+ *
+ * Every operation is an opcode byte followed by its arguments. Coordinates are signed 16-bit, high byte first.
+ * 0x00                              - End of the list
+ * 0x01 (ID) (X) (Y)                 - Draw a sprite with its origin at (X, Y), on top of the current translation
+ * 0x02 (Color)                      - Override the color of everything drawn from now on
+ * 0x03                              - Stop overriding the color
+ * 0x04 (X) (Y)                      - Add to the translation
+ * 0x05                              - Set the translation back to 0, 0
+ * 0x06 (Color) (X0) (Y0) (X1) (Y1)  - Fill a rectangle, corners inclusive
+ * 0x07 (Color) (X0) (Y0) (X1) (Y1)  - Draw a line, ends inclusive
+ * 0x08 (X0) (Y0) (X1) (Y1)          - Clear a rectangle to 0x00
+ * 0x09                              - Flip the framebuffer pages
+ *
+ * Translation and color override changes made by the list stay in effect afterwards, just as if the guest had sent
+ * the equivalent commands itself.
+ */
+public class DisplayList
+{
+
+	/* Stops a list that is missing its end from running forever. This is also the count reported for such a list,
+	 * which still fits the 16-bit response and cannot be mistaken for an empty list.
+	 */
+	public static final int MAX_OPERATIONS = 0xFFFF;
+
+	public static final int OP_END = 0x00;
+	public static final int OP_DRAW_SPRITE = 0x01;
+	public static final int OP_SET_COLOR = 0x02;
+	public static final int OP_END_COLOR = 0x03;
+	public static final int OP_TRANSLATE = 0x04;
+	public static final int OP_TRANSLATE_RESET = 0x05;
+	public static final int OP_FILL = 0x06;
+	public static final int OP_LINE = 0x07;
+	public static final int OP_CLEAR_RECT = 0x08;
+	public static final int OP_FLIP = 0x09;
+
+	private final PiInterface pi;
+	private final Framebuffer panel;
+
+	private JCPU cpu;
+	private int address;
+
+	public DisplayList(PiInterface pi, Framebuffer panel)
+	{
+		this.pi = pi;
+		this.panel = panel;
+	}
+
+	/* Run the list starting at the given address, returning the number of operations run, not counting the end */
+	public int execute(JCPU cpu, int start)
+	{
+		this.cpu = cpu;
+		address = start;
+
+		for(int operations = 0; operations < MAX_OPERATIONS; operations++)
+		{
+			int opcode = nextByte() & 0xFF;
+
+			switch(opcode)
+			{
+				case OP_END:
+					return operations;
+				case OP_DRAW_SPRITE:
+				{
+					int id = nextByte() & 0xFF;
+					int x = nextShort();
+					int y = nextShort();
+
+					panel.translationX += x;
+					panel.translationY += y;
+					pi.drawSprite(id);
+					panel.translationX -= x;
+					panel.translationY -= y;
+					break;
+				}
+				case OP_SET_COLOR:
+					panel.overrideColor(nextByte());
+					break;
+				case OP_END_COLOR:
+					panel.stopOverrideColor();
+					break;
+				case OP_TRANSLATE:
+					panel.translationX += nextShort();
+					panel.translationY += nextShort();
+					break;
+				case OP_TRANSLATE_RESET:
+					panel.translationX = 0;
+					panel.translationY = 0;
+					break;
+				case OP_FILL:
+				{
+					byte color = nextByte();
+					panel.fillRect(color, nextShort(), nextShort(), nextShort(), nextShort());
+					break;
+				}
+				case OP_LINE:
+				{
+					byte color = nextByte();
+					panel.drawLine(color, nextShort(), nextShort(), nextShort(), nextShort());
+					break;
+				}
+				case OP_CLEAR_RECT:
+					panel.clearRect(nextShort(), nextShort(), nextShort(), nextShort());
+					break;
+				case OP_FLIP:
+					panel.flip();
+					break;
+				default:
+					System.out.println("Invalid display list operation " + Integer.toHexString(opcode) + " at "
+							+ Integer.toHexString((address - 1) & 0xFFFF));
+					return operations;
+			}
+		}
+
+		System.out.println("Display list at " + Integer.toHexString(start) + " has no end");
+		return MAX_OPERATIONS;
+	}
+
+	private byte nextByte()
+	{
+		byte value = cpu.getSystemMemoryAt((byte) (address >> 8), (byte) address);
+		address = (address + 1) & 0xFFFF;
+		return value;
+	}
+
+	private int nextShort()
+	{
+		int high = nextByte() & 0xFF;
+		return (short) ((high << 8) | (nextByte() & 0xFF));
+	}
+
+}
@@ -18,9 +18,11 @@ import java.util.Map;
 public class Emulator
 {
 	private JFrame frame = new JFrame();
-	private GraphicsPanel screen = new GraphicsPanel();
+	private Framebuffer framebuffer = new Framebuffer();
+	private GraphicsPanel screen = new GraphicsPanel(framebuffer);
 	private PiKeyboardListener keyboard = new PiKeyboardListener();
 
+	private FramePresenter presenter;
 	private PiInterface piInterface;
 	private StorageController storageController;
 	private JCPU cpu;
@@ -32,9 +34,13 @@ public class Emulator
 	private JLabel[] registerLabels = new JLabel[16];
 	private JLabel currentInstructionLabel = new JLabel();
 	private JLabel cpsLabel = new JLabel();
+	private JLabel fpsLabel = new JLabel();
 	private JMenuBar menuBar = new JMenuBar();
 	private JMenu file = new JMenu("File");
 	private JMenuItem loadFile = new JMenuItem("Load file into memory...");
+	private JMenuItem commitOverlay = new JMenuItem("Commit storage overlay");
+	private JMenuItem discardOverlay = new JMenuItem("Discard storage overlay");
+	private JMenuItem recordFrames = new JMenuItem("Record frames...");
 
 	private JButton stepButton = new JButton("Step");
 	private JButton resetButton = new JButton("Reset");
@@ -45,12 +51,48 @@ public class Emulator
 
 	private int clockSpeedHz = 100;
 
+	/* Command line options */
+	private File storageFile;
+	private File overlayFile;
+	private boolean useOverlay = false;
+	private File journalFile;
+	private boolean useJournal = false;
+	private int refreshHz = FramePresenter.DEFAULT_REFRESH_HZ;
+
 	private long lastSecond = System.currentTimeMillis();
 	private int cps = 0;
 
+	/* The clock runs on the thread that called init, until the window closes or the emulator shuts down */
+	private volatile boolean running = true;
+	private Thread clockThread;
+
 	public static void main(String[] args)
 	{
-		new Emulator().init();
+		Emulator emulator = new Emulator();
+
+		/* Usage: [storage image] [-overlay [delta file]] [-journal [journal file]] [-refresh hz] */
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equalsIgnoreCase("-overlay"))
+			{
+				emulator.useOverlay = true;
+
+				if (i + 1 < args.length && !args[i + 1].startsWith("-"))
+					emulator.overlayFile = new File(args[++i]);
+			} else if (args[i].equalsIgnoreCase("-journal"))
+			{
+				emulator.useJournal = true;
+
+				if (i + 1 < args.length && !args[i + 1].startsWith("-"))
+					emulator.journalFile = new File(args[++i]);
+			} else if (args[i].equalsIgnoreCase("-refresh") && i + 1 < args.length)
+			{
+				emulator.refreshHz = Integer.parseInt(args[++i]);
+			} else
+				emulator.storageFile = new File(args[i]);
+		}
+
+		emulator.init();
 	}
 
 	public void init()
@@ -67,17 +109,83 @@ public class Emulator
 				(int) (Toolkit.getDefaultToolkit().getScreenSize().getHeight() / 2) - 240);
 
 		/* Get storage set up */
-		JOptionPane.showMessageDialog(frame, "Please select a file to be used as storage", "Storage selection", JOptionPane.INFORMATION_MESSAGE);
-		JFileChooser jFileChooser = new JFileChooser();
-		jFileChooser.showOpenDialog(frame);
+		if(storageFile == null)
+		{
+			JOptionPane.showMessageDialog(frame, "Please select a file to be used as storage", "Storage selection", JOptionPane.INFORMATION_MESSAGE);
+			JFileChooser jFileChooser = new JFileChooser();
+			jFileChooser.showOpenDialog(frame);
+
+			/* Apparently the user doesn't want us open :( */
+			if(jFileChooser.getSelectedFile() == null)
+				System.exit(0);
+
+			storageFile = jFileChooser.getSelectedFile();
+		}
+
+		try
+		{
+			StorageBackend storage = useOverlay ? OverlayStorageBackend.open(storageFile, overlayFile)
+					: StorageController.open(storageFile);
+
+			/* Guest writes are batched and committed in the background, through a journal next to the image */
+			if(useJournal)
+				storage = new WriteBehindStorageBackend(storage,
+						journalFile != null ? journalFile : new File(storageFile.getPath() + ".journal"));
+
+			storageController = new StorageController(storage);
+		} catch (IOException e)
+		{
+			System.err.println("Error opening storage");
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		/* Make sure everything the guest wrote reaches the disk, however the emulator exits */
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				/* Let the cycle in progress finish first, so the guest is not halfway through a storage transfer. The
+				 * clock thread may be the one exiting, so don't wait on it for long.
+				 */
+				running = false;
+				try
+				{
+					if(clockThread != null)
+						clockThread.join(1000);
+				} catch (InterruptedException e)
+				{
+					e.printStackTrace();
+				}
+
+				/* A file the guest created but never closed only reaches the filesystem once it is closed */
+				if(piInterface != null)
+					piInterface.closeFile();
+
+				storageController.close();
 
-		/* Apparently the user doesn't want us open :( */
-		if(jFileChooser.getSelectedFile() == null)
-			System.exit(0);
+				/* A recording left running would otherwise end up without its last frames, or unreadable */
+				FrameRecorder recorder = presenter != null ? presenter.getRecorder() : null;
+				if(recorder != null)
+				{
+					presenter.setRecorder(null);
+					try
+					{
+						recorder.stop();
+					} catch (IOException e)
+					{
+						System.err.println("Error writing recording");
+						e.printStackTrace();
+					}
+				}
+			}
+		}));
 
-		storageController = new StorageController(jFileChooser.getSelectedFile());
-		piInterface = new PiInterface(screen, keyboard, storageController);
+		presenter = new FramePresenter(screen, refreshHz);
+		piInterface = new PiInterface(framebuffer, keyboard, storageController);
 		cpu = new JCPU(piInterface);
+		keyboard.setCycleSource(cpu);
 
 		/* No layout manager. This allows for absolute positions */
 		frame.setLayout(null);
@@ -104,6 +212,11 @@ public class Emulator
 		cpsLabel.setEnabled(true);
 		frame.add(cpsLabel);
 
+		fpsLabel.setBounds(450, 70, 200, 20);
+		fpsLabel.setVisible(true);
+		fpsLabel.setEnabled(true);
+		frame.add(fpsLabel);
+
 		updateRegisterLabels();
 
 		for (JLabel registerLabel : registerLabels)
@@ -114,6 +227,14 @@ public class Emulator
 		loadFile.setMnemonic('L');
 		menuBar.add(file);
 		file.add(loadFile);
+		file.add(recordFrames);
+
+		if(useOverlay)
+		{
+			file.addSeparator();
+			file.add(commitOverlay);
+			file.add(discardOverlay);
+		}
 
 		loadFile.addActionListener(new ActionListener()
 		{
@@ -150,13 +271,43 @@ public class Emulator
 			}
 		});
 
+		recordFrames.addActionListener(new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent e)
+			{
+				toggleRecording();
+			}
+		});
+
+		commitOverlay.addActionListener(new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent e)
+			{
+				updateOverlay(true);
+			}
+		});
+
+		discardOverlay.addActionListener(new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent e)
+			{
+				updateOverlay(false);
+			}
+		});
+
 		stepButton.setBounds(10, 260, 100, 20);
 		stepButton.addActionListener(new ActionListener()
 		{
 			@Override
 			public void actionPerformed(ActionEvent e)
 			{
-				cpu.cycle();
+				if(cpu.waitingForVBlank)
+					presenter.skipToVBlank(cpu, clockSpeedHz);
+				else
+					cpu.cycle();
 				updateRegisterLabels();
 			}
 		});
@@ -173,8 +324,9 @@ public class Emulator
 				{
 					cpu.reset();
 					piInterface.reset();
+					storageController.flush();
 					updateRegisterLabels();
-					screen.clear();
+					framebuffer.clear();
 
 					if (loadedFiles.size() != 0)
 					{
@@ -251,8 +403,10 @@ public class Emulator
 		frame.revalidate();
 		frame.setVisible(true);
 
+		clockThread = Thread.currentThread();
+
 		int registerLabelUpdateCounter = clockSpeedHz / 5;
-		while(frame.isVisible())
+		while(running && frame.isVisible())
 			if(clockEnabled.isSelected())
 			{
 				/* Update register labels 5 times per second while the clock is running */
@@ -263,20 +417,31 @@ public class Emulator
 				}
 				registerLabelUpdateCounter--;
 
-				cpu.cycle();
-				CycleSync.sync(clockSpeedHz);
+				/* The cycles skipped while waiting still count, as if they had been run one by one */
+				if(cpu.waitingForVBlank)
+					cps += presenter.waitForVBlank(cpu, clockSpeedHz);
+				else
+				{
+					cpu.cycle();
+					presenter.tick(cpu, clockSpeedHz);
+					CycleSync.sync(clockSpeedHz);
+				}
 
 				/* Calculate instructions per second */
 				cps++;
 				if(lastSecond + 1000 <= System.currentTimeMillis())
 				{
 					cpsLabel.setText("CPS: " + cps);
+					fpsLabel.setText("FPS: " + presenter.getFps() + "/" + presenter.getRefreshHz() + " (dropped "
+							+ presenter.getDroppedFrames() + ")");
 					cps = 0;
 					lastSecond = System.currentTimeMillis();
 				}
 			}else
 				try
 				{
+					/* Still show anything drawn while the clock is stopped, e.g. by single-stepping */
+					presenter.present();
 					Thread.sleep(20);
 				} catch (InterruptedException e)
 				{
@@ -284,6 +449,92 @@ public class Emulator
 				}
 	}
 
+	/* Start recording presented frames to a file or directory chosen by the user, or stop the current recording */
+	private void toggleRecording()
+	{
+		FrameRecorder recorder = presenter.getRecorder();
+
+		if(recorder == null)
+		{
+			JFileChooser jFileChooser = new JFileChooser();
+			jFileChooser.setDialogTitle("Record to a .gif or .raw file, or a directory of PNGs");
+			jFileChooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+
+			if(jFileChooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION)
+				return;
+
+			File output = jFileChooser.getSelectedFile();
+
+			try
+			{
+				presenter.setRecorder(new FrameRecorder(output, FrameRecorder.formatFor(output)));
+				recordFrames.setText("Stop recording");
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+				JOptionPane.showMessageDialog(frame, "Error starting recording: " + e.getMessage(), "Error!", JOptionPane.ERROR_MESSAGE);
+			}
+		} else
+		{
+			presenter.setRecorder(null);
+			recordFrames.setText("Record frames...");
+
+			try
+			{
+				recorder.stop();
+				JOptionPane.showMessageDialog(frame, "Recorded " + recorder.getRecordedFrames() + " frames, dropped "
+						+ recorder.getDroppedFrames(), "Recording", JOptionPane.INFORMATION_MESSAGE);
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+				JOptionPane.showMessageDialog(frame, "Error writing recording: " + e.getMessage(), "Error!", JOptionPane.ERROR_MESSAGE);
+			}
+		}
+	}
+
+	/* Commit the storage overlay into its base image, or throw it away */
+	private void updateOverlay(boolean commit)
+	{
+		/* The guest must not see the disk change underneath it */
+		if(clockEnabled.isSelected())
+		{
+			JOptionPane.showMessageDialog(frame, "Stop the clock first", "Error!", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+
+		StorageBackend storage = storageController.getBackend();
+
+		try
+		{
+			/* Anything still queued for write-behind has to reach the overlay first, and the journal has to be emptied
+			 * so that a crash afterwards does not replay the old writes on top of the committed or discarded overlay
+			 */
+			storage.flush();
+
+			if(storage instanceof WriteBehindStorageBackend)
+			{
+				((WriteBehindStorageBackend) storage).checkpoint();
+				storage = ((WriteBehindStorageBackend) storage).getTarget();
+			}
+
+			OverlayStorageBackend overlay = (OverlayStorageBackend) storage;
+
+			int modifiedBlocks = overlay.getModifiedBlockCount();
+
+			if(commit)
+				overlay.commit();
+			else
+				overlay.discard();
+
+			JOptionPane.showMessageDialog(frame, (commit ? "Committed " : "Discarded ") + modifiedBlocks + " blocks",
+					"Storage overlay", JOptionPane.INFORMATION_MESSAGE);
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			JOptionPane.showMessageDialog(frame, "Error updating storage overlay: " + e.getMessage(), "Error!", JOptionPane.ERROR_MESSAGE);
+		}
+	}
+
 	private void updateRegisterLabels()
 	{
 		registerLabels[0].setText("B: 0x" + String.format("%02X", cpu.registerB));
@@ -0,0 +1,153 @@
+package net.jonathan.emulator;
+
+import java.util.concurrent.locks.LockSupport;
+
+/* Presents the screen at a fixed refresh rate measured in emulated time: one frame every clockHz / refreshHz CPU
+ * cycles, however many pixels the guest writes in between. Also keeps track of the frame rate actually achieved.
+ *
+ * Every frame presented is a vertical blank for the guest: bit 0 of IO port VBLANK_PORT is set, and a CPU waiting
+ * for vblank is released. The guest clears the bit itself (or by waiting again) to see the next one.
+ */
+public class FramePresenter
+{
+
+	public static final int DEFAULT_REFRESH_HZ = 60;
+
+	public static final int VBLANK_PORT = 0x0A;
+	public static final byte VBLANK_BIT = 0x01;
+
+	private final GraphicsPanel panel;
+	private final int refreshHz;
+
+	private long nextFrameCycle = 0;
+	private long lastCycle = 0;
+
+	/* Set while frames are being recorded; written from the Swing thread */
+	private volatile FrameRecorder recorder;
+
+	private long presentedFrames = 0;
+	private int framesThisSecond = 0;
+	private int fps = 0;
+	private long lastSecond = System.currentTimeMillis();
+
+	public FramePresenter(GraphicsPanel panel, int refreshHz)
+	{
+		this.panel = panel;
+		this.refreshHz = Math.max(1, refreshHz);
+	}
+
+	/* Call once per CPU cycle */
+	public void tick(JCPU cpu, int clockHz)
+	{
+		lastCycle = cpu.cycleCount;
+
+		/* The cycle counter starts again from zero when the CPU is reset */
+		if(cpu.cycleCount < nextFrameCycle - cyclesPerFrame(clockHz))
+			nextFrameCycle = cpu.cycleCount;
+
+		if(cpu.cycleCount >= nextFrameCycle)
+		{
+			present();
+			signalVBlank(cpu);
+			nextFrameCycle = cpu.cycleCount + cyclesPerFrame(clockHz);
+		}
+
+		long now = System.currentTimeMillis();
+		if(lastSecond + 1000 <= now)
+		{
+			fps = framesThisSecond;
+			framesThisSecond = 0;
+			lastSecond = now;
+		}
+	}
+
+	/* Used instead of tick while the CPU waits for vblank. Nothing would run until the next frame anyway, so rather
+	 * than ticking through the cycles one at a time, park the thread until the frame is due and skip straight to it.
+	 * Returns the number of cycles skipped.
+	 */
+	public long waitForVBlank(JCPU cpu, int clockHz)
+	{
+		long cycles = nextFrameCycle - cpu.cycleCount;
+		long skipped = 0;
+
+		if(cycles > 0 && cycles <= cyclesPerFrame(clockHz))
+		{
+			long deadline = System.nanoTime() + cycles * 1000000000L / Math.max(1, clockHz);
+			for(long now = System.nanoTime(); now < deadline; now = System.nanoTime())
+				LockSupport.parkNanos(deadline - now);
+
+			cpu.skipToCycle(nextFrameCycle);
+			skipped = cycles;
+		}
+
+		tick(cpu, clockHz);
+		return skipped;
+	}
+
+	/* Release a CPU waiting for vblank without waiting for the frame, e.g. when single-stepping. This counts as the
+	 * frame's vblank, so the next one is a whole frame later.
+	 */
+	public void skipToVBlank(JCPU cpu, int clockHz)
+	{
+		cpu.skipToCycle(nextFrameCycle);
+		signalVBlank(cpu);
+		nextFrameCycle = cpu.cycleCount + cyclesPerFrame(clockHz);
+	}
+
+	private static void signalVBlank(JCPU cpu)
+	{
+		cpu.systemIO[VBLANK_PORT] |= VBLANK_BIT;
+		cpu.waitingForVBlank = false;
+	}
+
+	/* Present straight away, e.g. after single-stepping */
+	public void present()
+	{
+		if(panel.present())
+		{
+			presentedFrames++;
+			framesThisSecond++;
+
+			FrameRecorder activeRecorder = recorder;
+			if(activeRecorder != null)
+				activeRecorder.capture(panel.getFramebuffer(), lastCycle);
+		}
+	}
+
+	public void setRecorder(FrameRecorder recorder)
+	{
+		this.recorder = recorder;
+	}
+
+	public FrameRecorder getRecorder()
+	{
+		return recorder;
+	}
+
+	private long cyclesPerFrame(int clockHz)
+	{
+		return Math.max(1, clockHz / refreshHz);
+	}
+
+	public int getRefreshHz()
+	{
+		return refreshHz;
+	}
+
+	/* Frames that actually had something to show in the last second */
+	public int getFps()
+	{
+		return fps;
+	}
+
+	public long getPresentedFrames()
+	{
+		return presentedFrames;
+	}
+
+	public long getDroppedFrames()
+	{
+		return panel.getDroppedFrames();
+	}
+
+}
@@ -0,0 +1,369 @@
+package net.jonathan.emulator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/* Records presented frames without holding up the emulator. Capturing a frame only copies the color bytes and the
+ * palette into a buffer from a fixed pool; a background thread does all the encoding and file I/O. If the writer
+ * falls behind and the pool runs dry, frames are dropped according to the drop policy rather than stalling the CPU.
+ *
+ * Raw stream layout:
+ * 4 bytes - magic "JCFR"
+ * 2 bytes - width
+ * 2 bytes - height
+ * Each frame, 8 bytes of CPU cycle, 8 bytes of nanoseconds since recording started, 768 bytes of palette (RGB for
+ * every color byte) and then width * height color bytes, row by row
+ */
+public class FrameRecorder
+{
+
+	public enum Format
+	{
+		PNG_SEQUENCE, GIF, RAW
+	}
+
+	public enum DropPolicy
+	{
+		/* Keep the frames already queued and lose the one being captured */
+		DROP_NEWEST,
+		/* Throw away the oldest queued frame to make room for the one being captured */
+		DROP_OLDEST
+	}
+
+	public static final int DEFAULT_POOL_SIZE = 16;
+
+	private static final int RAW_MAGIC = 0x4A434652;
+	private static final int FRAME_PIXELS = Framebuffer.SCREEN_WIDTH * Framebuffer.SCREEN_HEIGHT;
+
+	private static class Frame
+	{
+		private final byte[] pixels = new byte[FRAME_PIXELS];
+		private final int[] palette = new int[256];
+		private long cycle;
+		private long timeNanos;
+	}
+
+	/* Marks the end of the recording in the queue */
+	private static final Frame END = new Frame();
+
+	private final Format format;
+	private final DropPolicy dropPolicy;
+	private final File output;
+
+	private final ArrayBlockingQueue<Frame> freeFrames;
+	private final ArrayBlockingQueue<Frame> queuedFrames;
+
+	private final long startNanos = System.nanoTime();
+	private volatile long recordedFrames = 0;
+	private volatile long droppedFrames = 0;
+	private volatile IOException failure;
+	private volatile boolean stopped = false;
+
+	private final Thread writer;
+
+	/* Encoder state, only touched by the writer thread */
+	private DataOutputStream rawOut;
+	private ImageOutputStream gifStream;
+	private ImageWriter gifWriter;
+	private BufferedImage gifPending;
+	private long gifPendingNanos;
+	private boolean gifStarted = false;
+
+	public FrameRecorder(File output, Format format) throws IOException
+	{
+		this(output, format, DropPolicy.DROP_NEWEST, DEFAULT_POOL_SIZE);
+	}
+
+	/* For PNG_SEQUENCE, output is a directory that frame_000000.png and onwards are written into */
+	public FrameRecorder(File output, Format format, DropPolicy dropPolicy, int poolSize) throws IOException
+	{
+		this.output = output;
+		this.format = format;
+		this.dropPolicy = dropPolicy;
+
+		freeFrames = new ArrayBlockingQueue<>(poolSize);
+		queuedFrames = new ArrayBlockingQueue<>(poolSize + 1);
+		for(int i = 0; i < poolSize; i++)
+			freeFrames.add(new Frame());
+
+		open();
+
+		writer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				writeLoop();
+			}
+		});
+		writer.setName("Frame recorder");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/* Pick the format from a file name: .gif and .raw files, anything else is a directory of PNGs */
+	public static Format formatFor(File output)
+	{
+		String name = output.getName().toLowerCase();
+
+		if(name.endsWith(".gif"))
+			return Format.GIF;
+		if(name.endsWith(".raw"))
+			return Format.RAW;
+		return Format.PNG_SEQUENCE;
+	}
+
+	/* Called by the presenter with every frame it shows. Never blocks. */
+	public void capture(Framebuffer framebuffer, long cycle)
+	{
+		if(stopped)
+			return;
+
+		Frame frame = freeFrames.poll();
+
+		if(frame == null && dropPolicy == DropPolicy.DROP_OLDEST)
+		{
+			frame = queuedFrames.poll();
+
+			if(frame == END)
+			{
+				queuedFrames.add(END);
+				frame = null;
+			} else if(frame != null)
+				droppedFrames++;
+		}
+
+		if(frame == null)
+		{
+			droppedFrames++;
+			return;
+		}
+
+		framebuffer.copyIndexedPixels(frame.pixels);
+		framebuffer.copyPalette(frame.palette);
+		frame.cycle = cycle;
+		frame.timeNanos = System.nanoTime() - startNanos;
+
+		queuedFrames.add(frame);
+	}
+
+	/* Finish writing every queued frame and close the output */
+	public void stop() throws IOException
+	{
+		if(!stopped)
+		{
+			stopped = true;
+			queuedFrames.add(END);
+		}
+
+		try
+		{
+			writer.join();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		if(failure != null)
+			throw failure;
+	}
+
+	public long getRecordedFrames()
+	{
+		return recordedFrames;
+	}
+
+	public long getDroppedFrames()
+	{
+		return droppedFrames;
+	}
+
+	public Format getFormat()
+	{
+		return format;
+	}
+
+	private void writeLoop()
+	{
+		try
+		{
+			while(true)
+			{
+				Frame frame = queuedFrames.take();
+				if(frame == END)
+					break;
+
+				try
+				{
+					write(frame);
+					recordedFrames++;
+				} finally
+				{
+					freeFrames.add(frame);
+				}
+			}
+
+			close();
+		} catch (IOException e)
+		{
+			failure = e;
+			stopped = true;
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void open() throws IOException
+	{
+		switch(format)
+		{
+			case PNG_SEQUENCE:
+				if(!output.isDirectory() && !output.mkdirs())
+					throw new IOException("Could not create " + output);
+				break;
+			case GIF:
+				Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("gif");
+				if(!writers.hasNext())
+					throw new IOException("No GIF writer available");
+
+				gifWriter = writers.next();
+				output.delete();
+				gifStream = ImageIO.createImageOutputStream(output);
+				gifWriter.setOutput(gifStream);
+				gifWriter.prepareWriteSequence(null);
+				break;
+			case RAW:
+				rawOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1 << 16));
+				rawOut.writeInt(RAW_MAGIC);
+				rawOut.writeShort(Framebuffer.SCREEN_WIDTH);
+				rawOut.writeShort(Framebuffer.SCREEN_HEIGHT);
+				break;
+		}
+	}
+
+	private void write(Frame frame) throws IOException
+	{
+		switch(format)
+		{
+			case PNG_SEQUENCE:
+				ImageIO.write(toImage(frame), "png", new File(output, String.format("frame_%06d.png", recordedFrames)));
+				break;
+			case GIF:
+				/* A GIF frame's delay is only known once the next frame arrives */
+				if(gifPending != null)
+					writeGifFrame(gifPending, frame.timeNanos - gifPendingNanos);
+
+				gifPending = toImage(frame);
+				gifPendingNanos = frame.timeNanos;
+				break;
+			case RAW:
+				rawOut.writeLong(frame.cycle);
+				rawOut.writeLong(frame.timeNanos);
+				for(int color : frame.palette)
+				{
+					rawOut.writeByte(color >>> 16);
+					rawOut.writeByte(color >>> 8);
+					rawOut.writeByte(color);
+				}
+				rawOut.write(frame.pixels);
+				break;
+		}
+	}
+
+	private void close() throws IOException
+	{
+		switch(format)
+		{
+			case GIF:
+				if(gifPending != null)
+					writeGifFrame(gifPending, 100000000L);
+
+				gifWriter.endWriteSequence();
+				gifStream.close();
+				gifWriter.dispose();
+				break;
+			case RAW:
+				rawOut.close();
+				break;
+		}
+	}
+
+	private void writeGifFrame(BufferedImage image, long durationNanos) throws IOException
+	{
+		IIOMetadata metadata = gifWriter.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), null);
+		String formatName = metadata.getNativeMetadataFormatName();
+		IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(formatName);
+
+		/* Delays are in hundredths of a second; most viewers treat anything under 2 as "as fast as possible" */
+		IIOMetadataNode control = getChild(root, "GraphicControlExtension");
+		control.setAttribute("disposalMethod", "none");
+		control.setAttribute("userInputFlag", "FALSE");
+		control.setAttribute("transparentColorFlag", "FALSE");
+		control.setAttribute("delayTime", String.valueOf(Math.max(2, durationNanos / 10000000L)));
+		control.setAttribute("transparentColorIndex", "0");
+
+		/* Loop forever. Viewers only look for this before the first frame. */
+		if(!gifStarted)
+		{
+			IIOMetadataNode application = new IIOMetadataNode("ApplicationExtension");
+			application.setAttribute("applicationID", "NETSCAPE");
+			application.setAttribute("authenticationCode", "2.0");
+			application.setUserObject(new byte[] { 0x01, 0x00, 0x00 });
+			getChild(root, "ApplicationExtensions").appendChild(application);
+			gifStarted = true;
+		}
+
+		metadata.setFromTree(formatName, root);
+		gifWriter.writeToSequence(new IIOImage(image, null, metadata), null);
+	}
+
+	private static IIOMetadataNode getChild(IIOMetadataNode root, String name)
+	{
+		for(int i = 0; i < root.getLength(); i++)
+			if(root.item(i).getNodeName().equalsIgnoreCase(name))
+				return (IIOMetadataNode) root.item(i);
+
+		IIOMetadataNode child = new IIOMetadataNode(name);
+		root.appendChild(child);
+		return child;
+	}
+
+	/* The frame as an indexed image using its own palette, so neither PNG nor GIF has to quantize anything */
+	private static BufferedImage toImage(Frame frame)
+	{
+		byte[] red = new byte[256];
+		byte[] green = new byte[256];
+		byte[] blue = new byte[256];
+
+		for(int i = 0; i < 256; i++)
+		{
+			red[i] = (byte) (frame.palette[i] >>> 16);
+			green[i] = (byte) (frame.palette[i] >>> 8);
+			blue[i] = (byte) frame.palette[i];
+		}
+
+		BufferedImage image = new BufferedImage(Framebuffer.SCREEN_WIDTH, Framebuffer.SCREEN_HEIGHT,
+				BufferedImage.TYPE_BYTE_INDEXED, new IndexColorModel(8, 256, red, green, blue));
+		byte[] indexed = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		System.arraycopy(frame.pixels, 0, indexed, 0, FRAME_PIXELS);
+
+		return image;
+	}
+
+}
@@ -0,0 +1,739 @@
+package net.jonathan.emulator;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+
+/* The screen contents, independent of how (or whether) they are shown. Nothing in here needs a display, so the
+ * emulator can run under java.awt.headless with the frame checked by hash or exported as a PNG.
+ *
+ * There are several pages. Until the guest first flips, it draws straight into the page being shown. After that the
+ * guest draws into a back page while the front page is shown, and each flip makes the page just drawn the front one
+ * without copying anything. The new back page is never the one still being painted, and still holds whatever was drawn
+ * into it before.
+ */
+public class Framebuffer
+{
+
+	public static final int SCREEN_WIDTH = 320;
+	public static final int SCREEN_HEIGHT = 240;
+
+	/* RGB value of every color byte in the fixed 3-3-2 interpretation */
+	public static final int[] PALETTE = new int[256];
+
+	static
+	{
+		for(int b = 0; b < 256; b++)
+		{
+			int red = (int) Math.round(((b & 0xE0) >>> 5) / 7.0 * 255.0);
+			int green = (int) Math.round(((b & 0x1C) >>> 2) / 7.0 * 255.0);
+			int blue = (int) Math.round((b & 0x03) / 3.0 * 255.0);
+			PALETTE[b] = (red << 16) | (green << 8) | blue;
+		}
+	}
+
+	public int translationX = 0;
+	public int translationY = 0;
+
+	/* Three, so that a flip always has a page to move on to that is neither the new front page nor the one still being
+	 * painted. With two, a guest flipping faster than the screen is painted can draw into the page being painted.
+	 */
+	public static final int DEFAULT_PAGE_COUNT = 3;
+
+	/* The guest's color bytes, row by row, are the raster of an indexed image, so presenting a frame is a plain image
+	 * draw and the colors are looked up in the palette only then. The pixels are a ring: screen pixel (x, y) is stored
+	 * at ((x + originX) % SCREEN_WIDTH, (y + originY) % SCREEN_HEIGHT), so scrolling only has to move the origin.
+	 */
+	private static class Page
+	{
+		private final byte[] pixels = new byte[SCREEN_WIDTH * SCREEN_HEIGHT];
+		private final WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(pixels, pixels.length),
+				SCREEN_WIDTH, SCREEN_HEIGHT, SCREEN_WIDTH, 1, new int[] { 0 }, null);
+
+		/* Only touched while presenting. Rebuilt around the same raster whenever the palette has changed. */
+		private BufferedImage image;
+
+		private volatile int originX = 0;
+		private volatile int originY = 0;
+
+		/* Sum of a mixed value of every (screen position, color) pair. Single pixel writes update it in O(1);
+		 * scrolling moves every position, so it is recomputed the next time it is asked for.
+		 */
+		private long frameHash;
+		private boolean frameHashValid = false;
+
+		/* Index of the first byte of the ring row holding screen row y */
+		private int getRowStart(int y)
+		{
+			int ringY = y + originY;
+			if(ringY >= SCREEN_HEIGHT)
+				ringY -= SCREEN_HEIGHT;
+
+			return ringY * SCREEN_WIDTH;
+		}
+
+		private int getRingIndex(int x, int y)
+		{
+			int ringX = x + originX;
+			int ringY = y + originY;
+			if(ringX >= SCREEN_WIDTH)
+				ringX -= SCREEN_WIDTH;
+			if(ringY >= SCREEN_HEIGHT)
+				ringY -= SCREEN_HEIGHT;
+
+			return ringY * SCREEN_WIDTH + ringX;
+		}
+	}
+
+	private final Page[] pages;
+
+	/* Programmable palette, used instead of the 3-3-2 colors while paletteMode is on. Starts out as the 3-3-2 colors. */
+	private final int[] palette = PALETTE.clone();
+	private boolean paletteMode = false;
+	private volatile IndexColorModel colorModel = createColorModel(PALETTE);
+
+	/* Set by palette writes. The color model is only rebuilt when the next frame is presented, however many entries
+	 * were written in between.
+	 */
+	private boolean paletteDirty = false;
+
+	/* Page being shown, and page the guest draws into. The same page until the first flip. */
+	private volatile Page front;
+	private Page back;
+	private int backIndex = 0;
+
+	/* Page last taken by drawTo for painting. Flips skip it, so painting never reads a page being drawn into. */
+	private final Object pageLock = new Object();
+	private Page painted;
+
+	/* Drawn over whichever page is shown, so they are not part of any page */
+	private final TextLayer textLayer = new TextLayer();
+	private final SpriteLayers spriteLayers = new SpriteLayers();
+
+	private final PixelKernels kernels;
+
+	public Framebuffer()
+	{
+		this(DEFAULT_PAGE_COUNT);
+	}
+
+	public Framebuffer(int pageCount)
+	{
+		this(pageCount, PixelKernels.DEFAULT);
+	}
+
+	public Framebuffer(int pageCount, PixelKernels kernels)
+	{
+		this.kernels = kernels;
+
+		pages = new Page[Math.max(1, pageCount)];
+		for(int i = 0; i < pages.length; i++)
+			pages[i] = new Page();
+
+		resetPages();
+	}
+
+	private boolean isColorOverridden;
+	private byte overrideColor;
+
+	/* Region written since the last frame was presented. Empty when dirtyMinX > dirtyMaxX. */
+	private int dirtyMinX = SCREEN_WIDTH;
+	private int dirtyMinY = SCREEN_HEIGHT;
+	private int dirtyMaxX = -1;
+	private int dirtyMaxY = -1;
+
+	public void overrideColor(byte color)
+	{
+		isColorOverridden = true;
+		overrideColor = color;
+	}
+
+	public void stopOverrideColor()
+	{
+		isColorOverridden = false;
+	}
+
+	/* Back to drawing straight into the page being shown */
+	public void resetPages()
+	{
+		backIndex = 0;
+		back = pages[0];
+		front = back;
+		markDirty(0, 0, SCREEN_WIDTH - 1, SCREEN_HEIGHT - 1);
+	}
+
+	/* Show the page the guest has been drawing into and move drawing on to the next page that is not being painted */
+	public void flip()
+	{
+		synchronized(pageLock)
+		{
+			front = back;
+
+			int next = (backIndex + 1) % pages.length;
+			for(int i = 0; i < pages.length; i++)
+			{
+				int candidate = (backIndex + 1 + i) % pages.length;
+				if(pages[candidate] != front && pages[candidate] != painted)
+				{
+					next = candidate;
+					break;
+				}
+			}
+
+			backIndex = next;
+			back = pages[backIndex];
+		}
+
+		markDirty(0, 0, SCREEN_WIDTH - 1, SCREEN_HEIGHT - 1);
+	}
+
+	public boolean isDoubleBuffered()
+	{
+		return front != back;
+	}
+
+	/* Clears the page being drawn into */
+	public void clear()
+	{
+		Page page = back;
+		kernels.fill(page.pixels, 0, page.pixels.length, (byte) 0x00);
+		page.originX = 0;
+		page.originY = 0;
+
+		page.frameHash = CLEARED_FRAME_HASH;
+		page.frameHashValid = true;
+		markDrawDirty(0, 0, SCREEN_WIDTH - 1, SCREEN_HEIGHT - 1);
+	}
+
+	public void setPixel(byte color, int x, int y)
+	{
+		int realX = x + translationX;
+		int realY = y + translationY;
+
+		if(realX > -1 && realX < SCREEN_WIDTH && realY > -1 && realY < SCREEN_HEIGHT)
+		{
+			Page page = back;
+			int index = page.getRingIndex(realX, realY);
+			byte newColor = isColorOverridden ? overrideColor : color;
+
+			if(page.frameHashValid)
+			{
+				int position = realY * SCREEN_WIDTH + realX;
+				page.frameHash += hashPixel(position, newColor) - hashPixel(position, page.pixels[index]);
+			}
+
+			page.pixels[index] = newColor;
+			markDrawDirty(realX, realY, realX, realY);
+		}
+	}
+
+	/* Fill the rectangle with corners (x0, y0) and (x1, y1), inclusive and in either order. Translation, clipping and
+	 * the color override apply just as they do to single pixels.
+	 */
+	public void fillRect(byte color, int x0, int y0, int x1, int y1)
+	{
+		fillScreenRect(isColorOverridden ? overrideColor : color, Math.min(x0, x1) + translationX,
+				Math.min(y0, y1) + translationY, Math.max(x0, x1) + translationX, Math.max(y0, y1) + translationY);
+	}
+
+	/* Set the rectangle back to color 0x00, whatever the color override */
+	public void clearRect(int x0, int y0, int x1, int y1)
+	{
+		fillScreenRect((byte) 0x00, Math.min(x0, x1) + translationX, Math.min(y0, y1) + translationY,
+				Math.max(x0, x1) + translationX, Math.max(y0, y1) + translationY);
+	}
+
+	public void drawHorizontalSpan(byte color, int x0, int x1, int y)
+	{
+		fillRect(color, x0, y, x1, y);
+	}
+
+	public void drawVerticalSpan(byte color, int x, int y0, int y1)
+	{
+		fillRect(color, x, y0, x, y1);
+	}
+
+	/* Bresenham line from (x0, y0) to (x1, y1), both ends included. Pixels off the screen are skipped, and the walk
+	 * stops as soon as the line has left the screen for good.
+	 */
+	public void drawLine(byte color, int x0, int y0, int x1, int y1)
+	{
+		if(x0 == x1 || y0 == y1)
+		{
+			fillRect(color, x0, y0, x1, y1);
+			return;
+		}
+
+		int dx = Math.abs(x1 - x0);
+		int dy = -Math.abs(y1 - y0);
+		int stepX = x0 < x1 ? 1 : -1;
+		int stepY = y0 < y1 ? 1 : -1;
+		int error = dx + dy;
+
+		int minX = -translationX;
+		int minY = -translationY;
+		int maxX = SCREEN_WIDTH - 1 - translationX;
+		int maxY = SCREEN_HEIGHT - 1 - translationY;
+
+		int x = x0;
+		int y = y0;
+
+		while(true)
+		{
+			if(x >= minX && x <= maxX && y >= minY && y <= maxY)
+				setPixel(color, x, y);
+			else if((stepX > 0 ? x > maxX : x < minX) || (stepY > 0 ? y > maxY : y < minY))
+				break;
+
+			if(x == x1 && y == y1)
+				break;
+
+			int doubled = 2 * error;
+			if(doubled >= dy)
+			{
+				error += dy;
+				x += stepX;
+			}
+			if(doubled <= dx)
+			{
+				error += dx;
+				y += stepY;
+			}
+		}
+	}
+
+	/* Fill a rectangle given in screen coordinates, clipped to the screen. Each row is at most two runs of the ring. */
+	private void fillScreenRect(byte color, int minX, int minY, int maxX, int maxY)
+	{
+		minX = Math.max(minX, 0);
+		minY = Math.max(minY, 0);
+		maxX = Math.min(maxX, SCREEN_WIDTH - 1);
+		maxY = Math.min(maxY, SCREEN_HEIGHT - 1);
+		if(minX > maxX || minY > maxY)
+			return;
+
+		Page page = back;
+		int ringX = page.originX;
+		int width = maxX - minX + 1;
+		int start = minX + ringX;
+		if(start >= SCREEN_WIDTH)
+			start -= SCREEN_WIDTH;
+
+		int firstRun = Math.min(width, SCREEN_WIDTH - start);
+
+		for(int y = minY; y <= maxY; y++)
+		{
+			int row = page.getRowStart(y);
+
+			if(page.frameHashValid)
+				page.frameHash -= hashRun(page, minX, y, width);
+
+			kernels.fill(page.pixels, row + start, row + start + firstRun, color);
+			if(firstRun < width)
+				kernels.fill(page.pixels, row, row + width - firstRun, color);
+
+			if(page.frameHashValid)
+				page.frameHash += hashRun(page, minX, y, width);
+		}
+
+		markDrawDirty(minX, minY, maxX, maxY);
+	}
+
+	/* Draw runs of pixels, as compiled by sprites. Every run is four ints: x, y, length and the index of its first
+	 * color in colors. Runs are translated, clipped and colored like single pixels, but each one is copied (or, with
+	 * the color overridden, filled) in at most two pieces of the ring.
+	 */
+	public void drawRuns(int[] runs, byte[] colors)
+	{
+		Page page = back;
+		int ringX = page.originX;
+		int minX = SCREEN_WIDTH, minY = SCREEN_HEIGHT, maxX = -1, maxY = -1;
+
+		for(int i = 0; i < runs.length; i += 4)
+		{
+			int y = runs[i + 1] + translationY;
+			if(y < 0 || y >= SCREEN_HEIGHT)
+				continue;
+
+			int x = runs[i] + translationX;
+			int length = runs[i + 2];
+			int color = runs[i + 3];
+
+			if(x < 0)
+			{
+				length += x;
+				color -= x;
+				x = 0;
+			}
+			length = Math.min(length, SCREEN_WIDTH - x);
+			if(length <= 0)
+				continue;
+
+			int row = page.getRowStart(y);
+			int start = x + ringX;
+			if(start >= SCREEN_WIDTH)
+				start -= SCREEN_WIDTH;
+
+			int firstRun = Math.min(length, SCREEN_WIDTH - start);
+
+			if(page.frameHashValid)
+				page.frameHash -= hashRun(page, x, y, length);
+
+			if(isColorOverridden)
+			{
+				kernels.fill(page.pixels, row + start, row + start + firstRun, overrideColor);
+				if(firstRun < length)
+					kernels.fill(page.pixels, row, row + length - firstRun, overrideColor);
+			} else
+			{
+				kernels.copy(colors, color, page.pixels, row + start, firstRun);
+				if(firstRun < length)
+					kernels.copy(colors, color + firstRun, page.pixels, row, length - firstRun);
+			}
+
+			if(page.frameHashValid)
+				page.frameHash += hashRun(page, x, y, length);
+
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x + length - 1);
+			maxY = Math.max(maxY, y);
+		}
+
+		if(maxX >= 0)
+			markDrawDirty(minX, minY, maxX, maxY);
+	}
+
+	/* Color byte shown at a screen position, ignoring translation */
+	public byte getPixel(int x, int y)
+	{
+		Page page = front;
+		return page.pixels[page.getRingIndex(x, y)];
+	}
+
+	/* Move the memory a certain direction in pixels. Only the origin moves; the rows and columns scrolled in are
+	 * cleared, so the cost depends on the distance scrolled rather than on the size of the screen.
+	 */
+	public void moveMem(int x, int y)
+	{
+		Page page = back;
+		int distanceX = Math.min(Math.abs(x), SCREEN_WIDTH);
+		int distanceY = Math.min(Math.abs(y), SCREEN_HEIGHT);
+
+		page.originX = wrap(page.originX - x, SCREEN_WIDTH);
+		page.originY = wrap(page.originY - y, SCREEN_HEIGHT);
+
+		/* Exposed rows are whole rows of the ring, so each is a single fill */
+		for(int i = 0; i < distanceY; i++)
+		{
+			int row = wrap((y > 0 ? i : SCREEN_HEIGHT - 1 - i) + page.originY, SCREEN_HEIGHT) * SCREEN_WIDTH;
+			kernels.fill(page.pixels, row, row + SCREEN_WIDTH, (byte) 0x00);
+		}
+
+		for(int i = 0; i < distanceX; i++)
+		{
+			int column = wrap((x > 0 ? i : SCREEN_WIDTH - 1 - i) + page.originX, SCREEN_WIDTH);
+			for(int index = column; index < page.pixels.length; index += SCREEN_WIDTH)
+				page.pixels[index] = 0x00;
+		}
+
+		page.frameHashValid = false;
+		markDrawDirty(0, 0, SCREEN_WIDTH - 1, SCREEN_HEIGHT - 1);
+	}
+
+	private static int wrap(int value, int size)
+	{
+		return ((value % size) + size) % size;
+	}
+
+	/* Drawing only needs presenting when it goes into the page being shown */
+	private void markDrawDirty(int minX, int minY, int maxX, int maxY)
+	{
+		if(back == front)
+			markDirty(minX, minY, maxX, maxY);
+	}
+
+	private void markDirty(int minX, int minY, int maxX, int maxY)
+	{
+		dirtyMinX = Math.min(dirtyMinX, minX);
+		dirtyMinY = Math.min(dirtyMinY, minY);
+		dirtyMaxX = Math.max(dirtyMaxX, maxX);
+		dirtyMaxY = Math.max(dirtyMaxY, maxY);
+	}
+
+	/* The character cells drawn over the bitmap */
+	public TextLayer getTextLayer()
+	{
+		return textLayer;
+	}
+
+	/* The hardware sprites shown over the bitmap, under the text */
+	public SpriteLayers getSpriteLayers()
+	{
+		return spriteLayers;
+	}
+
+	/* The region written since the last call, in screen coordinates, or null if nothing changed */
+	public Rectangle takeDirtyRegion()
+	{
+		applyPaletteChange();
+
+		Rectangle text = textLayer.takeDirtyRegion();
+		if(text != null)
+			markDirty(text.x, text.y, text.x + text.width - 1, text.y + text.height - 1);
+
+		Rectangle sprites = spriteLayers.takeDirtyRegion();
+		if(sprites != null)
+			markDirty(sprites.x, sprites.y, sprites.x + sprites.width - 1, sprites.y + sprites.height - 1);
+
+		if(dirtyMinX > dirtyMaxX)
+			return null;
+
+		Rectangle region = new Rectangle(dirtyMinX, dirtyMinY, dirtyMaxX - dirtyMinX + 1, dirtyMaxY - dirtyMinY + 1);
+
+		dirtyMinX = SCREEN_WIDTH;
+		dirtyMinY = SCREEN_HEIGHT;
+		dirtyMaxX = -1;
+		dirtyMaxY = -1;
+		return region;
+	}
+
+	/* Draw the screen with its top left corner at (x, y), undoing the ring in up to four pieces */
+	public void drawTo(Graphics g, int x, int y)
+	{
+		Page page;
+		synchronized(pageLock)
+		{
+			page = front;
+			painted = page;
+		}
+
+		IndexColorModel model = colorModel;
+
+		/* Wrapping the raster in a new image copies no pixels */
+		if(page.image == null || page.image.getColorModel() != model)
+			page.image = new BufferedImage(model, page.raster, false, null);
+
+		int ringX = page.originX;
+		int ringY = page.originY;
+		int splitX = SCREEN_WIDTH - ringX;
+		int splitY = SCREEN_HEIGHT - ringY;
+
+		drawPiece(g, page.image, x, y, ringX, ringY, splitX, splitY);
+		drawPiece(g, page.image, x + splitX, y, 0, ringY, ringX, splitY);
+		drawPiece(g, page.image, x, y + splitY, ringX, 0, splitX, ringY);
+		drawPiece(g, page.image, x + splitX, y + splitY, 0, 0, ringX, ringY);
+
+		spriteLayers.drawTo(g, x, y, model);
+		textLayer.drawTo(g, x, y, model);
+	}
+
+	private static void drawPiece(Graphics g, BufferedImage image, int screenX, int screenY, int imageX, int imageY,
+			int width, int height)
+	{
+		if(width > 0 && height > 0)
+			g.drawImage(image, screenX, screenY, screenX + width, screenY + height, imageX, imageY, imageX + width,
+					imageY + height, null);
+	}
+
+	/* Copy of the color bytes shown, in screen order, row by row */
+	public byte[] getIndexedPixels()
+	{
+		byte[] screen = new byte[SCREEN_WIDTH * SCREEN_HEIGHT];
+		copyIndexedPixels(screen);
+		return screen;
+	}
+
+	/* Same as getIndexedPixels, into an existing buffer of SCREEN_WIDTH * SCREEN_HEIGHT bytes */
+	public void copyIndexedPixels(byte[] screen)
+	{
+		copyIndexedPixels(front, screen);
+		spriteLayers.composite(screen);
+		textLayer.composite(screen);
+	}
+
+	private void copyIndexedPixels(Page page, byte[] screen)
+	{
+		int ringX = page.originX;
+		int splitX = SCREEN_WIDTH - ringX;
+
+		for(int y = 0; y < SCREEN_HEIGHT; y++)
+		{
+			int row = page.getRowStart(y);
+
+			kernels.copy(page.pixels, row + ringX, screen, y * SCREEN_WIDTH, splitX);
+			kernels.copy(page.pixels, row, screen, y * SCREEN_WIDTH + splitX, ringX);
+		}
+	}
+
+	/* RGB value of every color byte, as currently shown */
+	public synchronized void copyPalette(int[] palette)
+	{
+		System.arraycopy(paletteMode ? this.palette : PALETTE, 0, palette, 0, PALETTE.length);
+	}
+
+	/* Switch between the fixed 3-3-2 colors and the programmable palette */
+	public synchronized void setPaletteMode(boolean programmable)
+	{
+		paletteMode = programmable;
+		paletteChanged();
+	}
+
+	/* Back to the 3-3-2 colors, with the programmable palette set to match them */
+	public synchronized void resetPalette()
+	{
+		System.arraycopy(PALETTE, 0, palette, 0, PALETTE.length);
+		paletteMode = false;
+		paletteChanged();
+	}
+
+	public synchronized boolean isPaletteMode()
+	{
+		return paletteMode;
+	}
+
+	public synchronized void setPaletteEntry(int index, int rgb)
+	{
+		palette[index & 0xFF] = rgb & 0xFFFFFF;
+
+		if(paletteMode)
+			paletteChanged();
+	}
+
+	/* Rotate entries first to last (inclusive) up by one, the last wrapping round to first */
+	public synchronized void cyclePalette(int first, int last)
+	{
+		first &= 0xFF;
+		last &= 0xFF;
+		if(first >= last)
+			return;
+
+		int wrapped = palette[last];
+		System.arraycopy(palette, first, palette, first + 1, last - first);
+		palette[first] = wrapped;
+
+		if(paletteMode)
+			paletteChanged();
+	}
+
+	/* Every pixel on screen may now look different, but none of them has to be touched */
+	private void paletteChanged()
+	{
+		paletteDirty = true;
+	}
+
+	/* Rebuild the color model if the palette has changed since the last frame, redrawing the whole screen with it */
+	private synchronized void applyPaletteChange()
+	{
+		if(!paletteDirty)
+			return;
+
+		paletteDirty = false;
+		colorModel = createColorModel(paletteMode ? palette : PALETTE);
+		markDirty(0, 0, SCREEN_WIDTH - 1, SCREEN_HEIGHT - 1);
+	}
+
+	private static IndexColorModel createColorModel(int[] colors)
+	{
+		return new IndexColorModel(8, colors.length, colors, 0, false, -1, DataBufferByte.TYPE_BYTE);
+	}
+
+	/* Hash of the frame being shown. The page's hash is kept up to date as pixels, runs and rectangles are drawn, at
+	 * the cost of hashing only what was written. Scrolling moves every pixel, so it is rehashed in full afterwards, as
+	 * is the whole composited frame while text or sprite layers are on top.
+	 */
+	public long getFrameHash()
+	{
+		Page page = front;
+
+		if(textLayer.isEnabled() || spriteLayers.isActive())
+		{
+			byte[] screen = getIndexedPixels();
+			long hash = 0;
+
+			for(int i = 0; i < screen.length; i++)
+				hash += hashPixel(i, screen[i]);
+
+			return hash;
+		}
+
+		if(!page.frameHashValid)
+		{
+			byte[] screen = new byte[SCREEN_WIDTH * SCREEN_HEIGHT];
+			copyIndexedPixels(page, screen);
+
+			page.frameHash = 0;
+			for(int i = 0; i < screen.length; i++)
+				page.frameHash += hashPixel(i, screen[i]);
+
+			page.frameHashValid = true;
+		}
+
+		return page.frameHash;
+	}
+
+	/* Sum of the hashes of the pixels in a run of one row, in screen coordinates */
+	private static long hashRun(Page page, int x, int y, int length)
+	{
+		int row = page.getRowStart(y);
+		int ringX = page.originX;
+		long hash = 0;
+
+		for(int i = 0; i < length; i++)
+		{
+			int column = x + i + ringX;
+			if(column >= SCREEN_WIDTH)
+				column -= SCREEN_WIDTH;
+
+			hash += hashPixel(y * SCREEN_WIDTH + x + i, page.pixels[row + column]);
+		}
+
+		return hash;
+	}
+
+	/* Hash of a page that has just been cleared */
+	private static final long CLEARED_FRAME_HASH = hashCleared();
+
+	private static long hashCleared()
+	{
+		long hash = 0;
+		for(int i = 0; i < SCREEN_WIDTH * SCREEN_HEIGHT; i++)
+			hash += hashPixel(i, (byte) 0x00);
+
+		return hash;
+	}
+
+	/* SplitMix64 finaliser over the position and color, so that moving or swapping pixels changes the sum */
+	private static long hashPixel(int position, byte color)
+	{
+		long z = (((long) position << 8) | (color & 0xFF)) + 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/* Snapshot of the screen as a standalone image */
+	public BufferedImage toImage()
+	{
+		BufferedImage snapshot = new BufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		int[] colors = new int[PALETTE.length];
+		copyPalette(colors);
+
+		kernels.expand(getIndexedPixels(), colors, ((DataBufferInt) snapshot.getRaster().getDataBuffer()).getData());
+		return snapshot;
+	}
+
+	public void writePng(File file) throws IOException
+	{
+		if(!ImageIO.write(toImage(), "png", file))
+			throw new IOException("No PNG writer available");
+	}
+
+}
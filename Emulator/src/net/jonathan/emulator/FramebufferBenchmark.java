@@ -0,0 +1,94 @@
+package net.jonathan.emulator;
+
+import java.util.Random;
+
+/* Times the framebuffer's bulk operations with each set of pixel kernels on a full 320x240 screen.
+ *
+ * Usage: FramebufferBenchmark [iterations]
+ */
+public class FramebufferBenchmark
+{
+
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int SPRITE_SPACING = 32;
+
+	public static void main(String[] args)
+	{
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+		/* Measure both once to warm up the JIT, then for real */
+		for(int round = 0; round <= WARMUP_ROUNDS; round++)
+		{
+			boolean report = round == WARMUP_ROUNDS;
+
+			for(PixelKernels kernels : new PixelKernels[] { PixelKernels.SCALAR, PixelKernels.BULK })
+				run(kernels, iterations, report);
+		}
+	}
+
+	private static void run(PixelKernels kernels, int iterations, boolean report)
+	{
+		Framebuffer framebuffer = new Framebuffer(Framebuffer.DEFAULT_PAGE_COUNT, kernels);
+		byte[] screen = new byte[Framebuffer.SCREEN_WIDTH * Framebuffer.SCREEN_HEIGHT];
+		int[] palette = new int[256];
+		int[] rgb = new int[screen.length];
+		framebuffer.copyPalette(palette);
+
+		/* A 32x32 sprite with a ragged transparent border, like a typical masked game sprite */
+		Sprite sprite = new Sprite(framebuffer);
+		Random random = new Random(0);
+		for(int y = 0; y < 32; y++)
+			for(int x = random.nextInt(6); x < 32 - random.nextInt(6); x++)
+				sprite.addPixel(new Sprite.Pixel(x, y, (byte) random.nextInt(256)));
+
+		long start = System.nanoTime();
+		for(int i = 0; i < iterations; i++)
+			framebuffer.clear();
+		long clear = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for(int i = 0; i < iterations; i++)
+			framebuffer.moveMem(0, -8);
+		long scroll = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for(int i = 0; i < iterations; i++)
+			framebuffer.fillRect((byte) i, 0, 0, Framebuffer.SCREEN_WIDTH - 1, Framebuffer.SCREEN_HEIGHT - 1);
+		long fill = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for(int i = 0; i < iterations; i++)
+		{
+			framebuffer.copyIndexedPixels(screen);
+			kernels.expand(screen, palette, rgb);
+		}
+		long expand = System.nanoTime() - start;
+
+		/* One sprite every SPRITE_SPACING pixels across and down the screen */
+		int sprites = ((Framebuffer.SCREEN_WIDTH + SPRITE_SPACING - 1) / SPRITE_SPACING)
+				* ((Framebuffer.SCREEN_HEIGHT + SPRITE_SPACING - 1) / SPRITE_SPACING);
+
+		start = System.nanoTime();
+		for(int i = 0; i < iterations; i++)
+			for(int y = 0; y < Framebuffer.SCREEN_HEIGHT; y += SPRITE_SPACING)
+				for(int x = 0; x < Framebuffer.SCREEN_WIDTH; x += SPRITE_SPACING)
+				{
+					framebuffer.translationX = x;
+					framebuffer.translationY = y;
+					sprite.draw();
+				}
+		long blit = System.nanoTime() - start;
+
+		if(report)
+			System.out.println(String.format("%-6s  clear %7.2f us  scroll %7.2f us  fill %7.2f us  "
+					+ "copy+expand %7.2f us  %d sprites %7.2f us", kernels.getName(), micros(clear, iterations),
+					micros(scroll, iterations), micros(fill, iterations), micros(expand, iterations), sprites,
+					micros(blit, iterations)));
+	}
+
+	private static double micros(long nanos, int iterations)
+	{
+		return nanos / 1000.0 / iterations;
+	}
+
+}
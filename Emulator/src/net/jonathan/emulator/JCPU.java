@@ -54,6 +54,18 @@ public class JCPU
 	public byte stackPointerHigh = 0x00;
 	public byte stackPointerLow = 0x00;
 
+	/* Total number of clock cycles since the last reset */
+	public long cycleCount = 0;
+
+	/* cycleCount as seen from other threads, which could read a torn plain long. Only updated every
+	 * PUBLISH_INTERVAL cycles so that the clock loop does not pay for a volatile write on every cycle.
+	 */
+	private static final long PUBLISH_INTERVAL = 1024;
+	private volatile long publishedCycleCount = 0;
+
+	/* Set by WAIT_VBLANK. Cycles still pass, but nothing runs until the presenter shows the next frame. */
+	public volatile boolean waitingForVBlank = false;
+
 	private boolean loadArgTwo = false;
 	private byte lastOutputZero = 0x00;
 
@@ -81,6 +93,10 @@ public class JCPU
 		stackPointerHigh = 0x00;
 		stackPointerLow = 0x00;
 
+		cycleCount = 0;
+		publishedCycleCount = 0;
+		waitingForVBlank = false;
+
 		registerB = 0x00;
 		registerC = 0x00;
 		registerH = 0x00;
@@ -95,8 +111,32 @@ public class JCPU
 		registerArgTwo = 0x00;
 	}
 
+	/* The cycle count, safe to read from any thread, at most PUBLISH_INTERVAL cycles behind */
+	public long getPublishedCycleCount()
+	{
+		return publishedCycleCount;
+	}
+
+	/* Jump the cycle count forward without running anything, e.g. over cycles spent waiting for vblank */
+	public void skipToCycle(long cycle)
+	{
+		if(cycle > cycleCount)
+		{
+			cycleCount = cycle;
+			publishedCycleCount = cycle;
+		}
+	}
+
 	public void cycle()
 	{
+		cycleCount++;
+
+		if(cycleCount % PUBLISH_INTERVAL == 0)
+			publishedCycleCount = cycleCount;
+
+		if(waitingForVBlank)
+			return;
+
 		byte originalPhaseCounter = phaseCounter;
 		switch (phaseCounter)
 		{
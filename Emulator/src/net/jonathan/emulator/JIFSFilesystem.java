@@ -0,0 +1,558 @@
+package net.jonathan.emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/* Host-side implementation of JIFS, the filesystem described in OS/src/modules/disk.asm, working directly on a storage
+ * image so disks can be prepared and inspected without running the guest.
+ *
+ * Details the guest specification leaves open, fixed here:
+ * - All 16-bit values are big-endian, like every other word the Pi interface transfers.
+ * - The block count in the superblock is at most 0xFFFF, so the last block of a full 16 MiB image is never used.
+ * - Bitmap bit for block N is bit (7 - N % 8) of byte N / 8 of the bitmap, i.e. the most significant bit comes first.
+ *   Blocks 0-64 (superblock, bitmap and directory) are always marked as used.
+ * - Directory entries are packed back to back across the 32 directory blocks. The file name is 13 bytes of name and 3
+ *   bytes of extension, without the dot, each padded with zeroes. An entry whose start block is 0 is free, because
+ *   block 0 is the superblock and can never hold a file.
+ * - Every file has at least one block, so an empty file is a single first block with 0 bytes used.
+ */
+public class JIFSFilesystem
+{
+
+	public static final int BLOCK_SIZE = StorageController.BLOCK_SIZE;
+	public static final int MAX_BLOCKS = 0xFFFF;
+
+	public static final int BITMAP_START = 1;
+	public static final int BITMAP_BLOCKS = 32;
+	public static final int DIRECTORY_START = 33;
+	public static final int DIRECTORY_BLOCKS = 32;
+	public static final int FIRST_DATA_BLOCK = DIRECTORY_START + DIRECTORY_BLOCKS;
+
+	public static final int NAME_LENGTH = 13;
+	public static final int EXTENSION_LENGTH = 3;
+	public static final int ENTRY_SIZE = NAME_LENGTH + EXTENSION_LENGTH + 2;
+	public static final int MAX_ENTRIES = DIRECTORY_BLOCKS * BLOCK_SIZE / ENTRY_SIZE;
+
+	/* Header sizes and data capacities of the first and of any following block of a file */
+	public static final int FIRST_HEADER_SIZE = 6;
+	public static final int NEXT_HEADER_SIZE = 4;
+
+	public static class Entry
+	{
+		private final String name;
+		private final int startBlock;
+		private final int sizeBlocks;
+		private final long length;
+
+		private Entry(String name, int startBlock, int sizeBlocks, long length)
+		{
+			this.name = name;
+			this.startBlock = startBlock;
+			this.sizeBlocks = sizeBlocks;
+			this.length = length;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public int getStartBlock()
+		{
+			return startBlock;
+		}
+
+		public int getSizeBlocks()
+		{
+			return sizeBlocks;
+		}
+
+		public long getLength()
+		{
+			return length;
+		}
+	}
+
+	private final StorageBackend storage;
+	private final int blockCount;
+
+	/* The bitmap and directory are small enough to keep in memory; they are written back on flush */
+	private final byte[] bitmap = new byte[BITMAP_BLOCKS * BLOCK_SIZE];
+	private final byte[] directory = new byte[DIRECTORY_BLOCKS * BLOCK_SIZE];
+	private boolean metadataDirty = false;
+
+	/* Directory slot of every file, by normalised name */
+	private final HashMap<String, Integer> slots = new HashMap<>();
+
+	/* Where the searches for free blocks and free directory slots start, so filling a disk stays linear */
+	private int allocationCursor = FIRST_DATA_BLOCK;
+	private int slotCursor = 0;
+	private int freeBlocks;
+
+	public JIFSFilesystem(StorageBackend storage) throws IOException
+	{
+		this.storage = storage;
+
+		byte[] superblock = new byte[BLOCK_SIZE];
+		storage.read(0, superblock, 0, BLOCK_SIZE);
+		blockCount = getWord(superblock, 0);
+
+		if(blockCount <= FIRST_DATA_BLOCK || (long) blockCount * BLOCK_SIZE > storage.getSize())
+			throw new IOException("Storage does not contain a JIFS filesystem");
+
+		storage.read((long) BITMAP_START * BLOCK_SIZE, bitmap, 0, bitmap.length);
+		storage.read((long) DIRECTORY_START * BLOCK_SIZE, directory, 0, directory.length);
+
+		for(int block = 0; block < blockCount; block++)
+			if(!isUsed(block))
+				freeBlocks++;
+
+		for(int slot = 0; slot < MAX_ENTRIES; slot++)
+			if(getWord(directory, slot * ENTRY_SIZE + NAME_LENGTH + EXTENSION_LENGTH) != 0)
+				slots.put(getSlotName(slot), slot);
+	}
+
+	/* Write an empty filesystem covering as much of the storage as JIFS can address */
+	public static JIFSFilesystem format(StorageBackend storage) throws IOException
+	{
+		int blockCount = (int) Math.min(MAX_BLOCKS, storage.getSize() / BLOCK_SIZE);
+		if(blockCount <= FIRST_DATA_BLOCK)
+			throw new IOException("Storage is too small for a JIFS filesystem");
+
+		byte[] superblock = new byte[BLOCK_SIZE];
+		putWord(superblock, 0, blockCount);
+		storage.write(0, superblock, 0, BLOCK_SIZE);
+
+		byte[] bitmap = new byte[BITMAP_BLOCKS * BLOCK_SIZE];
+		for(int block = 0; block < FIRST_DATA_BLOCK; block++)
+			bitmap[block >>> 3] |= 0x80 >>> (block & 7);
+		storage.write((long) BITMAP_START * BLOCK_SIZE, bitmap, 0, bitmap.length);
+
+		storage.write((long) DIRECTORY_START * BLOCK_SIZE, new byte[DIRECTORY_BLOCKS * BLOCK_SIZE], 0,
+				DIRECTORY_BLOCKS * BLOCK_SIZE);
+
+		return new JIFSFilesystem(storage);
+	}
+
+	/* Upper-case a host file name and check it fits the 13.3 format */
+	public static String normaliseName(String name)
+	{
+		String upper = name.toUpperCase();
+		int dot = upper.lastIndexOf('.');
+		String base = dot < 0 ? upper : upper.substring(0, dot);
+		String extension = dot < 0 ? "" : upper.substring(dot + 1);
+
+		if(base.isEmpty() || base.length() > NAME_LENGTH || extension.length() > EXTENSION_LENGTH)
+			throw new IllegalArgumentException("\"" + name + "\" is not a valid 13.3 file name");
+
+		for(char c : (base + extension).toCharArray())
+			if(c <= ' ' || c > '~' || c == '.')
+				throw new IllegalArgumentException("\"" + name + "\" is not a valid 13.3 file name");
+
+		return extension.isEmpty() ? base : base + "." + extension;
+	}
+
+	public int getBlockCount()
+	{
+		return blockCount;
+	}
+
+	public int getFreeBlockCount()
+	{
+		return freeBlocks;
+	}
+
+	public int getFileCount()
+	{
+		return slots.size();
+	}
+
+	public boolean exists(String name)
+	{
+		return slots.containsKey(normaliseName(name));
+	}
+
+	/* Every file, in directory order */
+	public List<Entry> list() throws IOException
+	{
+		List<Entry> entries = new ArrayList<>();
+
+		for(int slot = 0; slot < MAX_ENTRIES; slot++)
+		{
+			int start = getWord(directory, slot * ENTRY_SIZE + NAME_LENGTH + EXTENSION_LENGTH);
+			if(start != 0)
+				entries.add(getEntry(slot, start));
+		}
+
+		return entries;
+	}
+
+	public Entry getEntry(String name) throws IOException
+	{
+		Integer slot = slots.get(normaliseName(name));
+		return slot == null ? null : getEntry(slot, getWord(directory, slot * ENTRY_SIZE + NAME_LENGTH + EXTENSION_LENGTH));
+	}
+
+	private Entry getEntry(int slot, int start) throws IOException
+	{
+		byte[] header = new byte[FIRST_HEADER_SIZE];
+		readHeader(start, header, FIRST_HEADER_SIZE);
+
+		int sizeBlocks = getWord(header, 0);
+		long length = getWord(header, 4);
+		int next = getWord(header, 2);
+
+		/* Walk the chain reading only the headers, guarding against loops in a corrupt image */
+		for(int steps = 0; next != 0; steps++)
+		{
+			if(steps >= blockCount)
+				throw new IOException("File chain of " + getSlotName(slot) + " is corrupt");
+
+			readHeader(next, header, NEXT_HEADER_SIZE);
+			next = getWord(header, 0);
+			length += getWord(header, 2);
+		}
+
+		return new Entry(getSlotName(slot), start, sizeBlocks, length);
+	}
+
+	public InputStream openInputStream(String name) throws IOException
+	{
+		Integer slot = slots.get(normaliseName(name));
+		if(slot == null)
+			throw new IOException("File not found: " + name);
+
+		return new ChainInputStream(getWord(directory, slot * ENTRY_SIZE + NAME_LENGTH + EXTENSION_LENGTH));
+	}
+
+	/* Create a file, replacing any existing file with the same name. The file is complete once the stream is closed. */
+	public OutputStream openOutputStream(String name) throws IOException
+	{
+		String normalised = normaliseName(name);
+		delete(normalised);
+
+		int slot = findFreeSlot();
+		int start = allocateBlock();
+
+		int dot = normalised.indexOf('.');
+		String base = dot < 0 ? normalised : normalised.substring(0, dot);
+		String extension = dot < 0 ? "" : normalised.substring(dot + 1);
+
+		int offset = slot * ENTRY_SIZE;
+		for(int i = 0; i < NAME_LENGTH + EXTENSION_LENGTH; i++)
+			directory[offset + i] = 0;
+		for(int i = 0; i < base.length(); i++)
+			directory[offset + i] = (byte) base.charAt(i);
+		for(int i = 0; i < extension.length(); i++)
+			directory[offset + NAME_LENGTH + i] = (byte) extension.charAt(i);
+		putWord(directory, offset + NAME_LENGTH + EXTENSION_LENGTH, start);
+
+		slots.put(normalised, slot);
+		metadataDirty = true;
+
+		return new ChainOutputStream(start);
+	}
+
+	public byte[] readFile(String name) throws IOException
+	{
+		InputStream in = openInputStream(name);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BLOCK_SIZE * 16];
+		int read;
+
+		while((read = in.read(buffer)) > 0)
+			out.write(buffer, 0, read);
+
+		in.close();
+		return out.toByteArray();
+	}
+
+	public void writeFile(String name, byte[] data) throws IOException
+	{
+		OutputStream out = openOutputStream(name);
+		out.write(data);
+		out.close();
+	}
+
+	/* Returns false if there was no such file */
+	public boolean delete(String name) throws IOException
+	{
+		Integer slot = slots.remove(normaliseName(name));
+		if(slot == null)
+			return false;
+
+		int offset = slot * ENTRY_SIZE + NAME_LENGTH + EXTENSION_LENGTH;
+		int block = getWord(directory, offset);
+		putWord(directory, offset, 0);
+		slotCursor = Math.min(slotCursor, slot);
+
+		byte[] header = new byte[FIRST_HEADER_SIZE];
+		readHeader(block, header, FIRST_HEADER_SIZE);
+		int next = getWord(header, 2);
+		freeBlock(block);
+
+		for(int steps = 0; next != 0 && steps < blockCount; steps++)
+		{
+			block = next;
+			readHeader(block, header, NEXT_HEADER_SIZE);
+			next = getWord(header, 0);
+			freeBlock(block);
+		}
+
+		metadataDirty = true;
+		return true;
+	}
+
+	/* Write the bitmap and directory back and flush the storage */
+	public void flush() throws IOException
+	{
+		if(metadataDirty)
+		{
+			storage.write((long) BITMAP_START * BLOCK_SIZE, bitmap, 0, bitmap.length);
+			storage.write((long) DIRECTORY_START * BLOCK_SIZE, directory, 0, directory.length);
+			metadataDirty = false;
+		}
+
+		storage.flush();
+	}
+
+	private int findFreeSlot() throws IOException
+	{
+		for(; slotCursor < MAX_ENTRIES; slotCursor++)
+			if(getWord(directory, slotCursor * ENTRY_SIZE + NAME_LENGTH + EXTENSION_LENGTH) == 0)
+				return slotCursor++;
+
+		throw new IOException("Root directory is full");
+	}
+
+	private int allocateBlock() throws IOException
+	{
+		if(freeBlocks == 0)
+			throw new IOException("Disk is full");
+
+		for(int i = 0; i < blockCount; i++)
+		{
+			int block = allocationCursor;
+			allocationCursor = allocationCursor + 1 < blockCount ? allocationCursor + 1 : FIRST_DATA_BLOCK;
+
+			if(!isUsed(block))
+			{
+				bitmap[block >>> 3] |= 0x80 >>> (block & 7);
+				freeBlocks--;
+				metadataDirty = true;
+				return block;
+			}
+		}
+
+		throw new IOException("Disk is full");
+	}
+
+	private void freeBlock(int block)
+	{
+		if(block < FIRST_DATA_BLOCK || block >= blockCount || !isUsed(block))
+			return;
+
+		bitmap[block >>> 3] &= ~(0x80 >>> (block & 7));
+		freeBlocks++;
+	}
+
+	private boolean isUsed(int block)
+	{
+		return (bitmap[block >>> 3] & (0x80 >>> (block & 7))) != 0;
+	}
+
+	private String getSlotName(int slot)
+	{
+		StringBuilder name = new StringBuilder();
+		int offset = slot * ENTRY_SIZE;
+
+		for(int i = 0; i < NAME_LENGTH && directory[offset + i] != 0; i++)
+			name.append((char) (directory[offset + i] & 0xFF));
+
+		if(directory[offset + NAME_LENGTH] != 0)
+		{
+			name.append('.');
+			for(int i = NAME_LENGTH; i < NAME_LENGTH + EXTENSION_LENGTH && directory[offset + i] != 0; i++)
+				name.append((char) (directory[offset + i] & 0xFF));
+		}
+
+		return name.toString();
+	}
+
+	private void readHeader(int block, byte[] header, int length) throws IOException
+	{
+		if(block < FIRST_DATA_BLOCK || block >= blockCount)
+			throw new IOException("Block " + block + " is outside the data area");
+
+		storage.read((long) block * BLOCK_SIZE, header, 0, length);
+	}
+
+	private static int getWord(byte[] data, int offset)
+	{
+		return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+	}
+
+	private static void putWord(byte[] data, int offset, int value)
+	{
+		data[offset] = (byte) (value >>> 8);
+		data[offset + 1] = (byte) value;
+	}
+
+	/* Streams a file one block at a time */
+	private class ChainInputStream extends InputStream
+	{
+		private final byte[] block = new byte[BLOCK_SIZE];
+		private int position;
+		private int end;
+		private int next;
+		private int steps = 0;
+
+		private ChainInputStream(int start) throws IOException
+		{
+			load(start, FIRST_HEADER_SIZE);
+		}
+
+		private void load(int index, int headerSize) throws IOException
+		{
+			if(index < FIRST_DATA_BLOCK || index >= blockCount || steps++ > blockCount)
+				throw new IOException("File chain is corrupt");
+
+			storage.read((long) index * BLOCK_SIZE, block, 0, BLOCK_SIZE);
+			next = getWord(block, headerSize - 4);
+			position = headerSize;
+			end = headerSize + Math.min(getWord(block, headerSize - 2), BLOCK_SIZE - headerSize);
+		}
+
+		private boolean fill() throws IOException
+		{
+			while(position == end)
+			{
+				if(next == 0)
+					return false;
+
+				load(next, NEXT_HEADER_SIZE);
+			}
+
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			return fill() ? block[position++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+			if(length == 0)
+				return 0;
+			if(!fill())
+				return -1;
+
+			int total = 0;
+			while(length > 0 && fill())
+			{
+				int count = Math.min(length, end - position);
+				System.arraycopy(block, position, buffer, offset, count);
+
+				position += count;
+				offset += count;
+				length -= count;
+				total += count;
+			}
+
+			return total;
+		}
+	}
+
+	/* Fills one block at a time, chaining a new block on only when more data arrives */
+	private class ChainOutputStream extends OutputStream
+	{
+		private final int start;
+		private final byte[] block = new byte[BLOCK_SIZE];
+		private int current;
+		private int headerSize = FIRST_HEADER_SIZE;
+		private int position = FIRST_HEADER_SIZE;
+		private int sizeBlocks = 1;
+		private boolean closed = false;
+
+		private ChainOutputStream(int start)
+		{
+			this.start = start;
+			this.current = start;
+		}
+
+		private void spill() throws IOException
+		{
+			int nextBlock = allocateBlock();
+			writeCurrent(nextBlock);
+
+			current = nextBlock;
+			headerSize = NEXT_HEADER_SIZE;
+			position = NEXT_HEADER_SIZE;
+			sizeBlocks++;
+		}
+
+		private void writeCurrent(int nextBlock) throws IOException
+		{
+			putWord(block, headerSize - 4, nextBlock);
+			putWord(block, headerSize - 2, position - headerSize);
+
+			if(current == start)
+				putWord(block, 0, sizeBlocks);
+
+			storage.write((long) current * BLOCK_SIZE, block, 0, BLOCK_SIZE);
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			if(position == BLOCK_SIZE)
+				spill();
+
+			block[position++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException
+		{
+			while(length > 0)
+			{
+				if(position == BLOCK_SIZE)
+					spill();
+
+				int count = Math.min(length, BLOCK_SIZE - position);
+				System.arraycopy(buffer, offset, block, position, count);
+
+				position += count;
+				offset += count;
+				length -= count;
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if(closed)
+				return;
+
+			closed = true;
+			writeCurrent(0);
+
+			/* The first block went out before the final size was known */
+			if(current != start)
+			{
+				byte[] size = new byte[2];
+				putWord(size, 0, sizeBlocks);
+				storage.write((long) start * BLOCK_SIZE, size, 0, 2);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+package net.jonathan.emulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/* Command line front end for JIFSFilesystem. Images are opened the same way the emulator opens them, so compressed
+ * images work too.
+ *
+ * Usage:
+ * JIFSTool format <image> [size in KiB]   - Format an image, creating it with the given size if it does not exist
+ * JIFSTool ls <image>                     - List files
+ * JIFSTool put <image> <host file>...     - Copy host files in, named after the host file
+ * JIFSTool get <image> <name>...          - Copy files out into the current directory
+ * JIFSTool cat <image> <name>             - Write a file to standard output
+ * JIFSTool rm <image> <name>...           - Delete files
+ */
+public class JIFSTool
+{
+
+	public static void main(String[] args)
+	{
+		if(args.length < 2)
+			usage();
+
+		String command = args[0].toLowerCase();
+		File imageFile = new File(args[1]);
+
+		try
+		{
+			if(command.equals("format") && !imageFile.exists())
+			{
+				if(args.length < 3)
+					usage();
+
+				RandomAccessFile image = new RandomAccessFile(imageFile, "rw");
+				image.setLength(Long.parseLong(args[2]) * 1024);
+				image.close();
+			}
+
+			StorageBackend storage = StorageController.open(imageFile, command.equals("ls") || command.equals("get")
+					|| command.equals("cat"));
+
+			try
+			{
+				run(command, args, storage);
+			} finally
+			{
+				storage.close();
+			}
+		} catch (IOException | IllegalArgumentException e)
+		{
+			System.err.println("Error: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	private static void run(String command, String[] args, StorageBackend storage) throws IOException
+	{
+		long start = System.nanoTime();
+
+		switch(command)
+		{
+			case "format":
+			{
+				JIFSFilesystem filesystem = JIFSFilesystem.format(storage);
+				filesystem.flush();
+				System.out.println("Formatted " + filesystem.getBlockCount() + " blocks, "
+						+ filesystem.getFreeBlockCount() + " free");
+				break;
+			}
+			case "ls":
+			{
+				JIFSFilesystem filesystem = new JIFSFilesystem(storage);
+				for(JIFSFilesystem.Entry entry : filesystem.list())
+					System.out.println(String.format("%-17s %10d bytes %6d blocks  @ 0x%04X", entry.getName(),
+							entry.getLength(), entry.getSizeBlocks(), entry.getStartBlock()));
+
+				System.out.println(filesystem.getFileCount() + " files, " + filesystem.getFreeBlockCount() + " of "
+						+ filesystem.getBlockCount() + " blocks free");
+				break;
+			}
+			case "put":
+			{
+				JIFSFilesystem filesystem = new JIFSFilesystem(storage);
+				byte[] buffer = new byte[64 * 1024];
+
+				for(int i = 2; i < args.length; i++)
+				{
+					File hostFile = new File(args[i]);
+					InputStream in = new FileInputStream(hostFile);
+					OutputStream out = filesystem.openOutputStream(hostFile.getName());
+
+					try
+					{
+						int read;
+						while((read = in.read(buffer)) > 0)
+							out.write(buffer, 0, read);
+					} finally
+					{
+						in.close();
+						out.close();
+					}
+				}
+
+				filesystem.flush();
+				System.out.println("Copied " + (args.length - 2) + " files in " + elapsed(start));
+				break;
+			}
+			case "get":
+			{
+				JIFSFilesystem filesystem = new JIFSFilesystem(storage);
+				byte[] buffer = new byte[64 * 1024];
+
+				for(int i = 2; i < args.length; i++)
+				{
+					String name = JIFSFilesystem.normaliseName(args[i]);
+					InputStream in = filesystem.openInputStream(name);
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(name));
+
+					try
+					{
+						int read;
+						while((read = in.read(buffer)) > 0)
+							out.write(buffer, 0, read);
+					} finally
+					{
+						in.close();
+						out.close();
+					}
+				}
+
+				System.out.println("Copied " + (args.length - 2) + " files in " + elapsed(start));
+				break;
+			}
+			case "cat":
+			{
+				JIFSFilesystem filesystem = new JIFSFilesystem(storage);
+				InputStream in = new BufferedInputStream(filesystem.openInputStream(args[2]));
+				int b;
+
+				while((b = in.read()) >= 0)
+					System.out.write(b);
+
+				System.out.flush();
+				in.close();
+				break;
+			}
+			case "rm":
+			{
+				JIFSFilesystem filesystem = new JIFSFilesystem(storage);
+
+				for(int i = 2; i < args.length; i++)
+					if(!filesystem.delete(args[i]))
+						System.err.println("No such file: " + args[i]);
+
+				filesystem.flush();
+				break;
+			}
+			default:
+				usage();
+		}
+	}
+
+	private static String elapsed(long start)
+	{
+		return ((System.nanoTime() - start) / 1000000) + " ms";
+	}
+
+	private static void usage()
+	{
+		System.err.println("Usage: JIFSTool format <image> [size in KiB]");
+		System.err.println("       JIFSTool ls <image>");
+		System.err.println("       JIFSTool put <image> <host file>...");
+		System.err.println("       JIFSTool get <image> <name>...");
+		System.err.println("       JIFSTool cat <image> <name>");
+		System.err.println("       JIFSTool rm <image> <name>...");
+		System.exit(1);
+	}
+
+}
@@ -0,0 +1,189 @@
+package net.jonathan.emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* Storage backed by memory-mapped views of the image. Guest reads and writes become plain memory accesses, and the OS
+ * pages the image in and out. Large images are mapped in fixed-size windows, each one only when it is first touched,
+ * so multi-GiB images never have to be mapped whole. Pages that have been written are tracked so that flushing only
+ * forces the windows that actually changed.
+ */
+public class MappedStorageBackend implements StorageBackend
+{
+
+	public static final int PAGE_SIZE = 4096;
+	public static final int DEFAULT_WINDOW_SIZE = 256 * 1024 * 1024;
+
+	private final RandomAccessFile file;
+	private final long size;
+	private final boolean readOnly;
+
+	private final int windowSize;
+
+	/* Atomic so that a read-only image can be shared, and lazily mapped, by several machines at once */
+	private final AtomicReferenceArray<MappedByteBuffer> windows;
+
+	private final BitSet dirtyPages = new BitSet();
+
+	public MappedStorageBackend(File storageFile, boolean readOnly) throws IOException
+	{
+		this(storageFile, readOnly, DEFAULT_WINDOW_SIZE);
+	}
+
+	public MappedStorageBackend(File storageFile, boolean readOnly, int windowSize) throws IOException
+	{
+		if(windowSize <= 0 || windowSize % PAGE_SIZE != 0)
+			throw new IllegalArgumentException("Window size must be a positive multiple of the page size");
+
+		this.readOnly = readOnly;
+		this.windowSize = windowSize;
+
+		file = new RandomAccessFile(storageFile, readOnly ? "r" : "rw");
+		size = file.length();
+		windows = new AtomicReferenceArray<>((int) ((size + windowSize - 1) / windowSize));
+
+		/* Map the first window straight away, so that an image which cannot be mapped fails here and not mid-run */
+		try
+		{
+			if(windows.length() > 0)
+				getWindow(0);
+		} catch (IOException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	private MappedByteBuffer getWindow(int index) throws IOException
+	{
+		MappedByteBuffer window = windows.get(index);
+		return window != null ? window : mapWindow(index);
+	}
+
+	private synchronized MappedByteBuffer mapWindow(int index) throws IOException
+	{
+		MappedByteBuffer window = windows.get(index);
+
+		if(window == null)
+		{
+			long start = (long) index * windowSize;
+			window = file.getChannel().map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+					start, Math.min(windowSize, size - start));
+			windows.set(index, window);
+		}
+
+		return window;
+	}
+
+	@Override
+	public long getSize()
+	{
+		return size;
+	}
+
+	@Override
+	public void read(long address, byte[] buffer, int offset, int length) throws IOException
+	{
+		while(length > 0)
+		{
+			if(address >= size)
+			{
+				for(int i = 0; i < length; i++)
+					buffer[offset + i] = 0;
+				return;
+			}
+
+			MappedByteBuffer window = getWindow((int) (address / windowSize));
+			int windowOffset = (int) (address % windowSize);
+			int count = Math.min(length, window.capacity() - windowOffset);
+
+			/* Absolute gets for short reads avoid allocating a duplicate view for every guest word */
+			if(count <= 8)
+				for(int i = 0; i < count; i++)
+					buffer[offset + i] = window.get(windowOffset + i);
+			else
+			{
+				ByteBuffer view = window.duplicate();
+				view.position(windowOffset);
+				view.get(buffer, offset, count);
+			}
+
+			address += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	@Override
+	public void write(long address, byte[] buffer, int offset, int length) throws IOException
+	{
+		if(readOnly)
+			throw new IOException("Storage is read-only");
+
+		length = (int) Math.max(0, Math.min(length, size - address));
+		if(length == 0)
+			return;
+
+		dirtyPages.set((int) (address / PAGE_SIZE), (int) ((address + length - 1) / PAGE_SIZE) + 1);
+
+		while(length > 0)
+		{
+			MappedByteBuffer window = getWindow((int) (address / windowSize));
+			int windowOffset = (int) (address % windowSize);
+			int count = Math.min(length, window.capacity() - windowOffset);
+
+			if(count <= 8)
+				for(int i = 0; i < count; i++)
+					window.put(windowOffset + i, buffer[offset + i]);
+			else
+			{
+				ByteBuffer view = window.duplicate();
+				view.position(windowOffset);
+				view.put(buffer, offset, count);
+			}
+
+			address += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	@Override
+	public void flush()
+	{
+		if(dirtyPages.isEmpty())
+			return;
+
+		int pagesPerWindow = windowSize / PAGE_SIZE;
+
+		for(int page = dirtyPages.nextSetBit(0); page >= 0; page = dirtyPages.nextSetBit(page))
+		{
+			int window = page / pagesPerWindow;
+			windows.get(window).force();
+
+			/* Skip the rest of this window's pages, they were just forced along with it */
+			page = (window + 1) * pagesPerWindow;
+		}
+
+		dirtyPages.clear();
+	}
+
+	public int getDirtyPageCount()
+	{
+		return dirtyPages.cardinality();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		flush();
+		file.close();
+	}
+
+}
@@ -0,0 +1,318 @@
+package net.jonathan.emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/* Copy-on-write storage. The base image is opened read-only once per JVM and shared by every machine using it; each
+ * machine only keeps the 256-byte blocks it has written, in memory and optionally in a sparse delta file.
+ *
+ * Delta file layout:
+ * 4 bytes - magic "JCOV"
+ * 8 bytes - size of the base image
+ * Followed by any number of records, each 8 bytes of block index and then the 256 bytes of the block.
+ */
+public class OverlayStorageBackend implements StorageBackend
+{
+
+	private static final int DELTA_MAGIC = 0x4A434F56;
+	private static final int DELTA_HEADER_SIZE = 12;
+	private static final int DELTA_RECORD_SIZE = 8 + StorageController.BLOCK_SIZE;
+
+	private static class SharedBase
+	{
+		private StorageBackend backend;
+		private int references;
+	}
+
+	/* Base images currently open, by canonical path */
+	private static final HashMap<String, SharedBase> sharedBases = new HashMap<>();
+
+	private final File baseFile;
+	private final String basePath;
+	private StorageBackend base;
+
+	private final HashMap<Long, byte[]> blocks = new HashMap<>();
+	private final HashSet<Long> dirtyBlocks = new HashSet<>();
+
+	private RandomAccessFile deltaFile;
+
+	/* Where each block's record lives in the delta file */
+	private final HashMap<Long, Long> deltaSlots = new HashMap<>();
+	private long nextDeltaSlot = DELTA_HEADER_SIZE;
+
+	private OverlayStorageBackend(File baseFile, StorageBackend base, File delta) throws IOException
+	{
+		this.baseFile = baseFile;
+		this.basePath = baseFile.getCanonicalPath();
+		this.base = base;
+
+		if(delta != null)
+		{
+			deltaFile = new RandomAccessFile(delta, "rw");
+
+			try
+			{
+				if(deltaFile.length() == 0)
+					writeDeltaHeader();
+				else
+					loadDelta();
+			} catch (IOException e)
+			{
+				deltaFile.close();
+				throw e;
+			}
+		}
+	}
+
+	/* Open the base image (shared with any other overlay on the same image) with a private delta on top of it. If
+	 * deltaFile is null the delta only lives in memory.
+	 */
+	public static OverlayStorageBackend open(File baseFile, File deltaFile) throws IOException
+	{
+		StorageBackend base = acquireBase(baseFile);
+
+		try
+		{
+			return new OverlayStorageBackend(baseFile, base, deltaFile);
+		} catch (IOException e)
+		{
+			releaseBase(baseFile.getCanonicalPath());
+			throw e;
+		}
+	}
+
+	private static synchronized StorageBackend acquireBase(File baseFile) throws IOException
+	{
+		String path = baseFile.getCanonicalPath();
+		SharedBase shared = sharedBases.get(path);
+
+		if(shared == null)
+		{
+			shared = new SharedBase();
+
+			shared.backend = StorageController.open(baseFile, true);
+
+			sharedBases.put(path, shared);
+		}
+
+		shared.references++;
+		return shared.backend;
+	}
+
+	private static synchronized void releaseBase(String path) throws IOException
+	{
+		SharedBase shared = sharedBases.get(path);
+		if(shared == null)
+			return;
+
+		if(--shared.references == 0)
+		{
+			sharedBases.remove(path);
+			shared.backend.close();
+		}
+	}
+
+	@Override
+	public long getSize()
+	{
+		return base.getSize();
+	}
+
+	@Override
+	public void read(long address, byte[] buffer, int offset, int length) throws IOException
+	{
+		while(length > 0)
+		{
+			int blockOffset = (int) (address % StorageController.BLOCK_SIZE);
+			int count = Math.min(length, StorageController.BLOCK_SIZE - blockOffset);
+
+			byte[] block = blocks.get(address / StorageController.BLOCK_SIZE);
+			if(block != null)
+				System.arraycopy(block, blockOffset, buffer, offset, count);
+			else
+				base.read(address, buffer, offset, count);
+
+			address += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	@Override
+	public void write(long address, byte[] buffer, int offset, int length) throws IOException
+	{
+		length = (int) Math.max(0, Math.min(length, getSize() - address));
+
+		while(length > 0)
+		{
+			long index = address / StorageController.BLOCK_SIZE;
+			int blockOffset = (int) (address % StorageController.BLOCK_SIZE);
+			int count = Math.min(length, StorageController.BLOCK_SIZE - blockOffset);
+
+			byte[] block = blocks.get(index);
+			if(block == null)
+			{
+				/* First write to this block: copy it up from the base image */
+				block = new byte[StorageController.BLOCK_SIZE];
+				base.read(index * StorageController.BLOCK_SIZE, block, 0, StorageController.BLOCK_SIZE);
+				blocks.put(index, block);
+			}
+
+			System.arraycopy(buffer, offset, block, blockOffset, count);
+			dirtyBlocks.add(index);
+
+			address += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	public int getModifiedBlockCount()
+	{
+		return blocks.size();
+	}
+
+	/* Persist the delta. The base image is never touched here. */
+	@Override
+	public void flush() throws IOException
+	{
+		if(deltaFile == null || dirtyBlocks.isEmpty())
+		{
+			dirtyBlocks.clear();
+			return;
+		}
+
+		ByteBuffer record = ByteBuffer.allocate(DELTA_RECORD_SIZE);
+
+		for(Long index : dirtyBlocks)
+		{
+			Long slot = deltaSlots.get(index);
+			if(slot == null)
+			{
+				slot = nextDeltaSlot;
+				nextDeltaSlot += DELTA_RECORD_SIZE;
+				deltaSlots.put(index, slot);
+			}
+
+			record.clear();
+			record.putLong(index);
+			record.put(blocks.get(index));
+			record.flip();
+
+			while(record.hasRemaining())
+				deltaFile.getChannel().write(record, slot + record.position());
+		}
+
+		deltaFile.getChannel().force(false);
+		dirtyBlocks.clear();
+	}
+
+	/* Write every modified block into the base image and start again with an empty delta. The shared base backend
+	 * is read-only and may cache blocks, so it is closed for the commit and reopened afterwards; that is only safe
+	 * while no other machine is using the same base, so committing is refused until this is the last one.
+	 */
+	public void commit() throws IOException
+	{
+		if(blocks.isEmpty())
+			return;
+
+		synchronized(OverlayStorageBackend.class)
+		{
+			SharedBase shared = sharedBases.get(basePath);
+			if(shared.references > 1)
+				throw new IOException("The base image is in use by " + (shared.references - 1) + " other machine(s)");
+
+			shared.backend.close();
+
+			try
+			{
+				/* Go through a backend rather than the raw file, so that compressed base images are committed correctly */
+				StorageBackend baseWriter = StorageController.open(baseFile, false);
+				try
+				{
+					for(Map.Entry<Long, byte[]> entry : blocks.entrySet())
+					{
+						long position = entry.getKey() * StorageController.BLOCK_SIZE;
+						int length = (int) Math.min(StorageController.BLOCK_SIZE, getSize() - position);
+						baseWriter.write(position, entry.getValue(), 0, length);
+					}
+				} finally
+				{
+					baseWriter.close();
+				}
+			} finally
+			{
+				shared.backend = StorageController.open(baseFile, true);
+				base = shared.backend;
+			}
+		}
+
+		discard();
+	}
+
+	/* Throw away every modification and go back to reading the base image */
+	public void discard() throws IOException
+	{
+		blocks.clear();
+		dirtyBlocks.clear();
+		deltaSlots.clear();
+		nextDeltaSlot = DELTA_HEADER_SIZE;
+
+		if(deltaFile != null)
+		{
+			deltaFile.setLength(0);
+			writeDeltaHeader();
+			deltaFile.getChannel().force(false);
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		flush();
+
+		if(deltaFile != null)
+			deltaFile.close();
+
+		releaseBase(basePath);
+	}
+
+	private void writeDeltaHeader() throws IOException
+	{
+		deltaFile.seek(0);
+		deltaFile.writeInt(DELTA_MAGIC);
+		deltaFile.writeLong(base.getSize());
+	}
+
+	private void loadDelta() throws IOException
+	{
+		deltaFile.seek(0);
+
+		if(deltaFile.length() < DELTA_HEADER_SIZE || deltaFile.readInt() != DELTA_MAGIC)
+			throw new IOException("Not a storage overlay file");
+		if(deltaFile.readLong() != base.getSize())
+			throw new IOException("Storage overlay was made for a base image of a different size");
+
+		/* Ignore a torn record at the end, left over from a crash in the middle of a flush */
+		long records = (deltaFile.length() - DELTA_HEADER_SIZE) / DELTA_RECORD_SIZE;
+
+		for(long i = 0; i < records; i++)
+		{
+			long slot = DELTA_HEADER_SIZE + i * DELTA_RECORD_SIZE;
+			long index = deltaFile.readLong();
+			byte[] block = new byte[StorageController.BLOCK_SIZE];
+			deltaFile.readFully(block);
+
+			blocks.put(index, block);
+			deltaSlots.put(index, slot);
+		}
+
+		nextDeltaSlot = DELTA_HEADER_SIZE + records * DELTA_RECORD_SIZE;
+	}
+
+}
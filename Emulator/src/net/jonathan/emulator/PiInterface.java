@@ -1,11 +1,21 @@
 package net.jonathan.emulator;
 
-import java.awt.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.HashMap;
 
 public class PiInterface
 {
 
+	/* Status codes returned by the file commands */
+	private static final byte FILE_OK = 0x00;
+	private static final byte FILE_NOT_FOUND = 0x01;
+	private static final byte FILE_ERROR = 0x02;
+
+	private static final int FILE_NAME_MAX_LENGTH = 17;
+
 	private HashMap<Integer, Sprite> spriteMap = new HashMap<>();
 	private boolean[] usedSpriteIDs = new boolean[256];
 
@@ -17,202 +27,103 @@ public class PiInterface
 
 	private boolean isNextTranslateNegative = false;
 
-	private short addressHigh;
-	private short addressLow;
+	/* Unsigned 16-bit halves of the 32-bit storage address */
+	private int addressHigh;
+	private int addressLow;
+
+	/* Host-side JIFS file access: guest RAM addresses of the file name and the transfer buffer, and the open file */
+	private int fileNameAddress;
+	private int fileBufferAddress;
+	private JIFSFilesystem filesystem;
+	private InputStream fileInput;
+	private OutputStream fileOutput;
+
+	/* Palette entry being programmed, and the red and green halves waiting for their blue */
+	private int paletteIndex;
+	private int paletteRed;
+	private int paletteGreen;
 
-	private GraphicsPanel panel;
+	/* Corners of the next shape, in pixels before translation */
+	private int shapeX0;
+	private int shapeY0;
+	private int shapeX1;
+	private int shapeY1;
+
+	/* Sprite layer the layer commands apply to */
+	private int layerSlot;
+
+	private Framebuffer panel;
 	private PiKeyboardListener keyboardListener;
 	private StorageController storageController;
+	private DisplayList displayList;
 
-	/* Characters that will be pre-uploaded to the Raspberry Pi (8x8) */
-	private static final int[][] initChars = new int[][]
-	{
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0000 (nul)
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0001
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0002
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0003
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0004
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0005
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0006
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0007
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0008
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0009
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+000A
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+000B
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+000C
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+000D
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+000E
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+000F
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0010
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0011
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0012
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0013
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0014
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0015
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0016
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0017
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0018
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0019
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+001A
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+001B
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+001C
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+001D
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+001E
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+001F
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0020 (space)
-		{ 0x18, 0x3C, 0x3C, 0x18, 0x18, 0x00, 0x18, 0x00},   // U+0021 (!)
-		{ 0x36, 0x36, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0022 (")
-		{ 0x36, 0x36, 0x7F, 0x36, 0x7F, 0x36, 0x36, 0x00},   // U+0023 (#)
-		{ 0x0C, 0x3E, 0x03, 0x1E, 0x30, 0x1F, 0x0C, 0x00},   // U+0024 ($)
-		{ 0x00, 0x63, 0x33, 0x18, 0x0C, 0x66, 0x63, 0x00},   // U+0025 (%)
-		{ 0x1C, 0x36, 0x1C, 0x6E, 0x3B, 0x33, 0x6E, 0x00},   // U+0026 (&)
-		{ 0x06, 0x06, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0027 (')
-		{ 0x18, 0x0C, 0x06, 0x06, 0x06, 0x0C, 0x18, 0x00},   // U+0028 (()
-		{ 0x06, 0x0C, 0x18, 0x18, 0x18, 0x0C, 0x06, 0x00},   // U+0029 ())
-		{ 0x00, 0x66, 0x3C, 0xFF, 0x3C, 0x66, 0x00, 0x00},   // U+002A (*)
-		{ 0x00, 0x0C, 0x0C, 0x3F, 0x0C, 0x0C, 0x00, 0x00},   // U+002B (+)
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x0C, 0x0C, 0x06},   // U+002C (,)
-		{ 0x00, 0x00, 0x00, 0x3F, 0x00, 0x00, 0x00, 0x00},   // U+002D (-)
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x0C, 0x0C, 0x00},   // U+002E (.)
-		{ 0x60, 0x30, 0x18, 0x0C, 0x06, 0x03, 0x01, 0x00},   // U+002F (/)
-		{ 0x3E, 0x63, 0x73, 0x7B, 0x6F, 0x67, 0x3E, 0x00},   // U+0030 (0)
-		{ 0x0C, 0x0E, 0x0C, 0x0C, 0x0C, 0x0C, 0x3F, 0x00},   // U+0031 (1)
-		{ 0x1E, 0x33, 0x30, 0x1C, 0x06, 0x33, 0x3F, 0x00},   // U+0032 (2)
-		{ 0x1E, 0x33, 0x30, 0x1C, 0x30, 0x33, 0x1E, 0x00},   // U+0033 (3)
-		{ 0x38, 0x3C, 0x36, 0x33, 0x7F, 0x30, 0x78, 0x00},   // U+0034 (4)
-		{ 0x3F, 0x03, 0x1F, 0x30, 0x30, 0x33, 0x1E, 0x00},   // U+0035 (5)
-		{ 0x1C, 0x06, 0x03, 0x1F, 0x33, 0x33, 0x1E, 0x00},   // U+0036 (6)
-		{ 0x3F, 0x33, 0x30, 0x18, 0x0C, 0x0C, 0x0C, 0x00},   // U+0037 (7)
-		{ 0x1E, 0x33, 0x33, 0x1E, 0x33, 0x33, 0x1E, 0x00},   // U+0038 (8)
-		{ 0x1E, 0x33, 0x33, 0x3E, 0x30, 0x18, 0x0E, 0x00},   // U+0039 (9)
-		{ 0x00, 0x0C, 0x0C, 0x00, 0x00, 0x0C, 0x0C, 0x00},   // U+003A (:)
-		{ 0x00, 0x0C, 0x0C, 0x00, 0x00, 0x0C, 0x0C, 0x06},   // U+003B (//)
-		{ 0x18, 0x0C, 0x06, 0x03, 0x06, 0x0C, 0x18, 0x00},   // U+003C (<)
-		{ 0x00, 0x00, 0x3F, 0x00, 0x00, 0x3F, 0x00, 0x00},   // U+003D (=)
-		{ 0x06, 0x0C, 0x18, 0x30, 0x18, 0x0C, 0x06, 0x00},   // U+003E (>)
-		{ 0x1E, 0x33, 0x30, 0x18, 0x0C, 0x00, 0x0C, 0x00},   // U+003F (?)
-		{ 0x3E, 0x63, 0x7B, 0x7B, 0x7B, 0x03, 0x1E, 0x00},   // U+0040 (@)
-		{ 0x0C, 0x1E, 0x33, 0x33, 0x3F, 0x33, 0x33, 0x00},   // U+0041 (A)
-		{ 0x3F, 0x66, 0x66, 0x3E, 0x66, 0x66, 0x3F, 0x00},   // U+0042 (B)
-		{ 0x3C, 0x66, 0x03, 0x03, 0x03, 0x66, 0x3C, 0x00},   // U+0043 (C)
-		{ 0x1F, 0x36, 0x66, 0x66, 0x66, 0x36, 0x1F, 0x00},   // U+0044 (D)
-		{ 0x7F, 0x46, 0x16, 0x1E, 0x16, 0x46, 0x7F, 0x00},   // U+0045 (E)
-		{ 0x7F, 0x46, 0x16, 0x1E, 0x16, 0x06, 0x0F, 0x00},   // U+0046 (F)
-		{ 0x3C, 0x66, 0x03, 0x03, 0x73, 0x66, 0x7C, 0x00},   // U+0047 (G)
-		{ 0x33, 0x33, 0x33, 0x3F, 0x33, 0x33, 0x33, 0x00},   // U+0048 (H)
-		{ 0x1E, 0x0C, 0x0C, 0x0C, 0x0C, 0x0C, 0x1E, 0x00},   // U+0049 (I)
-		{ 0x78, 0x30, 0x30, 0x30, 0x33, 0x33, 0x1E, 0x00},   // U+004A (J)
-		{ 0x67, 0x66, 0x36, 0x1E, 0x36, 0x66, 0x67, 0x00},   // U+004B (K)
-		{ 0x0F, 0x06, 0x06, 0x06, 0x46, 0x66, 0x7F, 0x00},   // U+004C (L)
-		{ 0x63, 0x77, 0x7F, 0x7F, 0x6B, 0x63, 0x63, 0x00},   // U+004D (M)
-		{ 0x63, 0x67, 0x6F, 0x7B, 0x73, 0x63, 0x63, 0x00},   // U+004E (N)
-		{ 0x1C, 0x36, 0x63, 0x63, 0x63, 0x36, 0x1C, 0x00},   // U+004F (O)
-		{ 0x3F, 0x66, 0x66, 0x3E, 0x06, 0x06, 0x0F, 0x00},   // U+0050 (P)
-		{ 0x1E, 0x33, 0x33, 0x33, 0x3B, 0x1E, 0x38, 0x00},   // U+0051 (Q)
-		{ 0x3F, 0x66, 0x66, 0x3E, 0x36, 0x66, 0x67, 0x00},   // U+0052 (R)
-		{ 0x1E, 0x33, 0x07, 0x0E, 0x38, 0x33, 0x1E, 0x00},   // U+0053 (S)
-		{ 0x3F, 0x2D, 0x0C, 0x0C, 0x0C, 0x0C, 0x1E, 0x00},   // U+0054 (T)
-		{ 0x33, 0x33, 0x33, 0x33, 0x33, 0x33, 0x3F, 0x00},   // U+0055 (U)
-		{ 0x33, 0x33, 0x33, 0x33, 0x33, 0x1E, 0x0C, 0x00},   // U+0056 (V)
-		{ 0x63, 0x63, 0x63, 0x6B, 0x7F, 0x77, 0x63, 0x00},   // U+0057 (W)
-		{ 0x63, 0x63, 0x36, 0x1C, 0x1C, 0x36, 0x63, 0x00},   // U+0058 (X)
-		{ 0x33, 0x33, 0x33, 0x1E, 0x0C, 0x0C, 0x1E, 0x00},   // U+0059 (Y)
-		{ 0x7F, 0x63, 0x31, 0x18, 0x4C, 0x66, 0x7F, 0x00},   // U+005A (Z)
-		{ 0x1E, 0x06, 0x06, 0x06, 0x06, 0x06, 0x1E, 0x00},   // U+005B ([)
-		{ 0x03, 0x06, 0x0C, 0x18, 0x30, 0x60, 0x40, 0x00},   // U+005C (\)
-		{ 0x1E, 0x18, 0x18, 0x18, 0x18, 0x18, 0x1E, 0x00},   // U+005D (])
-		{ 0x08, 0x1C, 0x36, 0x63, 0x00, 0x00, 0x00, 0x00},   // U+005E (^)
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0xFF},   // U+005F (_)
-		{ 0x0C, 0x0C, 0x18, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+0060 (`)
-		{ 0x00, 0x00, 0x1E, 0x30, 0x3E, 0x33, 0x6E, 0x00},   // U+0061 (a)
-		{ 0x07, 0x06, 0x06, 0x3E, 0x66, 0x66, 0x3B, 0x00},   // U+0062 (b)
-		{ 0x00, 0x00, 0x1E, 0x33, 0x03, 0x33, 0x1E, 0x00},   // U+0063 (c)
-		{ 0x38, 0x30, 0x30, 0x3e, 0x33, 0x33, 0x6E, 0x00},   // U+0064 (d)
-		{ 0x00, 0x00, 0x1E, 0x33, 0x3f, 0x03, 0x1E, 0x00},   // U+0065 (e)
-		{ 0x1C, 0x36, 0x06, 0x0f, 0x06, 0x06, 0x0F, 0x00},   // U+0066 (f)
-		{ 0x00, 0x00, 0x6E, 0x33, 0x33, 0x3E, 0x30, 0x1F},   // U+0067 (g)
-		{ 0x07, 0x06, 0x36, 0x6E, 0x66, 0x66, 0x67, 0x00},   // U+0068 (h)
-		{ 0x0C, 0x00, 0x0E, 0x0C, 0x0C, 0x0C, 0x1E, 0x00},   // U+0069 (i)
-		{ 0x30, 0x00, 0x30, 0x30, 0x30, 0x33, 0x33, 0x1E},   // U+006A (j)
-		{ 0x07, 0x06, 0x66, 0x36, 0x1E, 0x36, 0x67, 0x00},   // U+006B (k)
-		{ 0x0E, 0x0C, 0x0C, 0x0C, 0x0C, 0x0C, 0x1E, 0x00},   // U+006C (l)
-		{ 0x00, 0x00, 0x33, 0x7F, 0x7F, 0x6B, 0x63, 0x00},   // U+006D (m)
-		{ 0x00, 0x00, 0x1F, 0x33, 0x33, 0x33, 0x33, 0x00},   // U+006E (n)
-		{ 0x00, 0x00, 0x1E, 0x33, 0x33, 0x33, 0x1E, 0x00},   // U+006F (o)
-		{ 0x00, 0x00, 0x3B, 0x66, 0x66, 0x3E, 0x06, 0x0F},   // U+0070 (p)
-		{ 0x00, 0x00, 0x6E, 0x33, 0x33, 0x3E, 0x30, 0x78},   // U+0071 (q)
-		{ 0x00, 0x00, 0x3B, 0x6E, 0x66, 0x06, 0x0F, 0x00},   // U+0072 (r)
-		{ 0x00, 0x00, 0x3E, 0x03, 0x1E, 0x30, 0x1F, 0x00},   // U+0073 (s)
-		{ 0x08, 0x0C, 0x3E, 0x0C, 0x0C, 0x2C, 0x18, 0x00},   // U+0074 (t)
-		{ 0x00, 0x00, 0x33, 0x33, 0x33, 0x33, 0x6E, 0x00},   // U+0075 (u)
-		{ 0x00, 0x00, 0x33, 0x33, 0x33, 0x1E, 0x0C, 0x00},   // U+0076 (v)
-		{ 0x00, 0x00, 0x63, 0x6B, 0x7F, 0x7F, 0x36, 0x00},   // U+0077 (w)
-		{ 0x00, 0x00, 0x63, 0x36, 0x1C, 0x36, 0x63, 0x00},   // U+0078 (x)
-		{ 0x00, 0x00, 0x33, 0x33, 0x33, 0x3E, 0x30, 0x1F},   // U+0079 (y)
-		{ 0x00, 0x00, 0x3F, 0x19, 0x0C, 0x26, 0x3F, 0x00},   // U+007A (z)
-		{ 0x38, 0x0C, 0x0C, 0x07, 0x0C, 0x0C, 0x38, 0x00},   // U+007B
-		{ 0x18, 0x18, 0x18, 0x00, 0x18, 0x18, 0x18, 0x00},   // U+007C (|)
-		{ 0x07, 0x0C, 0x0C, 0x38, 0x0C, 0x0C, 0x07, 0x00},   // U+007D
-		{ 0x6E, 0x3B, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00},   // U+007E (~)
-		{ 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00}    // U+007F
-	};
-
-	public PiInterface(GraphicsPanel panel, PiKeyboardListener keyboardListener, StorageController storageController)
+	public PiInterface(Framebuffer panel, PiKeyboardListener keyboardListener, StorageController storageController)
 	{
 		this.panel = panel;
 		this.keyboardListener = keyboardListener;
 		this.storageController = storageController;
+		displayList = new DisplayList(this, panel);
 
-		/* Upload the default character sprites */
-		for(int i = 0; i < initChars.length; i++)
-		{
-			usedSpriteIDs[i] = true;
-			int[] currentChar = initChars[i];
-
-			Sprite charSprite = new Sprite(this.panel);
-
-			for(int j = 0; j < currentChar.length; j++)
-			{
-				byte row = (byte) (currentChar[j] & 0xFF);
-
-				/* Loop through each bit in the byte. If it's set, add a pixel. */
-				for(int k = 0; k < 8; k++)
-					if((row & (1 << k)) != 0)
-						charSprite.addPixel(new Sprite.Pixel(k, j, (byte) 0xFF));
-			}
-
-			spriteMap.put(i, charSprite);
-		}
+		resetSprites();
 	}
 
 	public void reset()
 	{
-		spriteMap = new HashMap<>();
-		usedSpriteIDs = new boolean[256];
 		boundSprite = 0xFF;
 		boundSpriteExists = false;
 		isNextTranslateNegative = false;
 
-		/* Upload the default character sprites */
-		for(int i = 0; i < initChars.length; i++)
-		{
-			usedSpriteIDs[i] = true;
-			int[] currentChar = initChars[i];
+		resetSprites();
+		closeFile();
+		panel.resetPages();
+		panel.resetPalette();
+		paletteIndex = 0;
+		panel.getTextLayer().reset();
+		shapeX0 = 0;
+		shapeY0 = 0;
+		shapeX1 = 0;
+		shapeY1 = 0;
+		layerSlot = 0;
+		panel.getSpriteLayers().reset();
+	}
 
-			Sprite charSprite = new Sprite(this.panel);
+	/* The default characters are not copied per machine. Their IDs are simply marked as used, and draws fall through
+	 * to the shared glyph atlas until the guest replaces or modifies one of them.
+	 */
+	private void resetSprites()
+	{
+		spriteMap.clear();
+		Arrays.fill(usedSpriteIDs, false);
+		Arrays.fill(usedSpriteIDs, 0, GlyphAtlas.GLYPH_COUNT, true);
+	}
 
-			for(int j = 0; j < currentChar.length; j++)
-			{
-				byte row = (byte) (currentChar[j] & 0xFF);
+	private boolean isAtlasGlyph(int id)
+	{
+		return id < GlyphAtlas.GLYPH_COUNT && usedSpriteIDs[id] && !spriteMap.containsKey(id);
+	}
 
-				/* Loop through each bit in the byte. If it's set, add a pixel. */
-				for(int k = 0; k < 8; k++)
-					if((row & (1 << k)) != 0)
-						charSprite.addPixel(new Sprite.Pixel(k, j, (byte) 0xFF));
-			}
+	/* Draw a sprite at the current translation, also used by display lists */
+	void drawSprite(int id)
+	{
+		if(spriteMap.containsKey(id))
+			spriteMap.get(id).draw();
+		else if(isAtlasGlyph(id))
+			GlyphAtlas.DEFAULT.draw(id, panel);
+		else
+			System.out.println("Invalid sprite drawn with id " + id);
+	}
 
-			spriteMap.put(i, charSprite);
-		}
+	/* Put a sprite on the selected sprite layer, or take it off if the ID is not a sprite */
+	private void setLayerSprite(int id)
+	{
+		SpriteLayers layers = panel.getSpriteLayers();
+
+		if(spriteMap.containsKey(id))
+			layers.setSprite(layerSlot, spriteMap.get(id).getRuns(), spriteMap.get(id).getRunColors());
+		else if(isAtlasGlyph(id))
+			layers.setSprite(layerSlot, GlyphAtlas.DEFAULT.getRuns(id), GlyphAtlas.DEFAULT.getRunColors());
+		else
+			layers.setSprite(layerSlot, null, null);
 	}
 
 	public void handle(JCPU cpu)
@@ -251,7 +162,7 @@ public class PiInterface
 				break;
 			case 0x03:
 				boundSprite = outOne & 0xFF;
-				boundSpriteExists = spriteMap.containsKey(boundSprite);
+				boundSpriteExists = spriteMap.containsKey(boundSprite) || isAtlasGlyph(boundSprite);
 				break;
 			case 0x04:
 				boundSprite = 0xFF;
@@ -267,17 +178,23 @@ public class PiInterface
 				break;
 			case 0x07:
 				if(boundSpriteExists)
+				{
+					/* Copy-on-write: the shared glyph becomes a private sprite the first time it is modified */
+					if(isAtlasGlyph(boundSprite))
+						spriteMap.put(boundSprite, GlyphAtlas.DEFAULT.toSprite(boundSprite, panel));
+
 					spriteMap.get(boundSprite).addPixel(new Sprite.Pixel(pixelUploadX, pixelUploadY, outOne));
+				}
 				break;
 			case 0x08:
 				cpu.systemIO[7] = (byte) (keyboardListener.hasNext() ? 0x01 : 0x00);
 				break;
 			case 0x09:
-				if(keyboardListener.hasNext())
+				long event = keyboardListener.getNextEvent();
+				if(event != 0)
 				{
-					PiKeyboardListener.ExtendedKeyEvent event = keyboardListener.getNextEvent();
-					cpu.systemIO[7] = (byte) (event.getEvent().getExtendedKeyCode() & 0xFF);
-					cpu.systemIO[8] = (byte) (event.getType() == PiKeyboardListener.ExtendedKeyEvent.EventType.KEY_RELEASED ? 0x01 : 0x00);
+					cpu.systemIO[7] = (byte) (PiKeyboardListener.getKeyCode(event) & 0xFF);
+					cpu.systemIO[8] = (byte) (PiKeyboardListener.isRelease(event) ? 0x01 : 0x00);
 				}
 				break;
 			case 0x0A:
@@ -297,20 +214,20 @@ public class PiInterface
 				isNextTranslateNegative = outOne != 0;
 				break;
 			case 0x0F:
-				addressHigh = (short) (((outOne << 8) | (outTwo)) & 0xFFFF);
+				addressHigh = ((outOne & 0xFF) << 8) | (outTwo & 0xFF);
 				break;
 			case 0x10:
-				addressLow = (short) (((outOne << 8) | (outTwo)) & 0xFFFF);
+				addressLow = ((outOne & 0xFF) << 8) | (outTwo & 0xFF);
 				break;
 			case 0x11:
-				storageController.setAddress(addressHigh << 16 | addressLow);
+				storageController.setAddress(((long) addressHigh << 16) | addressLow);
 				short storageData = storageController.read();
 				cpu.systemIO[7] = (byte) ((storageData >> 8) & 0xFF);
 				cpu.systemIO[8] = (byte) (storageData & 0xFF);
 				break;
 			case 0x12:
-				storageController.setAddress(addressHigh << 16 | addressLow);
-				storageController.write((short) (((outOne << 8) | (outTwo)) & 0xFFFF));
+				storageController.setAddress(((long) addressHigh << 16) | addressLow);
+				storageController.write((short) (((outOne & 0xFF) << 8) | (outTwo & 0xFF)));
 				break;
 			case 0x13:
 				short storageSize = storageController.getStorageSizeMiB();
@@ -319,25 +236,20 @@ public class PiInterface
 				break;
 			/* TODO: All other IO commands */
 			case 0x17:
-				short graphicsWidth = (short) GraphicsPanel.SCREEN_WIDTH;
+				short graphicsWidth = (short) Framebuffer.SCREEN_WIDTH;
 				cpu.systemIO[7] = (byte) ((graphicsWidth >> 8) & 0xFF);
 				cpu.systemIO[8] = (byte) (graphicsWidth & 0xFF);
 				break;
 			case 0x18:
-				short graphicsHeight = (short) GraphicsPanel.SCREEN_HEIGHT;
+				short graphicsHeight = (short) Framebuffer.SCREEN_HEIGHT;
 				cpu.systemIO[7] = (byte) ((graphicsHeight >> 8) & 0xFF);
 				cpu.systemIO[8] = (byte) (graphicsHeight & 0xFF);
 				break;
 			case 0x19:
-				Graphics g = panel.getGraphicsPanel().getGraphics();
-				g.setColor(Color.BLACK);
-				g.drawRect(0, 0, GraphicsPanel.SCREEN_WIDTH, GraphicsPanel.SCREEN_HEIGHT);
+				panel.clear();
 				break;
 			case 0x20:
-				if(spriteMap.containsKey(new Integer(outOne & 0xFF)))
-					spriteMap.get(new Integer(outOne & 0xFF)).draw();
-				else
-					System.out.println("Invalid sprite drawn with id " + (outOne & 0xFF));
+				drawSprite(outOne & 0xFF);
 				break;
 			case 0x21:
 				panel.overrideColor(outOne);
@@ -351,7 +263,240 @@ public class PiInterface
 			case 0x24:
 				panel.moveMem(0, ((outOne & 0xFF) != 0 ? -1 : 1) * (outTwo & 0xFF));
 				break;
+			case 0x25:
+				cpu.systemIO[7] = (byte) (keyboardListener.isKeyDown(outOne & 0xFF) ? 0x01 : 0x00);
+				break;
+			case 0x26:
+				storageController.flush();
+				break;
+			case 0x27:
+				long storageBytes = storageController.getStorageSizeBytes();
+				cpu.systemIO[7] = (byte) ((storageBytes >> 24) & 0xFF);
+				cpu.systemIO[8] = (byte) ((storageBytes >> 16) & 0xFF);
+				break;
+			case 0x28:
+				storageBytes = storageController.getStorageSizeBytes();
+				cpu.systemIO[7] = (byte) ((storageBytes >> 8) & 0xFF);
+				cpu.systemIO[8] = (byte) (storageBytes & 0xFF);
+				break;
+			case 0x29:
+				fileNameAddress = ((outOne & 0xFF) << 8) | (outTwo & 0xFF);
+				break;
+			case 0x2A:
+			case 0x2B:
+				cpu.systemIO[7] = openFile(cpu, outZero == 0x2B);
+				break;
+			case 0x2C:
+				fileBufferAddress = ((outOne & 0xFF) << 8) | (outTwo & 0xFF);
+				break;
+			case 0x2D:
+			case 0x2E:
+				int transferred = transferFile(cpu, outZero == 0x2E, ((outOne & 0xFF) << 8) | (outTwo & 0xFF));
+				cpu.systemIO[7] = (byte) ((transferred >> 8) & 0xFF);
+				cpu.systemIO[8] = (byte) (transferred & 0xFF);
+				break;
+			case 0x2F:
+				cpu.systemIO[7] = closeFile();
+				break;
+			case 0x30:
+				panel.flip();
+				break;
+			case 0x31:
+				panel.setPaletteMode(outOne != 0);
+				break;
+			case 0x32:
+				paletteIndex = outOne & 0xFF;
+				break;
+			case 0x33:
+				paletteRed = outOne & 0xFF;
+				paletteGreen = outTwo & 0xFF;
+				break;
+			case 0x34:
+				panel.setPaletteEntry(paletteIndex, (paletteRed << 16) | (paletteGreen << 8) | (outOne & 0xFF));
+				paletteIndex = (paletteIndex + 1) & 0xFF;
+				break;
+			case 0x35:
+				panel.cyclePalette(outOne & 0xFF, outTwo & 0xFF);
+				break;
+			case 0x36:
+				panel.getTextLayer().setEnabled(outOne != 0);
+				break;
+			case 0x37:
+				panel.getTextLayer().setCursor(outOne & 0xFF, outTwo & 0xFF);
+				break;
+			case 0x38:
+				panel.getTextLayer().put(outOne & 0xFF, outTwo);
+				break;
+			case 0x39:
+				panel.getTextLayer().scroll(((outOne & 0xFF) != 0 ? -1 : 1) * (outTwo & 0xFF));
+				break;
+			case 0x3A:
+				panel.getTextLayer().clear();
+				break;
+			case 0x3B:
+				shapeX0 = (short) (((outOne & 0xFF) << 8) | (outTwo & 0xFF));
+				break;
+			case 0x3C:
+				shapeY0 = (short) (((outOne & 0xFF) << 8) | (outTwo & 0xFF));
+				break;
+			case 0x3D:
+				shapeX1 = (short) (((outOne & 0xFF) << 8) | (outTwo & 0xFF));
+				break;
+			case 0x3E:
+				shapeY1 = (short) (((outOne & 0xFF) << 8) | (outTwo & 0xFF));
+				break;
+			case 0x3F:
+				panel.fillRect(outOne, shapeX0, shapeY0, shapeX1, shapeY1);
+				break;
+			case 0x40:
+				panel.drawLine(outOne, shapeX0, shapeY0, shapeX1, shapeY1);
+				break;
+			case 0x41:
+				panel.drawHorizontalSpan(outOne, shapeX0, shapeX1, shapeY0);
+				break;
+			case 0x42:
+				panel.drawVerticalSpan(outOne, shapeX0, shapeY0, shapeY1);
+				break;
+			case 0x43:
+				panel.clearRect(shapeX0, shapeY0, shapeX1, shapeY1);
+				break;
+			case 0x44:
+			{
+				int operations = displayList.execute(cpu, ((outOne & 0xFF) << 8) | (outTwo & 0xFF));
+				cpu.systemIO[7] = (byte) ((operations >> 8) & 0xFF);
+				cpu.systemIO[8] = (byte) (operations & 0xFF);
+				break;
+			}
+			case 0x45:
+				layerSlot = (outOne & 0xFF) % SpriteLayers.LAYER_COUNT;
+				setLayerSprite(outTwo & 0xFF);
+				break;
+			case 0x46:
+				panel.getSpriteLayers().setX(layerSlot, (short) (((outOne & 0xFF) << 8) | (outTwo & 0xFF)));
+				break;
+			case 0x47:
+				panel.getSpriteLayers().setY(layerSlot, (short) (((outOne & 0xFF) << 8) | (outTwo & 0xFF)));
+				break;
+			case 0x48:
+				panel.getSpriteLayers().setZ(layerSlot, outOne & 0xFF, outTwo != 0);
+				break;
+			case 0x49:
+				/* The response is already in place, so the guest carries on as soon as the CPU is released */
+				cpu.systemIO[FramePresenter.VBLANK_PORT] &= ~FramePresenter.VBLANK_BIT;
+				cpu.waitingForVBlank = true;
+				break;
 		}
 	}
 
+	/* Open the file named by the zero-terminated string at fileNameAddress, for reading or as a new, empty file.
+	 * The filesystem is loaded again every time, so changes the guest made through the raw storage commands are seen.
+	 */
+	private byte openFile(JCPU cpu, boolean create)
+	{
+		closeFile();
+
+		StringBuilder name = new StringBuilder();
+		for(int i = 0; i < FILE_NAME_MAX_LENGTH; i++)
+		{
+			int address = fileNameAddress + i;
+			byte c = cpu.getSystemMemoryAt((byte) (address >> 8), (byte) address);
+			if(c == 0)
+				break;
+
+			name.append((char) (c & 0xFF));
+		}
+
+		try
+		{
+			filesystem = new JIFSFilesystem(storageController.getBackend());
+
+			if(create)
+				fileOutput = filesystem.openOutputStream(name.toString());
+			else if(filesystem.exists(name.toString()))
+				fileInput = filesystem.openInputStream(name.toString());
+			else
+			{
+				filesystem = null;
+				return FILE_NOT_FOUND;
+			}
+
+			return FILE_OK;
+		} catch (IOException | IllegalArgumentException e)
+		{
+			System.out.println("Could not open file \"" + name + "\": " + e.getMessage());
+			filesystem = null;
+			return FILE_ERROR;
+		}
+	}
+
+	/* Move up to length bytes between the open file and guest RAM at fileBufferAddress, returning how many moved.
+	 * Reading returns 0 at the end of the file. Transfers stop at the end of RAM.
+	 */
+	private int transferFile(JCPU cpu, boolean write, int length)
+	{
+		int ramOffset = fileBufferAddress - 0x8000;
+		if(ramOffset < 0 || ramOffset >= cpu.systemRAM.length)
+		{
+			System.out.println("File buffer is outside RAM at " + Integer.toHexString(fileBufferAddress));
+			return 0;
+		}
+
+		length = Math.min(length, cpu.systemRAM.length - ramOffset);
+
+		try
+		{
+			if(write && fileOutput != null)
+			{
+				fileOutput.write(cpu.systemRAM, ramOffset, length);
+				return length;
+			}
+
+			if(!write && fileInput != null)
+			{
+				int total = 0;
+				while(total < length)
+				{
+					int read = fileInput.read(cpu.systemRAM, ramOffset + total, length - total);
+					if(read < 0)
+						break;
+
+					total += read;
+				}
+
+				return total;
+			}
+
+			System.out.println("File " + (write ? "write" : "read") + " without a file open for it");
+		} catch (IOException e)
+		{
+			System.out.println("Error transferring file data: " + e.getMessage());
+		}
+
+		return 0;
+	}
+
+	/* Close the open file, if any, writing out anything created. Also called on exit, once the CPU has stopped. */
+	byte closeFile()
+	{
+		byte status = FILE_OK;
+
+		try
+		{
+			if(fileOutput != null)
+			{
+				fileOutput.close();
+				filesystem.flush();
+			}
+		} catch (IOException e)
+		{
+			System.out.println("Error closing file: " + e.getMessage());
+			status = FILE_ERROR;
+		}
+
+		filesystem = null;
+		fileInput = null;
+		fileOutput = null;
+		return status;
+	}
+
 }
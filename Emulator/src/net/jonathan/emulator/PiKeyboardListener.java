@@ -2,39 +2,62 @@ package net.jonathan.emulator;
 
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+/* Key events are written by the AWT thread (or any other producer) and read by the CPU thread, so the buffer is a
+ * bounded multi-producer/single-consumer ring of packed longs rather than a list of KeyEvent objects.
+ *
+ * Packed event layout:
+ * bits 0-15	key code
+ * bit 16		0 = press, 1 = release
+ * bit 17		always set, so that a published slot is never 0
+ * bits 18-63	CPU cycle count at the time of the event, as last published by the CPU
+ *
+ * Overflow policy: when the ring is full the newest event is dropped and counted. The key-down bitmap is updated
+ * regardless, so a guest polling key state never sees a stuck key because of an overflow.
+ */
 public class PiKeyboardListener implements KeyListener
 {
 
-	private LinkedList<ExtendedKeyEvent> keyBuffer = new LinkedList<>();
+	public static final int DEFAULT_CAPACITY = 256;
 
-	public static class ExtendedKeyEvent
-	{
-		public enum EventType
-		{
-			KEY_PRESSED,
-			KEY_RELEASED
-		}
+	private static final long RELEASE_FLAG = 1L << 16;
+	private static final long VALID_FLAG = 1L << 17;
+	private static final int CYCLE_SHIFT = 18;
 
-		private KeyEvent e;
-		private EventType type;
+	private final AtomicLongArray ring;
+	private final int mask;
 
-		public ExtendedKeyEvent(KeyEvent e, EventType type)
-		{
-			this.e = e;
-			this.type = type;
-		}
+	/* Producers claim slots by advancing the tail. Only the consumer advances the head. */
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head = 0;
 
-		public KeyEvent getEvent()
-		{
-			return e;
-		}
+	private final AtomicLong droppedEvents = new AtomicLong();
 
-		public EventType getType()
-		{
-			return type;
-		}
+	/* One bit per (low byte of a) key code, set while the key is held down */
+	private final AtomicLongArray keysDown = new AtomicLongArray(4);
+
+	private volatile JCPU cycleSource;
+
+	public PiKeyboardListener()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	public PiKeyboardListener(int capacity)
+	{
+		if(Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Keyboard buffer capacity must be a power of two");
+
+		ring = new AtomicLongArray(capacity);
+		mask = capacity - 1;
+	}
+
+	/* The CPU whose cycle counter is used to timestamp events */
+	public void setCycleSource(JCPU cpu)
+	{
+		cycleSource = cpu;
 	}
 
 	@Override
@@ -46,29 +69,104 @@ public class PiKeyboardListener implements KeyListener
 	@Override
 	public void keyPressed(KeyEvent e)
 	{
-		keyBuffer.add(new ExtendedKeyEvent(e, ExtendedKeyEvent.EventType.KEY_PRESSED));
+		push(e.getExtendedKeyCode(), false);
 	}
 
 	@Override
 	public void keyReleased(KeyEvent e)
 	{
-		keyBuffer.add(new ExtendedKeyEvent(e, ExtendedKeyEvent.EventType.KEY_RELEASED));
+		push(e.getExtendedKeyCode(), true);
+	}
+
+	public void push(int keyCode, boolean released)
+	{
+		setKeyDown(keyCode & 0xFF, !released);
+
+		/* Only a timestamp, so the CPU's coarsely published count is close enough */
+		long cycle = cycleSource == null ? 0 : cycleSource.getPublishedCycleCount();
+		long event = (keyCode & 0xFFFF) | (released ? RELEASE_FLAG : 0) | VALID_FLAG | (cycle << CYCLE_SHIFT);
+
+		while(true)
+		{
+			long currentTail = tail.get();
+
+			if(currentTail - head >= ring.length())
+			{
+				droppedEvents.incrementAndGet();
+				return;
+			}
+
+			if(tail.compareAndSet(currentTail, currentTail + 1))
+			{
+				ring.lazySet((int) (currentTail & mask), event);
+				return;
+			}
+		}
 	}
 
-	public ExtendedKeyEvent getNextEvent()
+	/* Returns the next packed event, or 0 if the buffer is empty. Must only be called from the CPU thread. */
+	public long getNextEvent()
 	{
-		ExtendedKeyEvent toReturn = keyBuffer.getFirst();
-		keyBuffer.removeFirst();
-		return toReturn;
+		int slot = (int) (head & mask);
+		long event = ring.get(slot);
+
+		/* A producer may have claimed this slot without publishing it yet. Treat that as empty for now. */
+		if(event == 0)
+			return 0;
+
+		ring.lazySet(slot, 0);
+		head = head + 1;
+		return event;
 	}
 
 	public boolean hasNext()
 	{
-		return keyBuffer.size() > 0;
+		return ring.get((int) (head & mask)) != 0;
 	}
 
 	public void clearBuffer()
 	{
-		keyBuffer.clear();
+		while(getNextEvent() != 0)
+			;
+	}
+
+	public boolean isKeyDown(int keyCode)
+	{
+		return (keysDown.get((keyCode & 0xFF) >>> 6) & (1L << (keyCode & 0x3F))) != 0;
+	}
+
+	public long getDroppedEvents()
+	{
+		return droppedEvents.get();
+	}
+
+	private void setKeyDown(int keyCode, boolean down)
+	{
+		int word = keyCode >>> 6;
+		long bit = 1L << (keyCode & 0x3F);
+
+		while(true)
+		{
+			long current = keysDown.get(word);
+			long updated = down ? current | bit : current & ~bit;
+
+			if(current == updated || keysDown.compareAndSet(word, current, updated))
+				return;
+		}
+	}
+
+	public static int getKeyCode(long event)
+	{
+		return (int) (event & 0xFFFF);
+	}
+
+	public static boolean isRelease(long event)
+	{
+		return (event & RELEASE_FLAG) != 0;
+	}
+
+	public static long getCycle(long event)
+	{
+		return event >>> CYCLE_SHIFT;
 	}
 }
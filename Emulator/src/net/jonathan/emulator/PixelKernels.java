@@ -0,0 +1,75 @@
+package net.jonathan.emulator;
+
+import java.util.Arrays;
+
+/* The inner loops of the framebuffer: filling and copying runs of color bytes, and turning color bytes into RGB.
+ *
+ * The bulk kernels hand whole runs to Arrays.fill and System.arraycopy, which the JIT turns into wide vector moves on
+ * any CPU that has them. The scalar kernels do the same work a byte at a time; they are there to measure against and
+ * for JVMs where the intrinsics misbehave. The bulk kernels are used unless -Djcpu.kernels=scalar is given.
+ */
+public abstract class PixelKernels
+{
+
+	public static final PixelKernels BULK = new PixelKernels()
+	{
+		@Override
+		public void fill(byte[] pixels, int from, int to, byte color)
+		{
+			Arrays.fill(pixels, from, to, color);
+		}
+
+		@Override
+		public void copy(byte[] source, int sourceIndex, byte[] destination, int destinationIndex, int length)
+		{
+			System.arraycopy(source, sourceIndex, destination, destinationIndex, length);
+		}
+
+		@Override
+		public String getName()
+		{
+			return "bulk";
+		}
+	};
+
+	public static final PixelKernels SCALAR = new PixelKernels()
+	{
+		@Override
+		public void fill(byte[] pixels, int from, int to, byte color)
+		{
+			for(int i = from; i < to; i++)
+				pixels[i] = color;
+		}
+
+		@Override
+		public void copy(byte[] source, int sourceIndex, byte[] destination, int destinationIndex, int length)
+		{
+			for(int i = 0; i < length; i++)
+				destination[destinationIndex + i] = source[sourceIndex + i];
+		}
+
+		@Override
+		public String getName()
+		{
+			return "scalar";
+		}
+	};
+
+	public static final PixelKernels DEFAULT = "scalar".equalsIgnoreCase(System.getProperty("jcpu.kernels")) ? SCALAR
+			: BULK;
+
+	public abstract void fill(byte[] pixels, int from, int to, byte color);
+
+	/* Source and destination must not overlap */
+	public abstract void copy(byte[] source, int sourceIndex, byte[] destination, int destinationIndex, int length);
+
+	public abstract String getName();
+
+	/* Look every color byte up in a 256 entry RGB palette. A table lookup per pixel either way, so both share it. */
+	public void expand(byte[] pixels, int[] palette, int[] rgb)
+	{
+		for(int i = 0; i < pixels.length; i++)
+			rgb[i] = palette[pixels[i] & 0xFF];
+	}
+
+}
@@ -1,7 +1,9 @@
 package net.jonathan.emulator;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 
 public class Sprite
 {
@@ -35,23 +37,100 @@ public class Sprite
 		}
 	}
 
-	private HashSet<Pixel> pixels = new HashSet<>();
-	private GraphicsPanel panel;
+	/* Orders pixels row by row, keeping the order they were added in for pixels at the same position */
+	private static final Comparator<Pixel> ROW_ORDER = new Comparator<Pixel>()
+	{
+		@Override
+		public int compare(Pixel a, Pixel b)
+		{
+			if(a.getY() != b.getY())
+				return a.getY() < b.getY() ? -1 : 1;
+			if(a.getX() != b.getX())
+				return a.getX() < b.getX() ? -1 : 1;
+			return 0;
+		}
+	};
 
-	public Sprite(GraphicsPanel panel)
+	private ArrayList<Pixel> pixels = new ArrayList<>();
+	private Framebuffer panel;
+
+	/* The pixels compiled into horizontal runs for Framebuffer.drawRuns. Null until the next draw after a change. */
+	private int[] runs;
+	private byte[] runColors;
+
+	public Sprite(Framebuffer panel)
 	{
 		this.panel = panel;
 	}
 
 	public void draw()
 	{
-		for(Pixel pix : pixels)
-			panel.setPixel(pix.getColor(), pix.getX(), pix.getY());
+		if(runs == null)
+			compile();
+
+		panel.drawRuns(runs, runColors);
+	}
+
+	/* The compiled runs and their colors, as passed to Framebuffer.drawRuns. Neither array changes once returned. */
+	int[] getRuns()
+	{
+		if(runs == null)
+			compile();
+
+		return runs;
+	}
+
+	byte[] getRunColors()
+	{
+		if(runs == null)
+			compile();
+
+		return runColors;
 	}
 
 	public void addPixel(Pixel p)
 	{
 		pixels.add(p);
+		runs = null;
+	}
+
+	/* Sort the pixels into rows and join horizontal neighbours into runs. Where a position was set more than once,
+	 * the pixel added last wins.
+	 */
+	private void compile()
+	{
+		ArrayList<Pixel> sorted = new ArrayList<>(pixels);
+		Collections.sort(sorted, ROW_ORDER);
+
+		int[] compiledRuns = new int[sorted.size() * 4];
+		byte[] colors = new byte[sorted.size()];
+		int runCount = 0;
+		int colorCount = 0;
+
+		for(int i = 0; i < sorted.size(); i++)
+		{
+			Pixel pixel = sorted.get(i);
+			if(i + 1 < sorted.size() && ROW_ORDER.compare(pixel, sorted.get(i + 1)) == 0)
+				continue;
+
+			int last = runCount * 4 - 4;
+			if(runCount > 0 && compiledRuns[last + 1] == pixel.getY()
+					&& compiledRuns[last] + compiledRuns[last + 2] == pixel.getX())
+				compiledRuns[last + 2]++;
+			else
+			{
+				compiledRuns[runCount * 4] = pixel.getX();
+				compiledRuns[runCount * 4 + 1] = pixel.getY();
+				compiledRuns[runCount * 4 + 2] = 1;
+				compiledRuns[runCount * 4 + 3] = colorCount;
+				runCount++;
+			}
+
+			colors[colorCount++] = pixel.getColor();
+		}
+
+		runs = Arrays.copyOf(compiledRuns, runCount * 4);
+		runColors = colors;
 	}
 
 }
@@ -0,0 +1,271 @@
+package net.jonathan.emulator;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+
+/* Hardware sprites. Each layer shows a sprite at a position over the bitmap without drawing it into the bitmap, so
+ * moving it is one position change and the background underneath never has to be redrawn. Layers are merged in z
+ * order (lowest first, the lower slot first when equal) whenever a frame is presented, and clipped to the screen.
+ *
+ * A layer takes a copy of the sprite's compiled pixels when the sprite is set on it; changing the sprite afterwards
+ * does not change the layer until the sprite is set again.
+ */
+public class SpriteLayers
+{
+
+	public static final int LAYER_COUNT = 32;
+
+	private static class Layer
+	{
+		private int[] runs;
+		private byte[] colors;
+		private int x;
+		private int y;
+		private int z;
+		private boolean visible;
+
+		/* Screen rectangle covered, for dirty regions. Empty when maxX < minX. */
+		private int minX;
+		private int minY;
+		private int maxX = -1;
+		private int maxY = -1;
+
+		private boolean isShown()
+		{
+			return visible && runs != null;
+		}
+	}
+
+	private final Layer[] layers = new Layer[LAYER_COUNT];
+	private final Layer[] drawOrder = new Layer[LAYER_COUNT];
+	private int shownCount = 0;
+
+	/* Layers changed since the overlay was last rendered, and the region to repaint at the next present */
+	private boolean stale = true;
+	private int dirtyMinX = Framebuffer.SCREEN_WIDTH;
+	private int dirtyMinY = Framebuffer.SCREEN_HEIGHT;
+	private int dirtyMaxX = -1;
+	private int dirtyMaxY = -1;
+
+	private final BufferedImage overlay = new BufferedImage(Framebuffer.SCREEN_WIDTH, Framebuffer.SCREEN_HEIGHT,
+			BufferedImage.TYPE_INT_ARGB);
+	private final int[] overlayPixels = ((DataBufferInt) overlay.getRaster().getDataBuffer()).getData();
+	private IndexColorModel renderedColors;
+
+	public SpriteLayers()
+	{
+		for(int i = 0; i < layers.length; i++)
+			layers[i] = new Layer();
+	}
+
+	public synchronized void reset()
+	{
+		for(int i = 0; i < layers.length; i++)
+		{
+			markDirty(layers[i]);
+			layers[i] = new Layer();
+		}
+
+		layersChanged();
+	}
+
+	/* Show the given runs (see Framebuffer.drawRuns) on a layer, or nothing if runs is null */
+	public synchronized void setSprite(int slot, int[] runs, byte[] colors)
+	{
+		Layer layer = layers[slot];
+		markDirty(layer);
+
+		layer.runs = runs;
+		layer.colors = colors;
+		updateBounds(layer);
+		markDirty(layer);
+		layersChanged();
+	}
+
+	public synchronized void setX(int slot, int x)
+	{
+		Layer layer = layers[slot];
+		markDirty(layer);
+
+		layer.x = x;
+		updateBounds(layer);
+		markDirty(layer);
+		layersChanged();
+	}
+
+	public synchronized void setY(int slot, int y)
+	{
+		Layer layer = layers[slot];
+		markDirty(layer);
+
+		layer.y = y;
+		updateBounds(layer);
+		markDirty(layer);
+		layersChanged();
+	}
+
+	public synchronized void setZ(int slot, int z, boolean visible)
+	{
+		Layer layer = layers[slot];
+		markDirty(layer);
+
+		layer.z = z;
+		layer.visible = visible;
+		markDirty(layer);
+		layersChanged();
+	}
+
+	/* True if any layer is showing a sprite */
+	public synchronized boolean isActive()
+	{
+		return shownCount > 0;
+	}
+
+	/* Sort the shown layers into draw order. Insertion sort; there are only ever a few layers. */
+	private void layersChanged()
+	{
+		shownCount = 0;
+
+		for(Layer layer : layers)
+		{
+			if(!layer.isShown())
+				continue;
+
+			int i = shownCount++;
+			while(i > 0 && drawOrder[i - 1].z > layer.z)
+			{
+				drawOrder[i] = drawOrder[i - 1];
+				i--;
+			}
+			drawOrder[i] = layer;
+		}
+
+		stale = true;
+	}
+
+	private void updateBounds(Layer layer)
+	{
+		layer.minX = Integer.MAX_VALUE;
+		layer.minY = Integer.MAX_VALUE;
+		layer.maxX = Integer.MIN_VALUE;
+		layer.maxY = Integer.MIN_VALUE;
+
+		if(layer.runs == null)
+			return;
+
+		for(int i = 0; i < layer.runs.length; i += 4)
+		{
+			layer.minX = Math.min(layer.minX, layer.runs[i] + layer.x);
+			layer.minY = Math.min(layer.minY, layer.runs[i + 1] + layer.y);
+			layer.maxX = Math.max(layer.maxX, layer.runs[i] + layer.runs[i + 2] - 1 + layer.x);
+			layer.maxY = Math.max(layer.maxY, layer.runs[i + 1] + layer.y);
+		}
+	}
+
+	private void markDirty(Layer layer)
+	{
+		if(!layer.isShown() || layer.maxX < layer.minX)
+			return;
+
+		dirtyMinX = Math.max(0, Math.min(dirtyMinX, layer.minX));
+		dirtyMinY = Math.max(0, Math.min(dirtyMinY, layer.minY));
+		dirtyMaxX = Math.min(Framebuffer.SCREEN_WIDTH - 1, Math.max(dirtyMaxX, layer.maxX));
+		dirtyMaxY = Math.min(Framebuffer.SCREEN_HEIGHT - 1, Math.max(dirtyMaxY, layer.maxY));
+	}
+
+	/* The region covered by layers before or after any change since the last call, or null if nothing changed */
+	public synchronized Rectangle takeDirtyRegion()
+	{
+		if(dirtyMinX > dirtyMaxX || dirtyMinY > dirtyMaxY)
+		{
+			dirtyMinX = Framebuffer.SCREEN_WIDTH;
+			dirtyMinY = Framebuffer.SCREEN_HEIGHT;
+			dirtyMaxX = -1;
+			dirtyMaxY = -1;
+			return null;
+		}
+
+		Rectangle region = new Rectangle(dirtyMinX, dirtyMinY, dirtyMaxX - dirtyMinX + 1, dirtyMaxY - dirtyMinY + 1);
+
+		dirtyMinX = Framebuffer.SCREEN_WIDTH;
+		dirtyMinY = Framebuffer.SCREEN_HEIGHT;
+		dirtyMaxX = -1;
+		dirtyMaxY = -1;
+		return region;
+	}
+
+	/* Merge the layers into an overlay, if they have changed since the last frame, and draw it */
+	public synchronized void drawTo(Graphics g, int x, int y, IndexColorModel colors)
+	{
+		if(shownCount == 0)
+			return;
+
+		if(stale || colors != renderedColors)
+		{
+			Arrays.fill(overlayPixels, 0);
+
+			for(int i = 0; i < shownCount; i++)
+			{
+				Layer layer = drawOrder[i];
+				int[] clipped = new int[3];
+
+				for(int run = 0; run < layer.runs.length; run += 4)
+					if(clip(layer, run, clipped))
+						for(int j = 0; j < clipped[2]; j++)
+							overlayPixels[clipped[1] + j] = 0xFF000000
+									| colors.getRGB(layer.colors[clipped[0] + j] & 0xFF);
+			}
+
+			renderedColors = colors;
+			stale = false;
+		}
+
+		g.drawImage(overlay, x, y, null);
+	}
+
+	/* Merge the layers into a frame of color bytes, as used for recording and frame hashes */
+	public synchronized void composite(byte[] screen)
+	{
+		int[] clipped = new int[3];
+
+		for(int i = 0; i < shownCount; i++)
+		{
+			Layer layer = drawOrder[i];
+
+			for(int run = 0; run < layer.runs.length; run += 4)
+				if(clip(layer, run, clipped))
+					System.arraycopy(layer.colors, clipped[0], screen, clipped[1], clipped[2]);
+		}
+	}
+
+	/* Clip one run of a layer to the screen. Fills in the index of its first color, its index on the screen and its
+	 * length, returning false if none of it is on the screen.
+	 */
+	private static boolean clip(Layer layer, int run, int[] clipped)
+	{
+		int y = layer.runs[run + 1] + layer.y;
+		if(y < 0 || y >= Framebuffer.SCREEN_HEIGHT)
+			return false;
+
+		int x = layer.runs[run] + layer.x;
+		int length = layer.runs[run + 2];
+		int color = layer.runs[run + 3];
+
+		if(x < 0)
+		{
+			length += x;
+			color -= x;
+			x = 0;
+		}
+		length = Math.min(length, Framebuffer.SCREEN_WIDTH - x);
+
+		clipped[0] = color;
+		clipped[1] = y * Framebuffer.SCREEN_WIDTH + x;
+		clipped[2] = length;
+		return length > 0;
+	}
+
+}
@@ -0,0 +1,24 @@
+package net.jonathan.emulator;
+
+import java.io.IOException;
+
+/* Something that can hold the contents of a storage image. StorageController translates the Pi storage commands into
+ * calls on one of these, so the image can be mapped, cached, layered, or compressed without the guest noticing.
+ *
+ * Reads past the end of the image return zeroes and writes past the end are ignored.
+ */
+public interface StorageBackend
+{
+
+	long getSize();
+
+	void read(long address, byte[] buffer, int offset, int length) throws IOException;
+
+	void write(long address, byte[] buffer, int offset, int length) throws IOException;
+
+	/* Make every write so far durable in the underlying file */
+	void flush() throws IOException;
+
+	void close() throws IOException;
+
+}
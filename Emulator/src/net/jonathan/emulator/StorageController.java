@@ -1,35 +1,71 @@
 package net.jonathan.emulator;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 
 public class StorageController
 {
 
-	private File storageFile;
-	private short storageSizeMiB;
+	/* JIFS block size, also used as the granularity of the storage caches */
+	public static final int BLOCK_SIZE = 256;
+
+	/* Largest image the guest can address with a 32-bit storage address */
+	public static final long MAX_ADDRESSABLE_BYTES = 0xFFFFFFFFL;
+
+	private StorageBackend backend;
 
-	private FileChannel channel;
 	private long currentAddress;
 
+	/* Scratch space for the 16-bit words the Pi commands transfer */
+	private final byte[] word = new byte[2];
+
+	/* The CPU can still be running when a shutdown hook closes the backend. Transfers and closing are made under the
+	 * controller's lock, and anything the guest does after closing is ignored rather than treated as an I/O error.
+	 */
+	private boolean closed = false;
+
 	public StorageController(File storageFile)
 	{
-		this.storageFile = storageFile;
+		this(open(storageFile));
+	}
+
+	public StorageController(StorageBackend backend)
+	{
+		this.backend = backend;
+
+		if(backend.getSize() > MAX_ADDRESSABLE_BYTES + 1)
+			System.out.println("Storage is larger than 4 GiB, only the first 4 GiB can be addressed by the guest");
+	}
+
+	/* Compressed images are recognised by their header. Anything else is a raw image, memory-mapped if possible,
+	 * otherwise accessed with positional channel I/O through a block cache.
+	 */
+	public static StorageBackend open(File storageFile, boolean readOnly) throws IOException
+	{
+		if(CompressedStorageBackend.isCompressed(storageFile))
+			return new CompressedStorageBackend(storageFile, readOnly);
 
-		storageSizeMiB = (short) (storageFile.length() / (1024 * 1024));
+		try
+		{
+			return new MappedStorageBackend(storageFile, readOnly);
+		} catch (IOException e)
+		{
+			System.err.println("Could not map storage file, falling back to cached I/O: " + e.getMessage());
+			return new CachedStorageBackend(storageFile, readOnly);
+		}
+	}
 
+	public static StorageBackend open(File storageFile)
+	{
 		try
 		{
-			channel = new FileInputStream(storageFile).getChannel();
-		} catch (FileNotFoundException e)
+			return open(storageFile, false);
+		} catch (IOException e)
 		{
 			System.err.println("Error opening storage file");
 			e.printStackTrace();
 			System.exit(1);
+			return null;
 		}
 	}
 
@@ -38,18 +74,31 @@ public class StorageController
 		currentAddress = address;
 	}
 
+	/* Whole MiB, saturating at 0xFFFF rather than wrapping */
 	public short getStorageSizeMiB()
 	{
-		return storageSizeMiB;
+		return (short) Math.min(0xFFFF, backend.getSize() / (1024 * 1024));
+	}
+
+	/* Exact size in bytes, saturating at the largest value a 32-bit storage address can reach */
+	public long getStorageSizeBytes()
+	{
+		return Math.min(MAX_ADDRESSABLE_BYTES, backend.getSize());
 	}
 
-	public short read()
+	public StorageBackend getBackend()
 	{
-		ByteBuffer buffer = ByteBuffer.allocateDirect(2);
+		return backend;
+	}
+
+	public synchronized short read()
+	{
+		if(closed)
+			return 0;
 
 		try
 		{
-			channel.read(buffer, currentAddress);
+			backend.read(currentAddress, word, 0, 2);
 		} catch (IOException e)
 		{
 			System.err.println("Error reading storage file");
@@ -57,17 +106,20 @@ public class StorageController
 			System.exit(1);
 		}
 
-		return buffer.getShort();
+		return (short) (((word[0] & 0xFF) << 8) | (word[1] & 0xFF));
 	}
 
-	public void write(short data)
+	public synchronized void write(short data)
 	{
-		ByteBuffer buffer = ByteBuffer.allocate(2);
-		buffer.putShort(data);
+		if(closed)
+			return;
+
+		word[0] = (byte) ((data >> 8) & 0xFF);
+		word[1] = (byte) (data & 0xFF);
 
 		try
 		{
-			channel.write(buffer, currentAddress);
+			backend.write(currentAddress, word, 0, 2);
 		} catch (IOException e)
 		{
 			System.err.println("Error writing storage file");
@@ -76,4 +128,36 @@ public class StorageController
 		}
 	}
 
+	public synchronized void flush()
+	{
+		if(closed)
+			return;
+
+		try
+		{
+			backend.flush();
+		} catch (IOException e)
+		{
+			System.err.println("Error flushing storage file");
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized void close()
+	{
+		if(closed)
+			return;
+
+		closed = true;
+
+		try
+		{
+			backend.close();
+		} catch (IOException e)
+		{
+			System.err.println("Error closing storage file");
+			e.printStackTrace();
+		}
+	}
+
 }
@@ -0,0 +1,259 @@
+package net.jonathan.emulator;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+
+/* A 40x30 grid of character cells drawn over the bitmap, using the default 8x8 glyphs. The guest only writes
+ * character codes and attributes; the cells are turned into pixels when a frame is presented, and only the cells that
+ * changed since the last frame are redrawn. The attribute is the color byte of the character's lit pixels. Unlit
+ * pixels, character 0 and characters outside the atlas are transparent, so the bitmap shows through.
+ */
+public class TextLayer
+{
+
+	public static final int COLUMNS = Framebuffer.SCREEN_WIDTH / GlyphAtlas.GLYPH_SIZE;
+	public static final int ROWS = Framebuffer.SCREEN_HEIGHT / GlyphAtlas.GLYPH_SIZE;
+
+	private final byte[] characters = new byte[COLUMNS * ROWS];
+	private final byte[] attributes = new byte[COLUMNS * ROWS];
+
+	private volatile boolean enabled = false;
+	private int cursorColumn = 0;
+	private int cursorRow = 0;
+
+	/* Cells changed since they were last rendered */
+	private final boolean[] staleCells = new boolean[COLUMNS * ROWS];
+	private boolean allStale = true;
+
+	/* Cells changed since the last frame was presented */
+	private int dirtyMinColumn = COLUMNS;
+	private int dirtyMinRow = ROWS;
+	private int dirtyMaxColumn = -1;
+	private int dirtyMaxRow = -1;
+
+	/* Rendered cells, with a transparent background */
+	private final BufferedImage overlay = new BufferedImage(Framebuffer.SCREEN_WIDTH, Framebuffer.SCREEN_HEIGHT,
+			BufferedImage.TYPE_INT_ARGB);
+	private final int[] overlayPixels = ((DataBufferInt) overlay.getRaster().getDataBuffer()).getData();
+	private IndexColorModel renderedColors;
+
+	public synchronized void reset()
+	{
+		enabled = false;
+		cursorColumn = 0;
+		cursorRow = 0;
+		Arrays.fill(characters, (byte) 0x00);
+		Arrays.fill(attributes, (byte) 0x00);
+		allStale = true;
+		markDirty(0, 0, COLUMNS - 1, ROWS - 1);
+	}
+
+	public synchronized void setEnabled(boolean enabled)
+	{
+		if(this.enabled != enabled)
+			markDirty(0, 0, COLUMNS - 1, ROWS - 1);
+
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	public synchronized void setCursor(int column, int row)
+	{
+		cursorColumn = Math.min(column, COLUMNS - 1);
+		cursorRow = Math.min(row, ROWS - 1);
+	}
+
+	public synchronized int getCursorColumn()
+	{
+		return cursorColumn;
+	}
+
+	public synchronized int getCursorRow()
+	{
+		return cursorRow;
+	}
+
+	/* Write a character at the cursor and move the cursor on, wrapping at the end of a row and scrolling the layer up
+	 * a row when the bottom is passed
+	 */
+	public synchronized void put(int character, byte attribute)
+	{
+		setCell(cursorColumn, cursorRow, character, attribute);
+
+		if(++cursorColumn == COLUMNS)
+		{
+			cursorColumn = 0;
+
+			if(++cursorRow == ROWS)
+			{
+				scroll(1);
+				cursorRow = ROWS - 1;
+			}
+		}
+	}
+
+	public synchronized void setCell(int column, int row, int character, byte attribute)
+	{
+		int cell = row * COLUMNS + column;
+
+		if(characters[cell] != (byte) character || attributes[cell] != attribute)
+		{
+			characters[cell] = (byte) character;
+			attributes[cell] = attribute;
+			staleCells[cell] = true;
+			markDirty(column, row, column, row);
+		}
+	}
+
+	public synchronized int getCharacter(int column, int row)
+	{
+		return characters[row * COLUMNS + column] & 0xFF;
+	}
+
+	/* Move every row up by the given number of rows (down if negative), clearing the rows that come into view. Only
+	 * the cell arrays move; the pixels are redrawn at the next present.
+	 */
+	public synchronized void scroll(int rows)
+	{
+		int distance = Math.min(Math.abs(rows), ROWS) * COLUMNS;
+		if(distance == 0)
+			return;
+
+		int kept = characters.length - distance;
+
+		if(rows > 0)
+		{
+			System.arraycopy(characters, distance, characters, 0, kept);
+			System.arraycopy(attributes, distance, attributes, 0, kept);
+			Arrays.fill(characters, kept, characters.length, (byte) 0x00);
+			Arrays.fill(attributes, kept, attributes.length, (byte) 0x00);
+		} else
+		{
+			System.arraycopy(characters, 0, characters, distance, kept);
+			System.arraycopy(attributes, 0, attributes, distance, kept);
+			Arrays.fill(characters, 0, distance, (byte) 0x00);
+			Arrays.fill(attributes, 0, distance, (byte) 0x00);
+		}
+
+		allStale = true;
+		markDirty(0, 0, COLUMNS - 1, ROWS - 1);
+	}
+
+	public synchronized void clear()
+	{
+		Arrays.fill(characters, (byte) 0x00);
+		Arrays.fill(attributes, (byte) 0x00);
+		cursorColumn = 0;
+		cursorRow = 0;
+		allStale = true;
+		markDirty(0, 0, COLUMNS - 1, ROWS - 1);
+	}
+
+	private void markDirty(int minColumn, int minRow, int maxColumn, int maxRow)
+	{
+		dirtyMinColumn = Math.min(dirtyMinColumn, minColumn);
+		dirtyMinRow = Math.min(dirtyMinRow, minRow);
+		dirtyMaxColumn = Math.max(dirtyMaxColumn, maxColumn);
+		dirtyMaxRow = Math.max(dirtyMaxRow, maxRow);
+	}
+
+	/* The cells changed since the last call, in screen pixels, or null if nothing changed. Changes made while the
+	 * layer is hidden are still reported, in case it is shown before the next frame.
+	 */
+	public synchronized Rectangle takeDirtyRegion()
+	{
+		if(dirtyMinColumn > dirtyMaxColumn)
+			return null;
+
+		Rectangle region = new Rectangle(dirtyMinColumn * GlyphAtlas.GLYPH_SIZE, dirtyMinRow * GlyphAtlas.GLYPH_SIZE,
+				(dirtyMaxColumn - dirtyMinColumn + 1) * GlyphAtlas.GLYPH_SIZE,
+				(dirtyMaxRow - dirtyMinRow + 1) * GlyphAtlas.GLYPH_SIZE);
+
+		dirtyMinColumn = COLUMNS;
+		dirtyMinRow = ROWS;
+		dirtyMaxColumn = -1;
+		dirtyMaxRow = -1;
+		return region;
+	}
+
+	/* Bring the stale cells of the overlay up to date and draw it. Called at present time. */
+	public synchronized void drawTo(Graphics g, int x, int y, IndexColorModel colors)
+	{
+		if(!enabled)
+			return;
+
+		/* A new palette changes the color of every character */
+		if(colors != renderedColors)
+		{
+			renderedColors = colors;
+			allStale = true;
+		}
+
+		for(int cell = 0; cell < staleCells.length; cell++)
+			if(allStale || staleCells[cell])
+			{
+				renderCell(cell, colors);
+				staleCells[cell] = false;
+			}
+
+		allStale = false;
+		g.drawImage(overlay, x, y, null);
+	}
+
+	private void renderCell(int cell, IndexColorModel colors)
+	{
+		int origin = (cell / COLUMNS) * GlyphAtlas.GLYPH_SIZE * Framebuffer.SCREEN_WIDTH
+				+ (cell % COLUMNS) * GlyphAtlas.GLYPH_SIZE;
+
+		for(int row = 0; row < GlyphAtlas.GLYPH_SIZE; row++)
+			Arrays.fill(overlayPixels, origin + row * Framebuffer.SCREEN_WIDTH,
+					origin + row * Framebuffer.SCREEN_WIDTH + GlyphAtlas.GLYPH_SIZE, 0);
+
+		int character = characters[cell] & 0xFF;
+		if(character == 0 || character >= GlyphAtlas.GLYPH_COUNT)
+			return;
+
+		int color = 0xFF000000 | colors.getRGB(attributes[cell] & 0xFF);
+		long bits = GlyphAtlas.DEFAULT.getBits(character);
+
+		while(bits != 0)
+		{
+			int bit = Long.numberOfTrailingZeros(bits);
+			overlayPixels[origin + (bit >>> 3) * Framebuffer.SCREEN_WIDTH + (bit & 0x07)] = color;
+			bits &= bits - 1;
+		}
+	}
+
+	/* Draw the lit pixels of every cell into a frame of color bytes, as used for recording and frame hashes */
+	public synchronized void composite(byte[] screen)
+	{
+		if(!enabled)
+			return;
+
+		for(int cell = 0; cell < characters.length; cell++)
+		{
+			int character = characters[cell] & 0xFF;
+			if(character == 0 || character >= GlyphAtlas.GLYPH_COUNT)
+				continue;
+
+			int origin = (cell / COLUMNS) * GlyphAtlas.GLYPH_SIZE * Framebuffer.SCREEN_WIDTH
+					+ (cell % COLUMNS) * GlyphAtlas.GLYPH_SIZE;
+			long bits = GlyphAtlas.DEFAULT.getBits(character);
+
+			while(bits != 0)
+			{
+				int bit = Long.numberOfTrailingZeros(bits);
+				screen[origin + (bit >>> 3) * Framebuffer.SCREEN_WIDTH + (bit & 0x07)] = attributes[cell];
+				bits &= bits - 1;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,396 @@
+package net.jonathan.emulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/* Write-behind layer over another backend. Guest writes are coalesced into 256-byte blocks in memory and committed by
+ * a background thread: each batch is appended to a journal and made durable with a single fsync, then applied to the
+ * image. The image itself is only flushed at checkpoints, after which the journal is emptied. After a host crash,
+ * every complete batch left in the journal is replayed when the image is next opened.
+ *
+ * Journal batch layout:
+ * 4 bytes - magic "JCJB"
+ * 4 bytes - number of blocks in the batch
+ * Each block, 8 bytes of block index and then the 256 bytes of the block
+ * 8 bytes - CRC32 of everything in the batch after the magic
+ */
+public class WriteBehindStorageBackend implements StorageBackend
+{
+
+	public static final int DEFAULT_COMMIT_INTERVAL_MS = 50;
+	public static final long DEFAULT_CHECKPOINT_BYTES = 4 * 1024 * 1024;
+
+	/* Guest writes stall once this many blocks are waiting, so memory use stays bounded */
+	private static final int MAX_PENDING_BLOCKS = 4096;
+
+	private static final int BATCH_MAGIC = 0x4A434A42;
+	private static final int BLOCK_RECORD_SIZE = 8 + StorageController.BLOCK_SIZE;
+
+	private final StorageBackend target;
+	private final RandomAccessFile journal;
+	private final int commitIntervalMs;
+	private final long checkpointBytes;
+
+	private final Object lock = new Object();
+
+	/* Blocks written since the last batch was taken, and the batch currently being committed */
+	private HashMap<Long, byte[]> pending = new HashMap<>();
+	private HashMap<Long, byte[]> committing = new HashMap<>();
+
+	private boolean flushRequested = false;
+	private boolean closed = false;
+	private IOException failure;
+
+	private final Thread writer;
+
+	public WriteBehindStorageBackend(StorageBackend target, File journalFile) throws IOException
+	{
+		this(target, journalFile, DEFAULT_COMMIT_INTERVAL_MS, DEFAULT_CHECKPOINT_BYTES);
+	}
+
+	public WriteBehindStorageBackend(StorageBackend target, File journalFile, int commitIntervalMs, long checkpointBytes)
+			throws IOException
+	{
+		this.target = target;
+		this.commitIntervalMs = commitIntervalMs;
+		this.checkpointBytes = checkpointBytes;
+
+		journal = new RandomAccessFile(journalFile, "rw");
+		replayJournal();
+
+		writer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				writeLoop();
+			}
+		});
+		writer.setName("Storage write-behind");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public StorageBackend getTarget()
+	{
+		return target;
+	}
+
+	@Override
+	public long getSize()
+	{
+		return target.getSize();
+	}
+
+	@Override
+	public void read(long address, byte[] buffer, int offset, int length) throws IOException
+	{
+		while(length > 0)
+		{
+			long index = address / StorageController.BLOCK_SIZE;
+			int blockOffset = (int) (address % StorageController.BLOCK_SIZE);
+			int count = Math.min(length, StorageController.BLOCK_SIZE - blockOffset);
+
+			byte[] block;
+			synchronized(lock)
+			{
+				block = pending.get(index);
+				if(block == null)
+					block = committing.get(index);
+
+				if(block != null)
+					System.arraycopy(block, blockOffset, buffer, offset, count);
+			}
+
+			if(block == null)
+				synchronized(target)
+				{
+					target.read(address, buffer, offset, count);
+				}
+
+			address += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	@Override
+	public void write(long address, byte[] buffer, int offset, int length) throws IOException
+	{
+		length = (int) Math.max(0, Math.min(length, getSize() - address));
+
+		synchronized(lock)
+		{
+			checkFailure();
+
+			while(pending.size() >= MAX_PENDING_BLOCKS)
+			{
+				lock.notifyAll();
+				waitOnLock();
+				checkFailure();
+			}
+
+			/* Wake the writer when a new batch starts */
+			if(pending.isEmpty())
+				lock.notifyAll();
+
+			while(length > 0)
+			{
+				long index = address / StorageController.BLOCK_SIZE;
+				int blockOffset = (int) (address % StorageController.BLOCK_SIZE);
+				int count = Math.min(length, StorageController.BLOCK_SIZE - blockOffset);
+
+				byte[] block = pending.get(index);
+				if(block == null)
+				{
+					/* Start the pending copy from the newest version of the block */
+					block = new byte[StorageController.BLOCK_SIZE];
+					byte[] inFlight = committing.get(index);
+
+					if(inFlight != null)
+						System.arraycopy(inFlight, 0, block, 0, StorageController.BLOCK_SIZE);
+					else
+						synchronized(target)
+						{
+							target.read(index * StorageController.BLOCK_SIZE, block, 0, StorageController.BLOCK_SIZE);
+						}
+
+					pending.put(index, block);
+				}
+
+				System.arraycopy(buffer, offset, block, blockOffset, count);
+
+				address += count;
+				offset += count;
+				length -= count;
+			}
+		}
+	}
+
+	/* Blocks until everything written so far is in the journal on disk */
+	@Override
+	public void flush() throws IOException
+	{
+		synchronized(lock)
+		{
+			flushRequested = true;
+			lock.notifyAll();
+
+			while((!pending.isEmpty() || !committing.isEmpty()) && failure == null)
+				waitOnLock();
+
+			checkFailure();
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		flush();
+
+		synchronized(lock)
+		{
+			closed = true;
+			lock.notifyAll();
+		}
+
+		try
+		{
+			writer.join();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		truncateJournal();
+		journal.close();
+		target.close();
+	}
+
+	private void writeLoop()
+	{
+		while(true)
+		{
+			synchronized(lock)
+			{
+				while(pending.isEmpty() && !closed && !flushRequested)
+					waitOnLock();
+
+				/* Let writes gather for a while so that one fsync covers as many of them as possible */
+				if(!closed && !flushRequested && pending.size() < MAX_PENDING_BLOCKS)
+					waitOnLock(commitIntervalMs);
+
+				if(pending.isEmpty())
+				{
+					flushRequested = false;
+					lock.notifyAll();
+
+					if(closed)
+						return;
+
+					continue;
+				}
+
+				HashMap<Long, byte[]> batch = pending;
+				pending = committing;
+				committing = batch;
+				flushRequested = false;
+			}
+
+			try
+			{
+				synchronized(journal)
+				{
+					appendBatch(committing);
+
+					synchronized(target)
+					{
+						for(Map.Entry<Long, byte[]> entry : committing.entrySet())
+							target.write(entry.getKey() * StorageController.BLOCK_SIZE, entry.getValue(), 0,
+									StorageController.BLOCK_SIZE);
+					}
+
+					if(journal.length() >= checkpointBytes)
+						truncateJournal();
+				}
+			} catch (IOException e)
+			{
+				synchronized(lock)
+				{
+					failure = e;
+					lock.notifyAll();
+				}
+				return;
+			}
+
+			synchronized(lock)
+			{
+				committing.clear();
+				lock.notifyAll();
+			}
+		}
+	}
+
+	private void appendBatch(HashMap<Long, byte[]> batch) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(8 + batch.size() * BLOCK_RECORD_SIZE + 8);
+		buffer.putInt(BATCH_MAGIC);
+		buffer.putInt(batch.size());
+
+		for(Map.Entry<Long, byte[]> entry : batch.entrySet())
+		{
+			buffer.putLong(entry.getKey());
+			buffer.put(entry.getValue());
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 4, buffer.position() - 4);
+		buffer.putLong(crc.getValue());
+		buffer.flip();
+
+		long position = journal.length();
+		while(buffer.hasRemaining())
+			journal.getChannel().write(buffer, position + buffer.position());
+
+		/* The group fsync: one per batch, however many guest writes it holds */
+		journal.getChannel().force(false);
+	}
+
+	/* Flush, then make the image itself durable and empty the journal. Needed before changing the image underneath
+	 * this layer (e.g. committing or discarding an overlay), or a crash would replay the old batches on top of it.
+	 */
+	public void checkpoint() throws IOException
+	{
+		flush();
+
+		synchronized(journal)
+		{
+			truncateJournal();
+		}
+	}
+
+	/* Make the image itself durable, after which the journal is no longer needed */
+	private void truncateJournal() throws IOException
+	{
+		synchronized(target)
+		{
+			target.flush();
+		}
+
+		journal.setLength(0);
+	}
+
+	private void replayJournal() throws IOException
+	{
+		long position = 0;
+		int batches = 0;
+
+		while(position + 8 <= journal.length())
+		{
+			journal.seek(position);
+			if(journal.readInt() != BATCH_MAGIC)
+				break;
+
+			int count = journal.readInt();
+			long batchSize = 8 + (long) count * BLOCK_RECORD_SIZE + 8;
+			if(count < 0 || position + batchSize > journal.length())
+				break;
+
+			byte[] batch = new byte[(int) batchSize];
+			journal.seek(position);
+			journal.readFully(batch);
+
+			CRC32 crc = new CRC32();
+			crc.update(batch, 4, batch.length - 12);
+			if(ByteBuffer.wrap(batch, batch.length - 8, 8).getLong() != crc.getValue())
+				break;
+
+			/* A complete batch, so it was fsynced before the crash. Apply it again. */
+			ByteBuffer records = ByteBuffer.wrap(batch, 8, count * BLOCK_RECORD_SIZE);
+			byte[] block = new byte[StorageController.BLOCK_SIZE];
+			for(int i = 0; i < count; i++)
+			{
+				long index = records.getLong();
+				records.get(block);
+				target.write(index * StorageController.BLOCK_SIZE, block, 0, StorageController.BLOCK_SIZE);
+			}
+
+			position += batchSize;
+			batches++;
+		}
+
+		if(batches > 0)
+			System.out.println("Replayed " + batches + " storage journal batches");
+
+		/* Anything after the last complete batch is a torn write and is dropped */
+		truncateJournal();
+	}
+
+	private void checkFailure() throws IOException
+	{
+		if(failure != null)
+			throw new IOException("Storage write-behind failed", failure);
+	}
+
+	private void waitOnLock()
+	{
+		waitOnLock(0);
+	}
+
+	private void waitOnLock(long timeoutMs)
+	{
+		try
+		{
+			lock.wait(timeoutMs);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -1,6 +1,8 @@
 @ECHO off
 
 echo "Building kernel..."
-java -jar Assembler.jar src/kernel.asm -o bin/kernel.bin -v -ds0 dumps/stage0.asm -ds1 dumps/stage1.asm -ds2 dumps/stage2.asm -ds3 dumps/stage3.asm
+REM Unchanged modules are linked from obj instead of being assembled again. Add -ds0 dumps/stage0.asm -ds1
+REM dumps/stage1.asm -ds2 dumps/stage2.asm -ds3 dumps/stage3.asm for the stage dumps, which assemble everything.
+java -jar Assembler.jar src/kernel.asm -o bin/kernel.bin -c obj -t
 
 pause
\ No newline at end of file
@@ -43,6 +43,41 @@
 	jmp int_16_mod					; 0x00AA
 
 	jmp graphics_print_str			; 0x00AF
+	jmp rpi_keyboard_key_down		; 0x00B4
+	jmp rpi_storage_flush			; 0x00B9
+	jmp rpi_storage_size_high		; 0x00BE
+	jmp rpi_storage_size_low		; 0x00C3
+	jmp rpi_file_name				; 0x00C8
+	jmp rpi_file_open				; 0x00CD
+	jmp rpi_file_create				; 0x00D2
+	jmp rpi_file_buffer				; 0x00D7
+	jmp rpi_file_read				; 0x00DC
+	jmp rpi_file_write				; 0x00E1
+	jmp rpi_file_close				; 0x00E6
+	jmp rpi_graphics_flip			; 0x00EB
+	jmp rpi_palette_mode			; 0x00F0
+	jmp rpi_palette_index			; 0x00F5
+	jmp rpi_palette_rg				; 0x00FA
+	jmp rpi_palette_b				; 0x00FF
+	jmp rpi_palette_cycle			; 0x0104
+	jmp rpi_text_enable				; 0x0109
+	jmp rpi_text_cursor				; 0x010E
+	jmp rpi_text_put				; 0x0113
+	jmp rpi_text_scroll				; 0x0118
+	jmp rpi_text_clear				; 0x011D
+	jmp rpi_shape_from				; 0x0122
+	jmp rpi_shape_to				; 0x0127
+	jmp rpi_fill_rect				; 0x012C
+	jmp rpi_draw_line				; 0x0131
+	jmp rpi_draw_hspan				; 0x0136
+	jmp rpi_draw_vspan				; 0x013B
+	jmp rpi_clear_rect				; 0x0140
+	jmp rpi_display_list			; 0x0145
+	jmp rpi_layer_sprite			; 0x014A
+	jmp rpi_layer_x					; 0x014F
+	jmp rpi_layer_y					; 0x0154
+	jmp rpi_layer_z					; 0x0159
+	jmp rpi_wait_vblank				; 0x015E
 
 #boot_main:
 	lda 0xFF, 0x09				; Start out by setting up the stack
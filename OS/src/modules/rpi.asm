@@ -305,6 +305,432 @@
 
 	ret
 
+; Check whether a key is currently held down
+; PARAMS: A = keycode
+; RETURN: A > 0x00 if the key is down
+#rpi_keyboard_key_down:
+	lc f, 0x25
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	call wait_for_response
+
+	mov a, 0xFF, 0x07
+
+	ret
+
+; Make all storage writes so far durable
+; PARAMS: None
+; RETURN: None
+#rpi_storage_flush:
+	lc f, 0x26
+	mov 0xFF, 0x01, f
+	call wait_for_response
+
+	ret
+
+; Get the upper 16 bits of the storage size in bytes
+; PARAMS: None
+; RETURN: A = high byte, B = low byte
+#rpi_storage_size_high:
+	lc f, 0x27
+	mov 0xFF, 0x01, f
+	call wait_for_response
+
+	mov a, 0xFF, 0x07
+	mov b, 0xFF, 0x08
+
+	ret
+
+; Get the lower 16 bits of the storage size in bytes
+; PARAMS: None
+; RETURN: A = high byte, B = low byte
+#rpi_storage_size_low:
+	lc f, 0x28
+	mov 0xFF, 0x01, f
+	call wait_for_response
+
+	mov a, 0xFF, 0x07
+	mov b, 0xFF, 0x08
+
+	ret
+
+; Set the address of the zero-terminated name of the file to open
+; PARAMS: A = address high, B = address low
+; RETURN: None
+#rpi_file_name:
+	lc f, 0x29
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	mov 0xFF, 0x03, b
+	call wait_for_response
+
+	ret
+
+; Open the named file for reading
+; PARAMS: None
+; RETURN: A = status (0 = OK, 1 = not found, 2 = error)
+#rpi_file_open:
+	lc f, 0x2A
+	mov 0xFF, 0x01, f
+	call wait_for_response
+
+	mov a, 0xFF, 0x07
+
+	ret
+
+; Create the named file for writing, replacing any file with that name
+; PARAMS: None
+; RETURN: A = status
+#rpi_file_create:
+	lc f, 0x2B
+	mov 0xFF, 0x01, f
+	call wait_for_response
+
+	mov a, 0xFF, 0x07
+
+	ret
+
+; Set the address in RAM that file data is transferred through
+; PARAMS: A = address high, B = address low
+; RETURN: None
+#rpi_file_buffer:
+	lc f, 0x2C
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	mov 0xFF, 0x03, b
+	call wait_for_response
+
+	ret
+
+; Read from the open file into the file buffer
+; PARAMS: AB = maximum number of bytes
+; RETURN: AB = number of bytes read, 0 at the end of the file
+#rpi_file_read:
+	lc f, 0x2D
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	mov 0xFF, 0x03, b
+	call wait_for_response
+
+	mov a, 0xFF, 0x07
+	mov b, 0xFF, 0x08
+
+	ret
+
+; Write from the file buffer to the open file
+; PARAMS: AB = number of bytes
+; RETURN: AB = number of bytes written
+#rpi_file_write:
+	lc f, 0x2E
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	mov 0xFF, 0x03, b
+	call wait_for_response
+
+	mov a, 0xFF, 0x07
+	mov b, 0xFF, 0x08
+
+	ret
+
+; Close the open file
+; PARAMS: None
+; RETURN: A = status
+#rpi_file_close:
+	lc f, 0x2F
+	mov 0xFF, 0x01, f
+	call wait_for_response
+
+	mov a, 0xFF, 0x07
+
+	ret
+
+; Show everything drawn since the last flip, and draw into the back page from now on
+; PARAMS: None
+; RETURN: None
+#rpi_graphics_flip:
+	lc f, 0x30
+	mov 0xFF, 0x01, f
+	call wait_for_response
+
+	ret
+
+; Switch between the fixed 3-3-2 colors and the programmable palette
+; PARAMS: A = mode (0 = 3-3-2, non-zero = programmable)
+; RETURN: None
+#rpi_palette_mode:
+	lc f, 0x31
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	call wait_for_response
+
+	ret
+
+; Set the palette entry that the next rpi_palette_b writes
+; PARAMS: A = index
+; RETURN: None
+#rpi_palette_index:
+	lc f, 0x32
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	call wait_for_response
+
+	ret
+
+; Set the red and green of the next palette entry
+; PARAMS: A = red, B = green
+; RETURN: None
+#rpi_palette_rg:
+	lc f, 0x33
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	mov 0xFF, 0x03, b
+	call wait_for_response
+
+	ret
+
+; Write the palette entry with the given blue, then move on to the next entry
+; PARAMS: A = blue
+; RETURN: None
+#rpi_palette_b:
+	lc f, 0x34
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	call wait_for_response
+
+	ret
+
+; Rotate a range of palette entries up by one
+; PARAMS: A = first entry, B = last entry
+; RETURN: None
+#rpi_palette_cycle:
+	lc f, 0x35
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	mov 0xFF, 0x03, b
+	call wait_for_response
+
+	ret
+
+; Show or hide the text layer over the bitmap
+; PARAMS: A = enable (0 = hidden, non-zero = shown)
+; RETURN: None
+#rpi_text_enable:
+	lc f, 0x36
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	call wait_for_response
+
+	ret
+
+; Move the text layer cursor
+; PARAMS: A = column, B = row
+; RETURN: None
+#rpi_text_cursor:
+	lc f, 0x37
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	mov 0xFF, 0x03, b
+	call wait_for_response
+
+	ret
+
+; Write a character at the text layer cursor and move the cursor on
+; PARAMS: A = character, B = color
+; RETURN: None
+#rpi_text_put:
+	lc f, 0x38
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	mov 0xFF, 0x03, b
+	call wait_for_response
+
+	ret
+
+; Scroll the text layer, blanking the rows that come into view
+; PARAMS: A = direction (0 = up, non-zero = down), B = rows
+; RETURN: None
+#rpi_text_scroll:
+	lc f, 0x39
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	mov 0xFF, 0x03, b
+	call wait_for_response
+
+	ret
+
+; Blank the text layer and move its cursor to the top left
+; PARAMS: None
+; RETURN: None
+#rpi_text_clear:
+	lc f, 0x3A
+	mov 0xFF, 0x01, f
+	call wait_for_response
+
+	ret
+
+; Set the first corner or end point of the next shape
+; PARAMS: A = X high, B = X low, C = Y high, D = Y low
+; RETURN: None
+#rpi_shape_from:
+	lc f, 0x3B
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	mov 0xFF, 0x03, b
+	call wait_for_response
+
+	lc f, 0x3C
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, c
+	mov 0xFF, 0x03, d
+	call wait_for_response
+
+	ret
+
+; Set the second corner or end point of the next shape
+; PARAMS: A = X high, B = X low, C = Y high, D = Y low
+; RETURN: None
+#rpi_shape_to:
+	lc f, 0x3D
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	mov 0xFF, 0x03, b
+	call wait_for_response
+
+	lc f, 0x3E
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, c
+	mov 0xFF, 0x03, d
+	call wait_for_response
+
+	ret
+
+; Fill the rectangle between the shape corners
+; PARAMS: A = color
+; RETURN: None
+#rpi_fill_rect:
+	lc f, 0x3F
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	call wait_for_response
+
+	ret
+
+; Draw a line between the shape end points
+; PARAMS: A = color
+; RETURN: None
+#rpi_draw_line:
+	lc f, 0x40
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	call wait_for_response
+
+	ret
+
+; Draw a horizontal line from shape X0 to X1 at Y0
+; PARAMS: A = color
+; RETURN: None
+#rpi_draw_hspan:
+	lc f, 0x41
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	call wait_for_response
+
+	ret
+
+; Draw a vertical line from shape Y0 to Y1 at X0
+; PARAMS: A = color
+; RETURN: None
+#rpi_draw_vspan:
+	lc f, 0x42
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	call wait_for_response
+
+	ret
+
+; Clear the rectangle between the shape corners to 0x00
+; PARAMS: None
+; RETURN: None
+#rpi_clear_rect:
+	lc f, 0x43
+	mov 0xFF, 0x01, f
+	call wait_for_response
+
+	ret
+
+; Run a list of drawing operations from memory in one go
+; PARAMS: A = address high, B = address low
+; RETURN: A = operations run high, B = operations run low
+#rpi_display_list:
+	lc f, 0x44
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	mov 0xFF, 0x03, b
+	call wait_for_response
+
+	mov a, 0xFF, 0x07
+	mov b, 0xFF, 0x08
+
+	ret
+
+; Select a sprite layer and show a sprite on it
+; PARAMS: A = layer, B = sprite ID
+; RETURN: None
+#rpi_layer_sprite:
+	lc f, 0x45
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	mov 0xFF, 0x03, b
+	call wait_for_response
+
+	ret
+
+; Move the selected sprite layer on the X-axis
+; PARAMS: A = X high, B = X low
+; RETURN: None
+#rpi_layer_x:
+	lc f, 0x46
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	mov 0xFF, 0x03, b
+	call wait_for_response
+
+	ret
+
+; Move the selected sprite layer on the Y-axis
+; PARAMS: A = Y high, B = Y low
+; RETURN: None
+#rpi_layer_y:
+	lc f, 0x47
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	mov 0xFF, 0x03, b
+	call wait_for_response
+
+	ret
+
+; Set the draw order and visibility of the selected sprite layer
+; PARAMS: A = Z, B = visible (0 = hidden)
+; RETURN: None
+#rpi_layer_z:
+	lc f, 0x48
+	mov 0xFF, 0x01, f
+	mov 0xFF, 0x02, a
+	mov 0xFF, 0x03, b
+	call wait_for_response
+
+	ret
+
+; Wait until the next frame is shown, to keep animation in step with the display
+; PARAMS: None
+; RETURN: None
+#rpi_wait_vblank:
+	lc f, 0x49
+	mov 0xFF, 0x01, f
+	call wait_for_response
+
+	ret
+
 ; Wait until the byte in the Raspberry Pi response register equals register A
 ; PARAMS: None
 ; RETURN: None